@@ -50,6 +50,11 @@ public interface INotifyService {
 
 	public static final Param<Boolean> RENDER_MASTER_TEMPLATE = Param.pBoolean("renderMaster");
 
+	/**
+	 * locale for choosing templates, e.g. de_AT, usually set in preferences
+	 */
+	public static final Param<String> LOCALE = Param.pString("locale");
+
 	IPreferences getPreferences(@Nonnull String userId);
 
 	@Nonnull
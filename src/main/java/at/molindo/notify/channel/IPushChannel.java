@@ -39,6 +39,7 @@ public interface IPushChannel extends IChannel {
 
 		private static final long serialVersionUID = 1L;
 		private final boolean _temporaryError;
+		private long _deferMs;
 
 		public PushException(boolean temporaryError) {
 			super();
@@ -64,5 +65,25 @@ public interface IPushChannel extends IChannel {
 			return _temporaryError;
 		}
 
+		/**
+		 * @return true if delivery should be retried later without counting
+		 *         as an error, e.g. if the receiving side is throttling
+		 */
+		public boolean isDeferred() {
+			return _deferMs > 0;
+		}
+
+		/**
+		 * @return time to wait before next attempt if {@link #isDeferred()}
+		 */
+		public long getDeferMs() {
+			return _deferMs;
+		}
+
+		public PushException setDeferMs(long deferMs) {
+			_deferMs = deferMs;
+			return this;
+		}
+
 	}
 }
@@ -19,6 +19,9 @@ package at.molindo.notify.channel.mail;
 import java.io.UnsupportedEncodingException;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Address;
 import javax.mail.Message.RecipientType;
@@ -31,15 +34,22 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 
 import at.molindo.notify.INotifyService.NotifyRuntimeException;
+import at.molindo.notify.channel.mail.SmtpTransportPool.ThrottledException;
 import at.molindo.notify.model.Dispatch;
 import at.molindo.notify.model.Message;
 import at.molindo.notify.render.IRenderService.Type;
 import at.molindo.utils.io.CharsetUtils;
 
-public abstract class AbstractMailClient implements IMailClient, InitializingBean {
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+public abstract class AbstractMailClient implements IMailClient, InitializingBean, DisposableBean {
 
 	public enum Security {
 		NONE(25), SSL(465), TLS(587);
@@ -60,6 +70,13 @@ public abstract class AbstractMailClient implements IMailClient, InitializingBea
 		MULTI, HTML, TEXT;
 	}
 
+	private static final int DEFAULT_MAX_CONNECTIONS = 4;
+	private static final long DEFAULT_ACQUIRE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
+	private static final int DEFAULT_MAX_MESSAGES_PER_CONNECTION = 100;
+	private static final long DEFAULT_MAX_IDLE_MS = TimeUnit.SECONDS.toMillis(30);
+	private static final long DEFAULT_DEFER_MS = TimeUnit.SECONDS.toMillis(60);
+	private static final long POOL_EXPIRATION_MIN = 10;
+
 	// sender config
 	private InternetAddress _from;
 	private InternetAddress _replyTo;
@@ -67,11 +84,38 @@ public abstract class AbstractMailClient implements IMailClient, InitializingBea
 	// message config
 	private Format _format = Format.MULTI;
 
+	// transport config
+	private int _maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private long _acquireTimeoutMs = DEFAULT_ACQUIRE_TIMEOUT_MS;
+	private int _maxMessagesPerConnection = DEFAULT_MAX_MESSAGES_PER_CONNECTION;
+	private long _maxIdleMs = DEFAULT_MAX_IDLE_MS;
+	private long _deferMs = DEFAULT_DEFER_MS;
+
+	/**
+	 * pools by {@link #getTransportPoolKey(Session)}, closed after not being
+	 * used for a while
+	 */
+	private final Cache<String, SmtpTransportPool> _transportPools = CacheBuilder.newBuilder()
+			.expireAfterAccess(POOL_EXPIRATION_MIN, TimeUnit.MINUTES)
+			.removalListener(new RemovalListener<String, SmtpTransportPool>() {
+
+				@Override
+				public void onRemoval(RemovalNotification<String, SmtpTransportPool> notification) {
+					notification.getValue().close();
+				}
+			}).build();
+
 	@Override
 	public final void afterPropertiesSet() throws Exception {
 		init();
 	}
 
+	@Override
+	public void destroy() {
+		// closes pools
+		_transportPools.invalidateAll();
+	}
+
 	public AbstractMailClient init() throws MailException {
 		if (_from == null) {
 			throw new MailException("from address is not configured", true);
@@ -81,7 +125,7 @@ public abstract class AbstractMailClient implements IMailClient, InitializingBea
 	}
 
 	@Override
-	public synchronized void send(Dispatch dispatch) throws MailException {
+	public void send(Dispatch dispatch) throws MailException {
 
 		Message message = dispatch.getMessage();
 
@@ -90,17 +134,7 @@ public abstract class AbstractMailClient implements IMailClient, InitializingBea
 		String subject = message.getSubject();
 
 		try {
-			MimeMessage mm = new MimeMessage(getSmtpSession(recipient)) {
-				@Override
-				protected void updateMessageID() throws MessagingException {
-					String domain = _from.getAddress();
-					int idx = _from.getAddress().indexOf('@');
-					if (idx >= 0) {
-						domain = domain.substring(idx + 1);
-					}
-					setHeader("Message-ID", "<" + UUID.randomUUID() + "@" + domain + ">");
-				}
-			};
+			NotifyMimeMessage mm = new NotifyMimeMessage(getSmtpSession(recipient), _from, message);
 			mm.setFrom(_from);
 			mm.setSender(_from);
 
@@ -149,8 +183,10 @@ public abstract class AbstractMailClient implements IMailClient, InitializingBea
 			send(mm);
 
 		} catch (final MessagingException e) {
-			throw new MailException("could not send mail from " + _from + " to " + recipient + " (" + toErrorMessage(e)
-					+ ")", e, isTemporary(e));
+			MailException me = new MailException("could not send mail from " + _from + " to " + recipient + " ("
+					+ toErrorMessage(e) + ")", e, isTemporary(e));
+			me.setDeferMs(toDeferMs(e));
+			throw me;
 		} catch (UnsupportedEncodingException e) {
 			throw new RuntimeException("utf8 unknown?", e);
 		}
@@ -160,7 +196,46 @@ public abstract class AbstractMailClient implements IMailClient, InitializingBea
 	 * override for testing
 	 */
 	protected void send(MimeMessage mm) throws MessagingException {
-		Transport.send(mm);
+		if (mm instanceof NotifyMimeMessage) {
+			mm.saveChanges();
+			NotifyMimeMessage nmm = (NotifyMimeMessage) mm;
+			getTransportPool(nmm.getSession()).send(nmm, nmm.getEnvelopeRecipients());
+		} else {
+			Transport.send(mm);
+		}
+	}
+
+	protected SmtpTransportPool getTransportPool(final Session session) {
+		try {
+			return _transportPools.get(getTransportPoolKey(session), new Callable<SmtpTransportPool>() {
+
+				@Override
+				public SmtpTransportPool call() {
+					return newTransportPool(session);
+				}
+			});
+		} catch (ExecutionException e) {
+			throw new NotifyRuntimeException("failed to create transport pool", e.getCause());
+		}
+	}
+
+	/**
+	 * @return key of the server a session connects to, sessions with equal
+	 *         keys share a pool
+	 */
+	protected String getTransportPoolKey(Session session) {
+		return session.getProperty("mail.smtp.host") + ":" + session.getProperty("mail.smtp.port");
+	}
+
+	protected SmtpTransportPool newTransportPool(Session session) {
+		return configure(new SmtpTransportPool(session, _maxConnections, _acquireTimeoutMs));
+	}
+
+	/**
+	 * applies pool settings of this client
+	 */
+	protected SmtpTransportPool configure(SmtpTransportPool pool) {
+		return pool.setMaxIdleMs(_maxIdleMs).setMaxMessagesPerConnection(_maxMessagesPerConnection);
 	}
 
 	protected String toErrorMessage(MessagingException e) {
@@ -171,6 +246,14 @@ public abstract class AbstractMailClient implements IMailClient, InitializingBea
 		return true;
 	}
 
+	/**
+	 * @return time to wait before retrying without counting as an error, 0 if
+	 *         e is an error
+	 */
+	protected long toDeferMs(MessagingException e) {
+		return e instanceof ThrottledException ? _deferMs : 0;
+	}
+
 	protected abstract Session getSmtpSession(String recipient) throws MailException;
 
 	public InternetAddress getFrom() {
@@ -215,6 +298,70 @@ public abstract class AbstractMailClient implements IMailClient, InitializingBea
 		}
 	}
 
+	public int getMaxConnections() {
+		return _maxConnections;
+	}
+
+	/**
+	 * maximum number of concurrent SMTP connections per session, i.e. per
+	 * server or recipient domain
+	 */
+	public AbstractMailClient setMaxConnections(int maxConnections) {
+		if (maxConnections <= 0) {
+			throw new IllegalArgumentException("maxConnections must be positive, was " + maxConnections);
+		}
+		_maxConnections = maxConnections;
+		return this;
+	}
+
+	public long getAcquireTimeoutMs() {
+		return _acquireTimeoutMs;
+	}
+
+	/**
+	 * maximum time to wait for a free SMTP connection
+	 */
+	public AbstractMailClient setAcquireTimeoutMs(long acquireTimeoutMs) {
+		_acquireTimeoutMs = acquireTimeoutMs;
+		return this;
+	}
+
+	public int getMaxMessagesPerConnection() {
+		return _maxMessagesPerConnection;
+	}
+
+	/**
+	 * number of messages after which a pooled SMTP connection is closed
+	 */
+	public AbstractMailClient setMaxMessagesPerConnection(int maxMessagesPerConnection) {
+		_maxMessagesPerConnection = maxMessagesPerConnection;
+		return this;
+	}
+
+	public long getMaxIdleMs() {
+		return _maxIdleMs;
+	}
+
+	/**
+	 * time after which idle pooled SMTP connections are closed
+	 */
+	public AbstractMailClient setMaxIdleMs(long maxIdleMs) {
+		_maxIdleMs = maxIdleMs;
+		return this;
+	}
+
+	public long getDeferMs() {
+		return _deferMs;
+	}
+
+	/**
+	 * time to wait before retrying mails that weren't sent due to throttling
+	 */
+	public AbstractMailClient setDeferMs(long deferMs) {
+		_deferMs = deferMs;
+		return this;
+	}
+
 	public Format getFormat() {
 		return _format;
 	}
@@ -226,4 +373,53 @@ public abstract class AbstractMailClient implements IMailClient, InitializingBea
 		_format = format;
 		return this;
 	}
+
+	/**
+	 * uses a random Message-ID in the domain of the sender
+	 */
+	static class NotifyMimeMessage extends MimeMessage {
+
+		private final InternetAddress _from;
+		private final Message _message;
+		private Address[] _envelopeRecipients;
+
+		NotifyMimeMessage(Session session, InternetAddress from, Message message) {
+			super(session);
+			_from = from;
+			_message = message;
+		}
+
+		@Override
+		protected void updateMessageID() throws MessagingException {
+			String domain = _from.getAddress();
+			int idx = _from.getAddress().indexOf('@');
+			if (idx >= 0) {
+				domain = domain.substring(idx + 1);
+			}
+			setHeader("Message-ID", "<" + UUID.randomUUID() + "@" + domain + ">");
+		}
+
+		Session getSession() {
+			return session;
+		}
+
+		/**
+		 * @return the rendered message this mail was created from
+		 */
+		Message getMessage() {
+			return _message;
+		}
+
+		/**
+		 * @return recipients used for SMTP, defaults to all recipients in
+		 *         headers
+		 */
+		Address[] getEnvelopeRecipients() throws MessagingException {
+			return _envelopeRecipients != null ? _envelopeRecipients : getAllRecipients();
+		}
+
+		void setEnvelopeRecipients(Address[] envelopeRecipients) {
+			_envelopeRecipients = envelopeRecipients;
+		}
+	}
 }
@@ -17,22 +17,27 @@
 package at.molindo.notify.channel.mail;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import javax.mail.Address;
 import javax.mail.MessagingException;
 import javax.mail.SendFailedException;
 import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
 
 import org.springframework.beans.factory.InitializingBean;
 
 import at.molindo.utils.collections.CollectionUtils;
 import at.molindo.utils.data.ExceptionUtils;
-import at.molindo.utils.net.DnsUtils;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -42,12 +47,25 @@ import com.sun.mail.smtp.SMTPSendFailedException;
 
 public class DirectMailClient extends AbstractMailClient implements InitializingBean {
 
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(DirectMailClient.class);
+
 	private static final int DEFAULT_CACHE_CONCURRENCY = 4;
 	private static final long DEFAULT_CACHE_EXPIRATION_MIN = 10;
 
 	private static final String CONNECTION_TIMEOUT_MS = "60000";
 	private static final String READ_TIMEOUT_MS = "60000";
 
+	private static final int DEFAULT_MAX_BATCH_SIZE = 100;
+	private static final int DEFAULT_MAX_RECIPIENTS_PER_MESSAGE = 50;
+	private static final long DEFAULT_RATE_WAIT_MS = 1000;
+	private static final long DEFAULT_MX_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+	private static final long DEFAULT_MX_NEGATIVE_TTL_MS = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * session property holding the recipient domain
+	 */
+	private static final String DOMAIN_PROPERTY = "mail.smtp.notify.domain";
+
 	// permanent errors
 	private static final int MAILBOX_UNAVAILABLE = 550;
 	private static final int MAILBOX_NOT_LOCAL = 551;
@@ -56,6 +74,14 @@ public class DirectMailClient extends AbstractMailClient implements Initializing
 	private static final Set<Integer> PERMANENT_ERROR_CODES = Collections.unmodifiableSet(CollectionUtils.set(
 			MAILBOX_UNAVAILABLE, MAILBOX_NOT_LOCAL, MAILBOX_NAME_NOT_ALLOWED, TRANSACTION_FAILED));
 
+	// throttling by receiving server
+	private static final int SERVICE_NOT_AVAILABLE = 421;
+	private static final int MAILBOX_BUSY = 450;
+	private static final int LOCAL_ERROR = 451;
+	private static final int INSUFFICIENT_STORAGE = 452;
+	private static final Set<Integer> DEFER_ERROR_CODES = Collections.unmodifiableSet(CollectionUtils.set(
+			SERVICE_NOT_AVAILABLE, MAILBOX_BUSY, LOCAL_ERROR, INSUFFICIENT_STORAGE));
+
 	private LoadingCache<String, Session> _sessionCache;
 	private int _cacheConcurrency = DEFAULT_CACHE_CONCURRENCY;
 	private long _cacheExpirationMin = DEFAULT_CACHE_EXPIRATION_MIN;
@@ -66,9 +92,35 @@ public class DirectMailClient extends AbstractMailClient implements Initializing
 	private String _localHost;
 	private boolean _startTLSEnabled = false;
 
+	// MX lookup
+	private IMxResolver _mxResolver = new DnsMxResolver();
+	private long _mxTtlMs = DEFAULT_MX_TTL_MS;
+	private long _mxNegativeTtlMs = DEFAULT_MX_NEGATIVE_TTL_MS;
+	private MxCache _mxCache;
+
+	// batching
+	private long _batchWindowMs = 0;
+	private int _maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private boolean _mergeRecipients = false;
+	private int _maxRecipientsPerMessage = DEFAULT_MAX_RECIPIENTS_PER_MESSAGE;
+	private MailBatcher _batcher;
+
+	// throttling
+	private double _maxRatePerDomain = 0;
+	private double _maxRatePerMxHost = 0;
+	private int _maxConnectionsPerMxHost = 0;
+	private long _rateWaitMs = DEFAULT_RATE_WAIT_MS;
+	private MailThrottle _throttle;
+
 	@Override
 	public DirectMailClient init() throws MailException {
 		super.init();
+		_mxCache = new MxCache(_mxResolver, _mxTtlMs, _mxNegativeTtlMs);
+		_throttle = new MailThrottle(_maxRatePerDomain, _maxRatePerMxHost, _maxConnectionsPerMxHost, _rateWaitMs);
+		if (_batchWindowMs > 0) {
+			_batcher = new MailBatcher(this, _batchWindowMs, _maxBatchSize, _mergeRecipients ? _maxRecipientsPerMessage
+					: 1);
+		}
 		_sessionCache = CacheBuilder.newBuilder().concurrencyLevel(_cacheConcurrency)
 				.expireAfterAccess(_cacheExpirationMin, TimeUnit.MINUTES).build(new CacheLoader<String, Session>() {
 					@Override
@@ -92,10 +144,126 @@ public class DirectMailClient extends AbstractMailClient implements Initializing
 		}
 	}
 
+	@Override
+	protected void send(MimeMessage mm) throws MessagingException {
+		if (!(mm instanceof NotifyMimeMessage)) {
+			super.send(mm);
+			return;
+		}
+
+		NotifyMimeMessage nmm = (NotifyMimeMessage) mm;
+		SmtpTransportPool pool = getTransportPool(nmm.getSession());
+		String host = getMxHost(pool);
+		withSharedPermits(pool, host);
+		_throttle.acquire(domain(nmm), host);
+		try {
+			if (_batcher != null) {
+				_batcher.send(nmm);
+			} else {
+				super.send(nmm);
+			}
+		} catch (MessagingException e) {
+			// might have failed over to another host meanwhile
+			host = getMxHost(pool);
+			if (host != null && getReturnCode(e) == SERVICE_NOT_AVAILABLE) {
+				// server asks us to back off, don't try other mails meanwhile
+				log.info("pausing MX host " + host + " for " + getDeferMs() + "ms: " + e.getMessage());
+				_throttle.pause(host, getDeferMs());
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * one pool per recipient domain, independent of expired sessions
+	 */
+	@Override
+	protected String getTransportPoolKey(Session session) {
+		String domain = session.getProperty(DOMAIN_PROPERTY);
+		return domain == null ? super.getTransportPoolKey(session) : domain;
+	}
+
+	/**
+	 * creates a pool connecting to the mail hosts of the session's domain in
+	 * order of priority, falling back to the next host if a connection fails
+	 */
+	@Override
+	protected SmtpTransportPool newTransportPool(Session session) {
+		final String domain = session.getProperty(DOMAIN_PROPERTY);
+		if (domain == null || _mxCache == null) {
+			SmtpTransportPool pool = super.newTransportPool(session);
+			return withSharedPermits(pool, getMxHost(pool));
+		}
+
+		SmtpTransportPool pool = new SmtpTransportPool(session, getMaxConnections(), getAcquireTimeoutMs()) {
+
+			@Override
+			protected Transport openTransport() throws MessagingException {
+				List<String> hosts;
+				try {
+					hosts = _mxCache.getMailHosts(domain);
+				} catch (NamingException e) {
+					throw new MessagingException("can't lookup mail host: " + domain, e);
+				}
+
+				MessagingException error = null;
+				for (String host : hosts) {
+					Transport transport = newTransport();
+					try {
+						transport.connect(host, null, null);
+						return transport;
+					} catch (MessagingException e) {
+						log.debug("failed to connect to mail host " + host + " of " + domain, e);
+						if (error != null) {
+							e.setNextException(error);
+						}
+						error = e;
+					}
+				}
+				throw error;
+			}
+		};
+		return withSharedPermits(configure(pool), getMxHost(pool));
+	}
+
+	/**
+	 * limits connections of pool by connections to host
+	 */
+	private SmtpTransportPool withSharedPermits(SmtpTransportPool pool, String host) {
+		Semaphore permits = _throttle == null ? null : _throttle.getConnectionPermits(host);
+		if (permits != null) {
+			pool.setSharedPermits(permits);
+		}
+		return pool;
+	}
+
+	private static String domain(NotifyMimeMessage nmm) throws MessagingException {
+		Address[] recipients = nmm.getEnvelopeRecipients();
+		if (recipients == null || recipients.length == 0 || !(recipients[0] instanceof InternetAddress)) {
+			throw new MessagingException("no recipient");
+		}
+		try {
+			return MailUtils.domainFromAddress(((InternetAddress) recipients[0]).getAddress());
+		} catch (MailException e) {
+			throw new MessagingException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return host pool is connected to, the primary host of its session
+	 *         before the first connection
+	 */
+	private static String getMxHost(SmtpTransportPool pool) {
+		String host = pool.getConnectedHost();
+		return host != null ? host : pool.getSession().getProperty("mail.smtp.host");
+	}
+
 	protected Session createSmtpSession(String domain) throws MailException {
 		try {
 			final Properties props = new Properties();
-			props.setProperty("mail.smtp.host", DnsUtils.lookupMailHosts(domain)[0]);
+			// primary host, connections fail over to others
+			props.setProperty("mail.smtp.host", _mxCache.getMailHosts(domain).get(0));
+			props.setProperty(DOMAIN_PROPERTY, domain);
 			props.setProperty("mail.smtp.port", "25");
 			props.setProperty("mail.smtp.auth", "false");
 			props.setProperty("mail.smtp.starttls.enable", Boolean.toString(getStartTLSEnabled()));
@@ -117,8 +285,15 @@ public class DirectMailClient extends AbstractMailClient implements Initializing
 			props.setProperty("mail.smtp.connectiontimeout", CONNECTION_TIMEOUT_MS);
 			props.setProperty("mail.smtp.timeout", READ_TIMEOUT_MS);
 
+			if (_mergeRecipients) {
+				// don't fail merged messages for all if some recipients fail
+				props.setProperty("mail.smtp.sendpartial", "true");
+			}
+
 			// props.put("mail.debug", "true");
 			return Session.getInstance(props);
+		} catch (NameNotFoundException e) {
+			throw new MailException("unknown mail domain: " + domain, e, false);
 		} catch (NamingException e) {
 			throw new MailException("can't lookup mail host: " + domain, e, true);
 		}
@@ -150,6 +325,27 @@ public class DirectMailClient extends AbstractMailClient implements Initializing
 		}
 	}
 
+	@Override
+	protected long toDeferMs(MessagingException e) {
+		return DEFER_ERROR_CODES.contains(getReturnCode(e)) ? getDeferMs() : super.toDeferMs(e);
+	}
+
+	/**
+	 * @return SMTP return code of e or its next exception, -1 if unknown
+	 */
+	private static int getReturnCode(MessagingException e) {
+		for (int i = 0; i < 2 && e != null; i++) {
+			if (e instanceof SMTPSendFailedException) {
+				return ((SMTPSendFailedException) e).getReturnCode();
+			} else if (e instanceof SMTPAddressFailedException) {
+				return ((SMTPAddressFailedException) e).getReturnCode();
+			}
+			e = e.getNextException() instanceof MessagingException ? (MessagingException) e.getNextException()
+					: null;
+		}
+		return -1;
+	}
+
 	@Override
 	protected boolean isTemporary(MessagingException e) {
 		if (e instanceof SendFailedException) {
@@ -187,6 +383,135 @@ public class DirectMailClient extends AbstractMailClient implements Initializing
 		_cacheExpirationMin = cacheExpirationMin;
 	}
 
+	public long getBatchWindowMs() {
+		return _batchWindowMs;
+	}
+
+	/**
+	 * maximum time to gather mails per recipient domain while another batch
+	 * to the domain is delivered, 0 to disable batching (default). Mails are
+	 * sent immediately if no delivery to their domain is in progress.
+	 */
+	public void setBatchWindowMs(long batchWindowMs) {
+		_batchWindowMs = batchWindowMs;
+	}
+
+	public int getMaxBatchSize() {
+		return _maxBatchSize;
+	}
+
+	/**
+	 * maximum number of mails per batch, full batches are delivered
+	 * immediately
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		_maxBatchSize = maxBatchSize;
+	}
+
+	public boolean isMergeRecipients() {
+		return _mergeRecipients;
+	}
+
+	/**
+	 * send batched mails with equal content as a single message with multiple
+	 * recipients. Recipients of merged mails won't be visible in headers
+	 * ("undisclosed-recipients") and mails must not contain any per-recipient
+	 * content. Requires batching.
+	 */
+	public void setMergeRecipients(boolean mergeRecipients) {
+		_mergeRecipients = mergeRecipients;
+	}
+
+	public int getMaxRecipientsPerMessage() {
+		return _maxRecipientsPerMessage;
+	}
+
+	public void setMaxRecipientsPerMessage(int maxRecipientsPerMessage) {
+		_maxRecipientsPerMessage = maxRecipientsPerMessage;
+	}
+
+	public double getMaxRatePerDomain() {
+		return _maxRatePerDomain;
+	}
+
+	/**
+	 * maximum mails per second to a single recipient domain, 0 for unlimited
+	 * (default). Mails exceeding the limit are deferred.
+	 */
+	public void setMaxRatePerDomain(double maxRatePerDomain) {
+		_maxRatePerDomain = maxRatePerDomain;
+	}
+
+	public double getMaxRatePerMxHost() {
+		return _maxRatePerMxHost;
+	}
+
+	/**
+	 * maximum mails per second to a single MX host, possibly serving multiple
+	 * domains, 0 for unlimited (default). Mails exceeding the limit are
+	 * deferred.
+	 */
+	public void setMaxRatePerMxHost(double maxRatePerMxHost) {
+		_maxRatePerMxHost = maxRatePerMxHost;
+	}
+
+	public int getMaxConnectionsPerMxHost() {
+		return _maxConnectionsPerMxHost;
+	}
+
+	/**
+	 * maximum concurrent connections to a single MX host, 0 for unlimited
+	 * (default). Connections per domain are limited by
+	 * {@link #setMaxConnections(int)}.
+	 */
+	public void setMaxConnectionsPerMxHost(int maxConnectionsPerMxHost) {
+		_maxConnectionsPerMxHost = maxConnectionsPerMxHost;
+	}
+
+	public long getRateWaitMs() {
+		return _rateWaitMs;
+	}
+
+	/**
+	 * maximum time to wait for rate limits before deferring a mail
+	 */
+	public void setRateWaitMs(long rateWaitMs) {
+		_rateWaitMs = rateWaitMs;
+	}
+
+	public IMxResolver getMxResolver() {
+		return _mxResolver;
+	}
+
+	public void setMxResolver(IMxResolver mxResolver) {
+		if (mxResolver == null) {
+			throw new NullPointerException("mxResolver");
+		}
+		_mxResolver = mxResolver;
+	}
+
+	public long getMxTtlMs() {
+		return _mxTtlMs;
+	}
+
+	/**
+	 * time to cache mail hosts if resolver doesn't know TTL of records
+	 */
+	public void setMxTtlMs(long mxTtlMs) {
+		_mxTtlMs = mxTtlMs;
+	}
+
+	public long getMxNegativeTtlMs() {
+		return _mxNegativeTtlMs;
+	}
+
+	/**
+	 * time to cache failed lookups of mail hosts
+	 */
+	public void setMxNegativeTtlMs(long mxNegativeTtlMs) {
+		_mxNegativeTtlMs = mxNegativeTtlMs;
+	}
+
 	public void setLocalAddress(final String localAddress) {
 		_localAddress = localAddress;
 	}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.channel.mail;
+
+import java.util.Arrays;
+
+import javax.naming.NamingException;
+
+import at.molindo.utils.net.DnsUtils;
+
+/**
+ * resolves mail hosts using JNDI DNS, which doesn't expose TTLs
+ */
+public class DnsMxResolver implements IMxResolver {
+
+	@Override
+	public MailHosts resolve(String domain) throws NamingException {
+		String[] hosts = DnsUtils.lookupMailHosts(domain);
+		if (hosts == null || hosts.length == 0) {
+			throw new NamingException("no mail hosts for " + domain);
+		}
+		return new MailHosts(Arrays.asList(hosts), -1);
+	}
+
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.channel.mail;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.naming.NamingException;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * looks up mail hosts of a domain
+ */
+public interface IMxResolver {
+
+	/**
+	 * @return mail hosts ordered by priority, never empty
+	 * @throws javax.naming.NameNotFoundException
+	 *             if domain doesn't exist
+	 * @throws NamingException
+	 *             if lookup failed
+	 */
+	@Nonnull
+	MailHosts resolve(@Nonnull String domain) throws NamingException;
+
+	public static final class MailHosts {
+
+		private final List<String> _hosts;
+		private final long _ttlMs;
+
+		/**
+		 * @param ttlMs
+		 *            time to live of the records or a negative value if
+		 *            unknown
+		 */
+		public MailHosts(@Nonnull List<String> hosts, long ttlMs) {
+			if (hosts.isEmpty()) {
+				throw new IllegalArgumentException("hosts must not be empty");
+			}
+			_hosts = ImmutableList.copyOf(hosts);
+			_ttlMs = ttlMs;
+		}
+
+		@Nonnull
+		public List<String> getHosts() {
+			return _hosts;
+		}
+
+		public long getTtlMs() {
+			return _ttlMs;
+		}
+
+		@Override
+		public String toString() {
+			return "MailHosts [hosts=" + _hosts + ", ttlMs=" + _ttlMs + "]";
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.channel.mail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import javax.annotation.Nonnull;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+
+import at.molindo.notify.channel.mail.AbstractMailClient.NotifyMimeMessage;
+import at.molindo.notify.model.Message;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * gathers mails to the same {@link Session}, i.e. to the same recipient
+ * domain, and delivers them together. The first thread submitting a mail to a
+ * domain delivers immediately if no other batch to the domain is being
+ * delivered. Otherwise, it waits for that delivery to finish, the window to
+ * pass or the batch to fill up and delivers all mails gathered meanwhile over
+ * a single connection. Other threads wait for the outcome of their mail.
+ *
+ * If enabled, mails created from equal messages are merged into a single
+ * transaction with multiple recipients. The To header of merged mails is
+ * replaced to not disclose recipients to each other.
+ */
+class MailBatcher {
+
+	private final AbstractMailClient _client;
+	private final long _windowMs;
+	private final int _maxBatchSize;
+	private final int _maxRecipientsPerMessage;
+
+	private final ConcurrentMap<Session, Batch> _batches = Maps.newConcurrentMap();
+	private final ConcurrentHashMultiset<Session> _delivering = ConcurrentHashMultiset.create();
+
+	/**
+	 * @param maxRecipientsPerMessage
+	 *            1 to disable merging
+	 */
+	MailBatcher(@Nonnull AbstractMailClient client, long windowMs, int maxBatchSize, int maxRecipientsPerMessage) {
+		_client = client;
+		_windowMs = windowMs;
+		_maxBatchSize = maxBatchSize;
+		_maxRecipientsPerMessage = maxRecipientsPerMessage;
+	}
+
+	void send(@Nonnull NotifyMimeMessage mm) throws MessagingException {
+		mm.saveChanges();
+
+		Session session = mm.getSession();
+		Pending pending = new Pending(mm);
+
+		while (true) {
+			Batch batch = _batches.get(session);
+			if (batch == null) {
+				batch = new Batch();
+				batch.add(pending);
+				if (_batches.putIfAbsent(session, batch) == null) {
+					// leader
+					List<Pending> pendings = batch.await(session, _windowMs);
+					_batches.remove(session, batch);
+					deliver(session, pendings);
+					break;
+				}
+			} else if (batch.add(pending)) {
+				break;
+			} else {
+				// full or delivering
+				_batches.remove(session, batch);
+			}
+		}
+
+		pending.await();
+	}
+
+	private void deliver(Session session, List<Pending> pendings) {
+		_delivering.add(session);
+		try {
+			List<List<Pending>> groups = group(pendings);
+
+			List<NotifyMimeMessage> mms = Lists.newArrayListWithCapacity(groups.size());
+			List<Address[]> recipients = Lists.newArrayListWithCapacity(groups.size());
+			for (List<Pending> group : groups) {
+				NotifyMimeMessage mm = group.get(0)._mm;
+				if (group.size() > 1) {
+					mm.setHeader("To", "undisclosed-recipients:;");
+				}
+				mms.add(mm);
+				recipients.add(recipients(group));
+			}
+
+			if (mms.isEmpty()) {
+				return;
+			}
+			MessagingException[] errors = _client.getTransportPool(session).sendAll(mms, recipients);
+
+			for (int i = 0; i < errors.length; i++) {
+				List<Pending> group = groups.get(i);
+				for (Pending pending : group) {
+					pending._error = failed(errors[i], pending, group.size() > 1);
+				}
+			}
+		} catch (MessagingException e) {
+			for (Pending pending : pendings) {
+				if (pending._error == null) {
+					pending._error = e;
+				}
+			}
+		} catch (RuntimeException e) {
+			for (Pending pending : pendings) {
+				if (pending._error == null) {
+					pending._error = new MessagingException("unexpected exception while sending batch", e);
+				}
+			}
+		} finally {
+			for (Pending pending : pendings) {
+				pending._done.countDown();
+			}
+			_delivering.remove(session);
+
+			// next batch might wait for this one
+			Batch next = _batches.get(session);
+			if (next != null) {
+				next.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * @return groups of pendings that can be sent as a single transaction,
+	 *         pendings without valid recipients fail without affecting others
+	 */
+	private List<List<Pending>> group(List<Pending> pendings) {
+		List<List<Pending>> groups = Lists.newArrayListWithCapacity(pendings.size());
+		Map<Message, List<Pending>> open = Maps.newHashMap();
+		for (Pending pending : pendings) {
+			try {
+				pending._recipients = pending._mm.getEnvelopeRecipients();
+			} catch (MessagingException e) {
+				pending._error = e;
+				continue;
+			}
+
+			Message message = _maxRecipientsPerMessage <= 1 ? null : pending._mm.getMessage();
+			List<Pending> group = message == null ? null : open.get(message);
+			if (group == null || group.size() >= _maxRecipientsPerMessage) {
+				group = Lists.newArrayList();
+				groups.add(group);
+				if (message != null) {
+					open.put(message, group);
+				}
+			}
+			group.add(pending);
+		}
+		return groups;
+	}
+
+	private static Address[] recipients(List<Pending> group) {
+		if (group.size() == 1) {
+			return group.get(0)._recipients;
+		}
+		List<Address> recipients = Lists.newArrayList();
+		for (Pending pending : group) {
+			recipients.addAll(Arrays.asList(pending._recipients));
+		}
+		return recipients.toArray(new Address[recipients.size()]);
+	}
+
+	/**
+	 * @return error for a mail that might be merged with others
+	 */
+	private static MessagingException failed(MessagingException e, Pending pending, boolean merged) {
+		if (e == null) {
+			return null;
+		}
+		if (!merged || !(e instanceof SendFailedException)) {
+			return e;
+		}
+		// only some recipients might have failed
+		SendFailedException se = (SendFailedException) e;
+		if (se.getValidSentAddresses() == null && se.getInvalidAddresses() == null) {
+			return e;
+		}
+		Set<Address> sent = addresses(se.getValidSentAddresses());
+		Set<Address> invalid = addresses(se.getInvalidAddresses());
+		boolean unsent = false;
+		for (Address recipient : pending._recipients) {
+			if (invalid.contains(recipient)) {
+				return e;
+			} else if (!sent.contains(recipient)) {
+				unsent = true;
+			}
+		}
+		// valid recipient, not sent because of others
+		return unsent ? new MessagingException("not sent as transaction failed for other recipients", e) : null;
+	}
+
+	private static Set<Address> addresses(Address[] addresses) {
+		return addresses == null ? Collections.<Address> emptySet() : Sets.newHashSet(addresses);
+	}
+
+	private final class Batch {
+		private final List<Pending> _pendings = Lists.newArrayList();
+		private boolean _closed;
+
+		/**
+		 * @return false if batch is full or already delivering
+		 */
+		private synchronized boolean add(Pending pending) {
+			if (_closed || _pendings.size() >= _maxBatchSize) {
+				return false;
+			}
+			_pendings.add(pending);
+			if (_pendings.size() >= _maxBatchSize) {
+				notifyAll();
+			}
+			return true;
+		}
+
+		/**
+		 * waits for the running delivery to the same session to finish, window
+		 * to pass or batch to fill up
+		 */
+		private synchronized List<Pending> await(Session session, long windowMs) {
+			long deadline = System.currentTimeMillis() + windowMs;
+			long wait;
+			boolean interrupted = false;
+			while (_pendings.size() < _maxBatchSize && _delivering.count(session) > 0
+					&& (wait = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					// deliver anyway
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			_closed = true;
+			return _pendings;
+		}
+
+		private synchronized void wakeup() {
+			notifyAll();
+		}
+	}
+
+	private static final class Pending {
+		private final NotifyMimeMessage _mm;
+		private final CountDownLatch _done = new CountDownLatch(1);
+		private Address[] _recipients;
+		private volatile MessagingException _error;
+
+		private Pending(NotifyMimeMessage mm) {
+			_mm = mm;
+		}
+
+		private void await() throws MessagingException {
+			try {
+				_done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MessagingException("interrupted while waiting for batch", e);
+			}
+			if (_error != null) {
+				throw _error;
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.channel.mail;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import at.molindo.notify.channel.mail.SmtpTransportPool.ThrottledException;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * limits the rate of mails per recipient domain and per MX host and the number
+ * of concurrent connections per MX host. MX hosts that signalled throttling
+ * are paused for a while.
+ */
+class MailThrottle {
+
+	private static final long EXPIRATION_MIN = 10;
+
+	private final double _domainRate;
+	private final double _hostRate;
+	private final int _maxConnectionsPerHost;
+	private final long _rateWaitMs;
+
+	private final LoadingCache<String, RateLimiter> _domainLimiters;
+	private final LoadingCache<String, RateLimiter> _hostLimiters;
+
+	/**
+	 * weak values, permits are kept as long as any pool uses them
+	 */
+	private final LoadingCache<String, Semaphore> _hostPermits;
+
+	private final ConcurrentMap<String, Long> _pausedHosts = Maps.newConcurrentMap();
+
+	/**
+	 * @param domainRate
+	 *            mails per second and recipient domain, 0 for unlimited
+	 * @param hostRate
+	 *            mails per second and MX host, 0 for unlimited
+	 * @param maxConnectionsPerHost
+	 *            0 for unlimited
+	 * @param rateWaitMs
+	 *            maximum time to wait for the rate limit
+	 */
+	MailThrottle(double domainRate, double hostRate, int maxConnectionsPerHost, long rateWaitMs) {
+		_domainRate = domainRate;
+		_hostRate = hostRate;
+		_maxConnectionsPerHost = maxConnectionsPerHost;
+		_rateWaitMs = rateWaitMs;
+
+		_domainLimiters = CacheBuilder.newBuilder().expireAfterAccess(EXPIRATION_MIN, TimeUnit.MINUTES)
+				.build(new CacheLoader<String, RateLimiter>() {
+					@Override
+					public RateLimiter load(String domain) {
+						return RateLimiter.create(_domainRate);
+					}
+				});
+		_hostLimiters = CacheBuilder.newBuilder().expireAfterAccess(EXPIRATION_MIN, TimeUnit.MINUTES)
+				.build(new CacheLoader<String, RateLimiter>() {
+					@Override
+					public RateLimiter load(String host) {
+						return RateLimiter.create(_hostRate);
+					}
+				});
+		_hostPermits = CacheBuilder.newBuilder().weakValues().build(new CacheLoader<String, Semaphore>() {
+			@Override
+			public Semaphore load(String host) {
+				return new Semaphore(_maxConnectionsPerHost, true);
+			}
+		});
+	}
+
+	/**
+	 * waits up to rateWaitMs for the rate limits of domain and host
+	 *
+	 * @throws ThrottledException
+	 *             if mail must not be sent now
+	 */
+	void acquire(@Nonnull String domain, @CheckForNull String host) throws ThrottledException {
+		if (host != null) {
+			Long until = _pausedHosts.get(host);
+			if (until != null) {
+				if (until > System.currentTimeMillis()) {
+					throw new ThrottledException("MX host " + host + " paused after throttling");
+				}
+				_pausedHosts.remove(host, until);
+			}
+		}
+		if (_domainRate > 0 && !get(_domainLimiters, domain).tryAcquire(_rateWaitMs, TimeUnit.MILLISECONDS)) {
+			throw new ThrottledException("rate limit of " + _domainRate + "/s exceeded for domain " + domain);
+		}
+		if (host != null && _hostRate > 0
+				&& !get(_hostLimiters, host).tryAcquire(_rateWaitMs, TimeUnit.MILLISECONDS)) {
+			throw new ThrottledException("rate limit of " + _hostRate + "/s exceeded for MX host " + host);
+		}
+	}
+
+	/**
+	 * pauses all mails to host, e.g. after it responded with 421
+	 */
+	void pause(@Nonnull String host, long pauseMs) {
+		long until = System.currentTimeMillis() + pauseMs;
+		Long prev = _pausedHosts.put(host, until);
+		if (prev != null && prev > until) {
+			_pausedHosts.replace(host, until, prev);
+		}
+	}
+
+	/**
+	 * @return permits for connections to host or null if unlimited
+	 */
+	@CheckForNull
+	Semaphore getConnectionPermits(@CheckForNull String host) {
+		if (host == null || _maxConnectionsPerHost <= 0) {
+			return null;
+		}
+		return get(_hostPermits, host);
+	}
+
+	private static <T> T get(LoadingCache<String, T> cache, String key) {
+		try {
+			return cache.get(key);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("unexpected exception while creating limit for " + key, e.getCause());
+		}
+	}
+}
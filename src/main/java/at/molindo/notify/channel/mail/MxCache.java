@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.channel.mail;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.naming.NamingException;
+
+import at.molindo.notify.channel.mail.IMxResolver.MailHosts;
+
+import com.google.common.collect.Maps;
+
+/**
+ * caches mail hosts for the TTL of their records (or a default TTL if
+ * unknown). Failed lookups are cached for a shorter negative TTL.
+ */
+class MxCache {
+
+	private static final int PURGE_THRESHOLD = 10000;
+
+	private final IMxResolver _resolver;
+	private final long _defaultTtlMs;
+	private final long _negativeTtlMs;
+
+	private final ConcurrentMap<String, Entry> _entries = Maps.newConcurrentMap();
+
+	MxCache(@Nonnull IMxResolver resolver, long defaultTtlMs, long negativeTtlMs) {
+		if (resolver == null) {
+			throw new NullPointerException("resolver");
+		}
+		_resolver = resolver;
+		_defaultTtlMs = defaultTtlMs;
+		_negativeTtlMs = negativeTtlMs;
+	}
+
+	/**
+	 * @return mail hosts ordered by priority, never empty
+	 */
+	@Nonnull
+	List<String> getMailHosts(@Nonnull String domain) throws NamingException {
+		long now = System.currentTimeMillis();
+
+		Entry entry = _entries.get(domain);
+		if (entry == null || entry._expires <= now) {
+			entry = lookup(domain, now);
+			if (_entries.size() >= PURGE_THRESHOLD) {
+				purge(now);
+			}
+			_entries.put(domain, entry);
+		}
+
+		if (entry._error != null) {
+			throw entry._error;
+		}
+		return entry._hosts;
+	}
+
+	private Entry lookup(String domain, long now) {
+		try {
+			MailHosts hosts = _resolver.resolve(domain);
+			long ttlMs = hosts.getTtlMs() < 0 ? _defaultTtlMs : hosts.getTtlMs();
+			return new Entry(hosts.getHosts(), null, now + ttlMs);
+		} catch (NamingException e) {
+			return new Entry(null, e, now + _negativeTtlMs);
+		}
+	}
+
+	private void purge(long now) {
+		Iterator<Entry> iter = _entries.values().iterator();
+		while (iter.hasNext()) {
+			if (iter.next()._expires <= now) {
+				iter.remove();
+			}
+		}
+	}
+
+	int size() {
+		return _entries.size();
+	}
+
+	private static final class Entry {
+		private final List<String> _hosts;
+		private final NamingException _error;
+		private final long _expires;
+
+		private Entry(List<String> hosts, NamingException error, long expires) {
+			_hosts = hosts;
+			_error = error;
+			_expires = expires;
+		}
+	}
+}
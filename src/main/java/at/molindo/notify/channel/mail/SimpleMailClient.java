@@ -19,10 +19,8 @@ package at.molindo.notify.channel.mail;
 import java.util.Properties;
 
 import javax.mail.MessagingException;
-import javax.mail.NoSuchProviderException;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 
 import org.springframework.beans.factory.InitializingBean;
@@ -72,15 +70,15 @@ public class SimpleMailClient extends AbstractMailClient implements Initializing
 		return this;
 	}
 
-	private Transport connectTransport() throws MailException {
+	/**
+	 * opens the first pooled connection if enabled
+	 */
+	private void connectTransport() throws MailException {
+		if (!isConnect()) {
+			return;
+		}
 		try {
-			Transport t = _smtpSession.getTransport("smtp");
-			if (isConnect() && !t.isConnected()) {
-				t.connect();
-			}
-			return t;
-		} catch (NoSuchProviderException e) {
-			throw new RuntimeException("no SMTP provider?", e);
+			getTransportPool(_smtpSession).connect();
 		} catch (MessagingException e) {
 			throw new MailException("can't connect to SMTP server", e, true);
 		}
@@ -113,7 +111,6 @@ public class SimpleMailClient extends AbstractMailClient implements Initializing
 
 	@Override
 	protected Session getSmtpSession(String recipient) throws MailException {
-		connectTransport();
 		return _smtpSession;
 	}
 
@@ -0,0 +1,454 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.channel.mail;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.MimeMessage;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * pool of persistent SMTP connections to the server of a {@link Session},
+ * allowing up to maxConnections threads to send in parallel. Connections are
+ * kept open between messages, avoiding TCP and TLS handshakes and
+ * authentication for every mail.
+ *
+ * Before reuse, each connection is reset and checked with RSET. Connections
+ * are closed after maxMessagesPerConnection messages or after being idle for
+ * maxIdleMs.
+ *
+ * Optional shared permits limit concurrent connections across pools, e.g. to
+ * all domains served by the same MX host. Failing to get a connection in time
+ * is reported as {@link ThrottledException}.
+ */
+public class SmtpTransportPool {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SmtpTransportPool.class);
+
+	private static final int DEFAULT_MAX_MESSAGES_PER_CONNECTION = 100;
+	private static final long DEFAULT_MAX_IDLE_MS = TimeUnit.SECONDS.toMillis(30);
+
+	private static final ScheduledExecutorService EVICTOR = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+					.setNameFormat(SmtpTransportPool.class.getSimpleName() + "-evictor").setDaemon(true).build());
+
+	private final Session _session;
+	private final int _maxConnections;
+	private final long _acquireTimeoutMs;
+
+	private int _maxMessagesPerConnection = DEFAULT_MAX_MESSAGES_PER_CONNECTION;
+	private long _maxIdleMs = DEFAULT_MAX_IDLE_MS;
+
+	private final Semaphore _permits;
+	private volatile Semaphore _sharedPermits;
+	private volatile String _connectedHost;
+
+	/**
+	 * most recently used first
+	 */
+	private final BlockingDeque<Connection> _idle = new LinkedBlockingDeque<Connection>();
+
+	private Evictor _evictor;
+	private volatile boolean _closed;
+
+	public SmtpTransportPool(@Nonnull Session session, int maxConnections, long acquireTimeoutMs) {
+		if (session == null) {
+			throw new NullPointerException("session");
+		}
+		if (maxConnections <= 0) {
+			throw new IllegalArgumentException("maxConnections must be positive, was " + maxConnections);
+		}
+		_session = session;
+		_maxConnections = maxConnections;
+		_acquireTimeoutMs = acquireTimeoutMs;
+		_permits = new Semaphore(maxConnections, true);
+	}
+
+	/**
+	 * sends mm to recipients, waiting for a free connection if all are in use
+	 */
+	public void send(@Nonnull MimeMessage mm, @Nonnull Address[] recipients) throws MessagingException {
+		MessagingException e = sendAll(Collections.singletonList(mm), Collections.singletonList(recipients))[0];
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	/**
+	 * sends all messages over as few connections as possible, i.e. a new
+	 * connection is only used after maxMessagesPerConnection or a connection
+	 * failure
+	 *
+	 * @return an exception per failed message, null for delivered messages
+	 */
+	@Nonnull
+	public MessagingException[] sendAll(@Nonnull List<? extends MimeMessage> mms, @Nonnull List<Address[]> recipients) {
+		MessagingException[] errors = new MessagingException[mms.size()];
+
+		Semaphore shared;
+		try {
+			shared = acquire();
+		} catch (MessagingException e) {
+			Arrays.fill(errors, e);
+			return errors;
+		}
+
+		try {
+			Connection c = null;
+			try {
+				for (int i = 0; i < errors.length; i++) {
+					if (c == null) {
+						try {
+							c = borrow();
+						} catch (MessagingException e) {
+							Arrays.fill(errors, i, errors.length, e);
+							break;
+						}
+					}
+
+					try {
+						c._transport.sendMessage(mms.get(i), recipients.get(i));
+					} catch (SendFailedException e) {
+						// rejected, failed transactions are reset with next RSET
+						errors[i] = e;
+					} catch (MessagingException e) {
+						// connection might be broken, don't reuse
+						errors[i] = e;
+						c.close();
+						c = null;
+						continue;
+					}
+
+					if (++c._messages >= _maxMessagesPerConnection) {
+						release(c);
+						c = null;
+					}
+				}
+			} finally {
+				if (c != null) {
+					release(c);
+				}
+			}
+		} finally {
+			releasePermits(shared);
+		}
+		return errors;
+	}
+
+	/**
+	 * opens a connection, e.g. to detect misconfiguration early
+	 */
+	public void connect() throws MessagingException {
+		Semaphore shared = acquire();
+		try {
+			release(borrow());
+		} finally {
+			releasePermits(shared);
+		}
+	}
+
+	/**
+	 * closes all idle connections, connections in use are closed when
+	 * released
+	 */
+	public void close() {
+		_closed = true;
+		Connection c;
+		while ((c = _idle.pollFirst()) != null) {
+			c.close();
+		}
+		synchronized (this) {
+			if (_evictor != null) {
+				_evictor.cancel();
+				_evictor = null;
+			}
+		}
+	}
+
+	/**
+	 * closes idle connections that exceeded maxIdleMs
+	 */
+	public void evictIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<Connection> iter = _idle.descendingIterator();
+		while (iter.hasNext()) {
+			Connection c = iter.next();
+			if (now - c._lastUsed > _maxIdleMs && _idle.remove(c)) {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the shared permits acquired, if any
+	 */
+	@CheckForNull
+	private Semaphore acquire() throws MessagingException {
+		long deadline = System.currentTimeMillis() + _acquireTimeoutMs;
+		try {
+			if (!_permits.tryAcquire(_acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+				throw new ThrottledException("timeout waiting for one of " + _maxConnections + " SMTP connections");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("interrupted while waiting for SMTP connection", e);
+		}
+
+		Semaphore shared = _sharedPermits;
+		if (shared != null) {
+			boolean acquired = false;
+			try {
+				acquired = shared.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()),
+						TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MessagingException("interrupted while waiting for SMTP connection", e);
+			} finally {
+				if (!acquired) {
+					_permits.release();
+				}
+			}
+			if (!acquired) {
+				throw new ThrottledException("timeout waiting for shared SMTP connection");
+			}
+		}
+		return shared;
+	}
+
+	private void releasePermits(@CheckForNull Semaphore shared) {
+		if (shared != null) {
+			shared.release();
+		}
+		_permits.release();
+	}
+
+	@Nonnull
+	private Connection borrow() throws MessagingException {
+		long now = System.currentTimeMillis();
+
+		Connection c;
+		while ((c = _idle.pollFirst()) != null) {
+			if (now - c._lastUsed > _maxIdleMs) {
+				c.close();
+			} else if (!c._transport.isConnected()) {
+				// RSET failed
+				log.debug("dropping broken SMTP connection to " + c._transport.getURLName());
+				c.close();
+			} else {
+				return c;
+			}
+		}
+
+		Transport transport = openTransport();
+		URLName url = transport.getURLName();
+		if (url != null && url.getHost() != null) {
+			_connectedHost = url.getHost();
+		}
+		startEviction();
+		return new Connection(transport);
+	}
+
+	/**
+	 * opens a new connection to the server configured in the session, override
+	 * to connect elsewhere
+	 */
+	@Nonnull
+	protected Transport openTransport() throws MessagingException {
+		Transport transport = newTransport();
+		transport.connect();
+		return transport;
+	}
+
+	/**
+	 * @return a new, unconnected transport
+	 */
+	@Nonnull
+	protected Transport newTransport() throws MessagingException {
+		Transport transport = _session.getTransport("smtp");
+		if (transport instanceof SMTPTransport) {
+			// use RSET instead of NOOP for isConnected()
+			((SMTPTransport) transport).setUseRset(true);
+		}
+		return transport;
+	}
+
+	private void release(@Nonnull Connection c) {
+		c._lastUsed = System.currentTimeMillis();
+		if (_closed || c._messages >= _maxMessagesPerConnection) {
+			c.close();
+		} else {
+			_idle.offerFirst(c);
+		}
+	}
+
+	private synchronized void startEviction() {
+		if (_evictor == null) {
+			_evictor = new Evictor(this);
+			_evictor._future = EVICTOR.scheduleWithFixedDelay(_evictor, _maxIdleMs, _maxIdleMs,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public Session getSession() {
+		return _session;
+	}
+
+	public int getMaxConnections() {
+		return _maxConnections;
+	}
+
+	/**
+	 * @return host of the most recently opened connection, null before the
+	 *         first connection
+	 */
+	@CheckForNull
+	public String getConnectedHost() {
+		return _connectedHost;
+	}
+
+	/**
+	 * @return number of connections currently in use
+	 */
+	public int getActive() {
+		return _maxConnections - _permits.availablePermits();
+	}
+
+	/**
+	 * @return number of open connections currently not in use
+	 */
+	public int getIdle() {
+		return _idle.size();
+	}
+
+	public Semaphore getSharedPermits() {
+		return _sharedPermits;
+	}
+
+	/**
+	 * permits shared with other pools, required in addition to the pool's own
+	 * permits for every connection. Changes apply to subsequent sends.
+	 */
+	public SmtpTransportPool setSharedPermits(Semaphore sharedPermits) {
+		_sharedPermits = sharedPermits;
+		return this;
+	}
+
+	public int getMaxMessagesPerConnection() {
+		return _maxMessagesPerConnection;
+	}
+
+	public SmtpTransportPool setMaxMessagesPerConnection(int maxMessagesPerConnection) {
+		if (maxMessagesPerConnection <= 0) {
+			throw new IllegalArgumentException("maxMessagesPerConnection must be positive, was "
+					+ maxMessagesPerConnection);
+		}
+		_maxMessagesPerConnection = maxMessagesPerConnection;
+		return this;
+	}
+
+	public long getMaxIdleMs() {
+		return _maxIdleMs;
+	}
+
+	public SmtpTransportPool setMaxIdleMs(long maxIdleMs) {
+		if (maxIdleMs <= 0) {
+			throw new IllegalArgumentException("maxIdleMs must be positive, was " + maxIdleMs);
+		}
+		_maxIdleMs = maxIdleMs;
+		return this;
+	}
+
+	private static final class Connection {
+		private final Transport _transport;
+		private long _lastUsed = System.currentTimeMillis();
+		private int _messages;
+
+		private Connection(Transport transport) {
+			_transport = transport;
+		}
+
+		private void close() {
+			try {
+				_transport.close();
+			} catch (MessagingException e) {
+				log.debug("failed to close SMTP connection", e);
+			}
+		}
+	}
+
+	/**
+	 * no connection available in time, the mail should be retried later
+	 */
+	public static class ThrottledException extends MessagingException {
+
+		private static final long serialVersionUID = 1L;
+
+		public ThrottledException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * doesn't keep pools from being garbage collected
+	 */
+	private static final class Evictor implements Runnable {
+		private final WeakReference<SmtpTransportPool> _pool;
+		private volatile ScheduledFuture<?> _future;
+
+		private Evictor(SmtpTransportPool pool) {
+			_pool = new WeakReference<SmtpTransportPool>(pool);
+		}
+
+		@Override
+		public void run() {
+			SmtpTransportPool pool = _pool.get();
+			if (pool == null) {
+				cancel();
+			} else {
+				pool.evictIdle();
+			}
+		}
+
+		private void cancel() {
+			ScheduledFuture<?> future = _future;
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+	}
+}
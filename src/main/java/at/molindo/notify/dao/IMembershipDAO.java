@@ -0,0 +1,46 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dao;
+
+import java.util.Set;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * registry of live dispatcher nodes used to assign shards of the push queue.
+ * Members have to renew their membership by calling
+ * {@link #heartbeat(String, long)} before it expires.
+ */
+public interface IMembershipDAO {
+
+	/**
+	 * registers or renews membership of memberId for ttlMs
+	 */
+	void heartbeat(@Nonnull String memberId, @Nonnegative long ttlMs);
+
+	/**
+	 * removes membership of memberId immediately
+	 */
+	void leave(@Nonnull String memberId);
+
+	/**
+	 * @return ids of all members with unexpired membership
+	 */
+	@Nonnull
+	Set<String> getMembers();
+}
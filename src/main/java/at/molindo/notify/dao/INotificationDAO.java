@@ -16,15 +16,18 @@
 
 package at.molindo.notify.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
 import at.molindo.notify.model.Notification;
 import at.molindo.notify.model.Notification.Type;
+import at.molindo.notify.model.PushChannelPreferences.Frequency;
 import at.molindo.notify.model.PushState;
 
 public interface INotificationDAO {
@@ -33,6 +36,11 @@ public interface INotificationDAO {
 
 	void update(@Nonnull Notification notification);
 
+	/**
+	 * update all notifications in a single round trip if possible
+	 */
+	void updateAll(@Nonnull Collection<Notification> notifications);
+
 	void delete(@Nonnull Notification notification);
 
 	/**
@@ -49,8 +57,45 @@ public interface INotificationDAO {
 	/**
 	 * @return next notification from push queue
 	 */
+	@CheckForNull
 	Notification getNext();
 
+	/**
+	 * Claims up to max due notifications with {@link PushState#QUEUED} that
+	 * aren't claimed by any worker or whose lease already expired. Claimed
+	 * notifications are stamped with workerId as lease owner and now + leaseMs
+	 * as lease expiry atomically, i.e. concurrent calls (from any number of
+	 * processes sharing the same storage) never return the same notification
+	 * while its lease is valid.
+	 *
+	 * @return claimed notifications, oldest pushDate first
+	 */
+	@Nonnull
+	List<Notification> getNextBatch(@Nonnegative int max, @Nonnull String workerId, @Nonnegative long leaseMs);
+
+	/**
+	 * @return notifications with from &lt;= date &lt; to, ordered by userId and
+	 *         date (digest)
+	 */
+	@Nonnull
+	List<Notification> getByDate(@Nonnull Date from, @Nonnull Date to, @Nonnegative int first, @Nonnegative int count);
+
+	/**
+	 * Claims the digest window of frequency starting at windowStart for
+	 * workerId. Only a single call per frequency and window returns true, also
+	 * across processes sharing the same storage.
+	 *
+	 * @return true if the window wasn't claimed before
+	 */
+	boolean claimDigest(@Nonnull Frequency frequency, @Nonnull Date windowStart, @Nonnull String workerId);
+
+	/**
+	 * @return start of the latest claimed digest window of frequency or null
+	 * @see #claimDigest(Frequency, Date, String)
+	 */
+	@CheckForNull
+	Date getLastDigest(@Nonnull Frequency frequency);
+
 	/**
 	 * @return recent notifications for userId (pull)
 	 */
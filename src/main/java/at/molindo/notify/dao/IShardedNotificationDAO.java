@@ -0,0 +1,46 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dao;
+
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import at.molindo.notify.model.Notification;
+
+/**
+ * notification storage partitioned by user
+ *
+ * @see at.molindo.notify.util.NotifyUtils#shard(String, int)
+ */
+public interface IShardedNotificationDAO extends INotificationDAO {
+
+	/**
+	 * same as {@link #getNextBatch(int, String, long)} but only claims
+	 * notifications of users in one of shards
+	 *
+	 * @param shardCount
+	 *            total number of shards
+	 * @param shards
+	 *            shards to claim notifications from
+	 */
+	@Nonnull
+	List<Notification> getNextBatch(@Nonnegative int max, @Nonnull String workerId, @Nonnegative long leaseMs,
+			int shardCount, @Nonnull Set<Integer> shards);
+}
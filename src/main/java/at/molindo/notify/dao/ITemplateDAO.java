@@ -17,14 +17,28 @@
 package at.molindo.notify.dao;
 
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 
 import at.molindo.notify.model.Template;
+import at.molindo.notify.model.TemplateIndex;
 
 public interface ITemplateDAO {
 
 	@Nonnull
 	List<Template> findTemplates(@Nonnull String key);
 
+	/**
+	 * @return index of all templates for key, built when templates are loaded
+	 */
+	@Nonnull
+	TemplateIndex findIndex(@Nonnull String key);
+
+	/**
+	 * @return keys of all available templates
+	 */
+	@Nonnull
+	Set<String> findKeys();
+
 }
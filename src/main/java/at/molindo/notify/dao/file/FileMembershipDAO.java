@@ -0,0 +1,116 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dao.file;
+
+import static at.molindo.utils.collections.ArrayUtils.iterable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+
+import at.molindo.notify.dao.IMembershipDAO;
+import at.molindo.utils.data.StringUtils;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * membership for dispatchers sharing a directory, e.g. on a network file
+ * system. Each member keeps a file containing its expiry and id.
+ */
+public class FileMembershipDAO implements IMembershipDAO {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(FileMembershipDAO.class);
+
+	private static final String SUFFIX = ".member";
+
+	private File _baseDir;
+
+	@Override
+	public void heartbeat(String memberId, long ttlMs) {
+		File file = toFile(memberId);
+		String content = (System.currentTimeMillis() + ttlMs) + "\n" + memberId;
+		try {
+			File tmp = File.createTempFile(file.getName(), ".tmp", _baseDir);
+			try {
+				Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp.toPath());
+			}
+		} catch (IOException e) {
+			// membership will expire
+			log.warn("failed to write membership file " + file, e);
+		}
+	}
+
+	@Override
+	public void leave(String memberId) {
+		File file = toFile(memberId);
+		if (file.exists() && !file.delete()) {
+			log.warn("failed to delete membership file " + file);
+		}
+	}
+
+	@Override
+	public Set<String> getMembers() {
+		long now = System.currentTimeMillis();
+
+		ImmutableSet.Builder<String> members = ImmutableSet.builder();
+		for (File file : iterable(_baseDir.listFiles())) {
+			if (!file.getName().endsWith(SUFFIX)) {
+				continue;
+			}
+			try {
+				String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+				int nl = content.indexOf('\n');
+				if (nl > 0 && Long.parseLong(content.substring(0, nl)) > now) {
+					members.add(content.substring(nl + 1));
+				}
+			} catch (IOException e) {
+				log.warn("failed to read membership file " + file, e);
+			} catch (NumberFormatException e) {
+				log.warn("illegal membership file " + file + ": " + e.getMessage());
+			}
+		}
+		return members.build();
+	}
+
+	private File toFile(String memberId) {
+		if (StringUtils.empty(memberId)) {
+			throw new IllegalArgumentException("memberId must not be empty");
+		}
+		String name = BaseEncoding.base32Hex().omitPadding().encode(memberId.getBytes(StandardCharsets.UTF_8));
+		return new File(_baseDir, name + SUFFIX);
+	}
+
+	public File getBaseDir() {
+		return _baseDir;
+	}
+
+	public void setBaseDir(File baseDir) {
+		if (baseDir != null && !baseDir.isDirectory()) {
+			throw new IllegalArgumentException("baseDir not a directory: " + baseDir);
+		}
+		_baseDir = baseDir;
+	}
+
+}
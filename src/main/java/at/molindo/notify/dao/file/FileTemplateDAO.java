@@ -20,26 +20,56 @@ import static at.molindo.utils.collections.ArrayUtils.iterable;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
 import at.molindo.notify.dao.ITemplateDAO;
 import at.molindo.notify.model.Template;
+import at.molindo.notify.model.TemplateIndex;
 import at.molindo.notify.render.IRenderService.Type;
 import at.molindo.notify.render.IRenderService.Version;
+import at.molindo.utils.collections.ListMap;
 import at.molindo.utils.io.Compression;
 import at.molindo.utils.io.FileUtils;
 import at.molindo.utils.io.StreamUtils;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
-public class FileTemplateDAO implements ITemplateDAO {
+/**
+ * templates stored as baseDir/key/version.locale.type (e.g.
+ * baseDir/welcome/long.en.html). Templates are kept in memory, changes are
+ * picked up by watching the directories for changes and by rescanning
+ * periodically as a fallback. Only changed files are read again.
+ */
+public class FileTemplateDAO implements ITemplateDAO, InitializingBean, DisposableBean {
 
 	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(FileTemplateDAO.class);
 
+	private static final long DEFAULT_RESCAN_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * time to wait for further events before rescanning
+	 */
+	private static final long DEBOUNCE_MS = 100;
+
 	/**
 	 *
 	 * requires file names being long.en.txt
@@ -77,33 +107,133 @@ public class FileTemplateDAO implements ITemplateDAO {
 	}
 
 	private File _baseDir;
+	private boolean _watch = true;
+	private long _rescanIntervalMs = DEFAULT_RESCAN_INTERVAL_MS;
+
+	private volatile Map<String, TemplateIndex> _index;
+	private volatile long _lastScan;
+
+	/**
+	 * guarded by this
+	 */
+	private Map<File, Entry> _files = Maps.newHashMap();
+
+	private volatile Watcher _watcher;
+
+	@Override
+	public void afterPropertiesSet() throws IOException {
+		if (_baseDir == null) {
+			throw new IllegalStateException("baseDir not configured");
+		}
+		if (_watch) {
+			// before the initial scan, which registers all key directories
+			_watcher = new Watcher();
+		}
+		rescan();
+		if (_watcher != null) {
+			_watcher.start();
+		}
+	}
+
+	@Override
+	public void destroy() {
+		Watcher watcher = _watcher;
+		if (watcher != null) {
+			_watcher = null;
+			watcher.close();
+		}
+	}
 
 	@Override
 	public List<Template> findTemplates(String key) {
-		List<Template> templates = Lists.newArrayList();
-		;
+		List<Template> templates = findIndex(key).getTemplates();
+		List<Template> copy = Lists.newArrayListWithCapacity(templates.size());
+		for (Template template : templates) {
+			copy.add(template.clone());
+		}
+		return copy;
+	}
+
+	@Override
+	public TemplateIndex findIndex(String key) {
+		TemplateIndex index = index().get(key);
+		return index == null ? TemplateIndex.empty() : index;
+	}
 
-		File keyDir = new File(_baseDir, key);
-		if (!keyDir.isDirectory()) {
-			return templates;
+	@Override
+	public Set<String> findKeys() {
+		return Sets.newHashSet(index().keySet());
+	}
+
+	private Map<String, TemplateIndex> index() {
+		Map<String, TemplateIndex> index = _index;
+		if (index == null || _watcher == null && System.currentTimeMillis() - _lastScan >= _rescanIntervalMs) {
+			// not initialized or not watching
+			index = rescan();
 		}
+		return index;
+	}
 
-		for (File template : iterable(keyDir.listFiles())) {
-			Matcher m = PATTERN.matcher(template.getName());
-			if (m.matches()) {
-				try {
-					templates.add(new Template().setKey(key).setVersion(Version.valueOf(m.group(1).toUpperCase()))
-							.setLocale(m.group(2) == null ? null : new Locale(m.group(2)))
-							.setType(Type.valueOf(m.group(3).toUpperCase()))
-							.setLastModified(new Date(template.lastModified()))
-							.setContent(StreamUtils.string(FileUtils.in(template, Compression.NONE))));
-				} catch (IOException e) {
-					log.warn("failed to read template from " + template, e);
+	/**
+	 * lists all template files, reading new and modified files only
+	 *
+	 * @return the new index
+	 */
+	public synchronized Map<String, TemplateIndex> rescan() {
+		Map<File, Entry> files = Maps.newHashMap();
+		ListMap<String, Template> index = ListMap.newListMap();
+
+		for (File keyDir : iterable(_baseDir.listFiles())) {
+			if (!keyDir.isDirectory()) {
+				continue;
+			}
+			String key = keyDir.getName();
+
+			Watcher watcher = _watcher;
+			if (watcher != null) {
+				watcher.register(keyDir);
+			}
+
+			for (File file : iterable(keyDir.listFiles())) {
+				Matcher m = PATTERN.matcher(file.getName());
+				if (!m.matches()) {
+					continue;
+				}
+
+				Entry entry = _files.get(file);
+				if (entry == null || !entry.isCurrent(file)) {
+					entry = read(key, file, m);
+				}
+				if (entry != null) {
+					files.put(file, entry);
+					index.add(key, entry._template);
 				}
 			}
 		}
 
-		return templates;
+		ImmutableMap.Builder<String, TemplateIndex> builder = ImmutableMap.builder();
+		for (Map.Entry<String, List<Template>> e : index.entrySet()) {
+			builder.put(e.getKey(), TemplateIndex.of(e.getValue()));
+		}
+
+		_files = files;
+		_lastScan = System.currentTimeMillis();
+		return _index = builder.build();
+	}
+
+	private static Entry read(String key, File file, Matcher m) {
+		long lastModified = file.lastModified();
+		long length = file.length();
+		try {
+			Template template = new Template().setKey(key).setVersion(Version.valueOf(m.group(1).toUpperCase()))
+					.setLocale(m.group(2) == null ? null : new Locale(m.group(2)))
+					.setType(Type.valueOf(m.group(3).toUpperCase())).setLastModified(new Date(lastModified))
+					.setContent(StreamUtils.string(FileUtils.in(file, Compression.NONE)));
+			return new Entry(template, lastModified, length);
+		} catch (IOException e) {
+			log.warn("failed to read template from " + file, e);
+			return null;
+		}
 	}
 
 	public File getBaseDir() {
@@ -117,4 +247,117 @@ public class FileTemplateDAO implements ITemplateDAO {
 		_baseDir = baseDir;
 	}
 
+	public boolean isWatch() {
+		return _watch;
+	}
+
+	/**
+	 * watch directories for changes (default), otherwise rescan on access
+	 * after rescanIntervalMs
+	 */
+	public void setWatch(boolean watch) {
+		_watch = watch;
+	}
+
+	public long getRescanIntervalMs() {
+		return _rescanIntervalMs;
+	}
+
+	/**
+	 * interval between full rescans, in case file system events are missed. 0
+	 * to only rely on events when watching or to rescan on every access
+	 * otherwise.
+	 */
+	public void setRescanIntervalMs(long rescanIntervalMs) {
+		_rescanIntervalMs = rescanIntervalMs;
+	}
+
+	private static final class Entry {
+		private final Template _template;
+		private final long _lastModified;
+		private final long _length;
+
+		private Entry(Template template, long lastModified, long length) {
+			_template = template;
+			_lastModified = lastModified;
+			_length = length;
+		}
+
+		private boolean isCurrent(File file) {
+			return file.lastModified() == _lastModified && file.length() == _length;
+		}
+	}
+
+	/**
+	 * rescans after changes in baseDir or any key directory
+	 */
+	private final class Watcher extends Thread {
+
+		private final WatchService _service;
+		private final Set<Path> _registered = Sets.newConcurrentHashSet();
+
+		private Watcher() throws IOException {
+			super(FileTemplateDAO.class.getSimpleName() + "-watcher");
+			setDaemon(true);
+			_service = FileSystems.getDefault().newWatchService();
+			register(_baseDir);
+		}
+
+		private void register(File dir) {
+			Path path = dir.toPath();
+			if (_registered.add(path)) {
+				try {
+					path.register(_service, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				} catch (IOException e) {
+					_registered.remove(path);
+					log.warn("failed to watch template directory " + dir, e);
+				} catch (ClosedWatchServiceException e) {
+					// closing
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					WatchKey key = _rescanIntervalMs > 0 ? _service.poll(_rescanIntervalMs, TimeUnit.MILLISECONDS)
+							: _service.take();
+					while (key != null) {
+						key.pollEvents();
+						if (!key.reset()) {
+							// directory deleted
+							_registered.remove(key.watchable());
+						}
+						key = _service.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+					}
+					rescan();
+				}
+			} catch (InterruptedException e) {
+				// closing
+			} catch (ClosedWatchServiceException e) {
+				// closing
+			} catch (RuntimeException e) {
+				log.error("watching templates failed, rescanning on access", e);
+				_watcher = null;
+			} finally {
+				// no-op if closed already
+				closeService();
+			}
+		}
+
+		private void close() {
+			closeService();
+			interrupt();
+		}
+
+		private void closeService() {
+			try {
+				_service.close();
+			} catch (IOException e) {
+				log.warn("failed to close watch service", e);
+			}
+		}
+	}
 }
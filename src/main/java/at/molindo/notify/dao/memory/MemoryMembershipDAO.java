@@ -0,0 +1,63 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dao.memory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import at.molindo.notify.dao.IMembershipDAO;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * membership for dispatchers running in the same JVM
+ */
+public class MemoryMembershipDAO implements IMembershipDAO {
+
+	private final ConcurrentMap<String, Long> _members = Maps.newConcurrentMap();
+
+	@Override
+	public void heartbeat(String memberId, long ttlMs) {
+		_members.put(memberId, System.currentTimeMillis() + ttlMs);
+	}
+
+	@Override
+	public void leave(String memberId) {
+		_members.remove(memberId);
+	}
+
+	@Override
+	public Set<String> getMembers() {
+		long now = System.currentTimeMillis();
+
+		ImmutableSet.Builder<String> members = ImmutableSet.builder();
+		Iterator<Map.Entry<String, Long>> iter = _members.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Long> e = iter.next();
+			if (e.getValue() > now) {
+				members.add(e.getKey());
+			} else {
+				_members.remove(e.getKey(), e.getValue());
+			}
+		}
+		return members.build();
+	}
+
+}
@@ -18,16 +18,22 @@ package at.molindo.notify.dao.memory;
 
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 
 import at.molindo.notify.dao.ITemplateDAO;
 import at.molindo.notify.model.Template;
+import at.molindo.notify.model.TemplateIndex;
 import at.molindo.utils.collections.ListMap;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 public class MemoryTemplateDAO implements ITemplateDAO {
 
 	private final ListMap<String, Template> _templates = ListMap.newListMap();
+	private volatile Map<String, TemplateIndex> _indexes = ImmutableMap.of();
 
 	@Override
 	public List<Template> findTemplates(String key) {
@@ -46,12 +52,34 @@ public class MemoryTemplateDAO implements ITemplateDAO {
 		}
 	}
 
+	@Override
+	public TemplateIndex findIndex(String key) {
+		TemplateIndex index = _indexes.get(key);
+		return index == null ? TemplateIndex.empty() : index;
+	}
+
+	@Override
+	public Set<String> findKeys() {
+		synchronized (_templates) {
+			return Sets.newHashSet(_templates.keySet());
+		}
+	}
+
 	public void setTemplates(List<Template> templates) {
 		synchronized (_templates) {
 			_templates.clear();
+			ImmutableMap.Builder<String, TemplateIndex> indexes = ImmutableMap.builder();
 			for (Template template : templates) {
 				_templates.add(template.getKey(), template);
 			}
+			for (Map.Entry<String, List<Template>> e : _templates.entrySet()) {
+				List<Template> copies = Lists.newArrayListWithCapacity(e.getValue().size());
+				for (Template template : e.getValue()) {
+					copies.add(template.clone());
+				}
+				indexes.put(e.getKey(), TemplateIndex.of(copies));
+			}
+			_indexes = indexes.build();
 		}
 	}
 }
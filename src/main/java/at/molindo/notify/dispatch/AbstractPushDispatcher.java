@@ -16,11 +16,15 @@
 
 package at.molindo.notify.dispatch;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import org.springframework.beans.factory.InitializingBean;
@@ -45,6 +49,7 @@ import at.molindo.utils.data.ExceptionUtils;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -53,6 +58,7 @@ public abstract class AbstractPushDispatcher implements IPushDispatcher, Initial
 	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(AbstractPushDispatcher.class);
 
 	private static final int DEFAULT_MAX_ERROR = 3;
+	private static final long DEFAULT_MAX_DEFER_MS = TimeUnit.DAYS.toMillis(1);
 
 	private Set<IPushChannel> _pushChannels = new CopyOnWriteArraySet<IPushChannel>();
 	private IErrorListener _errorListener;
@@ -62,6 +68,10 @@ public abstract class AbstractPushDispatcher implements IPushDispatcher, Initial
 	private INotificationDAO _notificationDAO;
 
 	private int _maxErrorCount = DEFAULT_MAX_ERROR;
+	private long _maxDeferMs = DEFAULT_MAX_DEFER_MS;
+
+	private PushPipeline _pipeline;
+	private volatile DigestPushDispatcher _digestDispatcher;
 
 	@Override
 	public void afterPropertiesSet() {
@@ -78,95 +88,13 @@ public abstract class AbstractPushDispatcher implements IPushDispatcher, Initial
 
 	@Nonnull
 	private PushResultMessage push(@Nonnull Notification notification, boolean ignoreFrequency) {
-		IPreferences prefs;
-
-		final String unknownChannel = notification.getParams().get(INotifyService.NOTIFY_UNKNOWN);
-		if (unknownChannel != null) {
-			prefs = new Preferences().setUserId(notification.getUserId());
-		} else {
-			prefs = _preferencesDAO.getPreferences(notification.getUserId());
-		}
-
-		if (prefs == null) {
-			log.warn("can't push to unknown user " + notification.getUserId());
-			return PushResultMessage.persistent("unknown user " + notification.getUserId());
-		}
-
-		Set<String> successChannels = Sets.newHashSet();
-		Map<String, String> temporaryChannels = Maps.newHashMap();
-		Map<String, String> persistentChannels = Maps.newHashMap();
-
-		Iterable<IPushChannel> channels = Iterables.filter(_pushChannels, new Predicate<IPushChannel>() {
-
-			@Override
-			public boolean apply(IPushChannel channel) {
-				return unknownChannel == null || channel.getId().equals(unknownChannel);
-			}
-		});
-
-		for (IPushChannel channel : channels) {
-			try {
-				pushChannel(channel, prefs, notification, ignoreFrequency);
-				successChannels.add(channel.getId());
-			} catch (PushException e) {
-				if (e.isTemporaryError()) {
-					temporaryChannels.put(channel.getId(), e.getMessage());
-				} else {
-					persistentChannels.put(channel.getId(), e.getMessage());
-				}
-				if (_errorListener != null) {
-					_errorListener.error(notification, channel, e);
-				} else {
-					log.info("failed to deliver notification " + notification + " on channel " + channel.getId() + ": "
-							+ ExceptionUtils.getAllMessages(e));
-				}
-			} catch (RenderException e) {
-				log.error("failed to render notification " + notification, e);
-				temporaryChannels.put(channel.getId(), ExceptionUtils.getAllMessages(e));
-			}
-		}
-
-		if (successChannels.size() > 0) {
-			return PushResultMessage.success("channels: " + successChannels);
-		} else if (temporaryChannels.size() > 0) {
-			return PushResultMessage.temporary("temporary error, channels: " + temporaryChannels);
-		} else if (persistentChannels.size() > 0) {
-			return PushResultMessage.persistent("persistent error, channels: " + persistentChannels);
-		} else {
-			return PushResultMessage.temporary("no allowed channels available");
-		}
-	}
-
-	private void pushChannel(IPushChannel channel, IPreferences prefs, Notification notification,
-			boolean ignoreFrequency) throws PushException, RenderException {
-
-		IPushChannelPreferences cPrefs = prefs.getChannelPrefs().get(channel.getId());
-		if (cPrefs == null) {
-			cPrefs = channel.newDefaultPreferences();
-			if (cPrefs == null) {
-				// don't flood user after he configures this channel
-				throw new PushException("channel not configured for user", false);
+		PushJob job = new PushJob(this, notification, ignoreFrequency);
+		if (job.resolve()) {
+			for (IPushChannel channel : job.getChannels()) {
+				job.push(channel);
 			}
 		}
-
-		if (!channel.getNotificationTypes().contains(notification.getType())) {
-			// channel not applicable for type
-			throw new PushException("channel not applicable for type " + notification.getType(), false);
-		}
-
-		Dispatch dispatch = _dispatchService.create(notification, prefs, cPrefs);
-
-		if (!channel.isConfigured(dispatch.getParams())) {
-			// don't flood user after he configures this channel
-			throw new PushException("channel not configured for user", false);
-		}
-
-		if (!ignoreFrequency && !Frequency.INSTANT.equals(cPrefs.getFrequency())) {
-			// temporary as other dispatcher will handle this
-			throw new PushException("channel not configured for this frequency", true);
-		}
-
-		channel.push(dispatch);
+		return job.result();
 	}
 
 	@Override
@@ -182,6 +110,45 @@ public abstract class AbstractPushDispatcher implements IPushDispatcher, Initial
 		}
 	}
 
+	/**
+	 * dispatches all notifications and records all attempts with a single
+	 * {@link INotificationDAO#updateAll(Collection)}. Notifications failing
+	 * with unexpected exceptions aren't updated, they will be dispatched again
+	 * after their lease expired. Notifications are skipped once their lease
+	 * expired as they might be claimed by another dispatcher already.
+	 */
+	protected void dispatchAll(@Nonnull Collection<Notification> notifications) {
+		List<Notification> attempted = Lists.newArrayListWithCapacity(notifications.size());
+		List<PushJob> jobs = Lists.newArrayListWithCapacity(notifications.size());
+		for (Notification notification : notifications) {
+			if (notification.isLeaseExpired(System.currentTimeMillis())) {
+				log.warn("lease expired before dispatch, consider increasing lease duration: " + notification);
+				continue;
+			}
+			if (_pipeline != null) {
+				jobs.add(new PushJob(this, notification, false));
+				continue;
+			}
+			try {
+				recordPushAttempt(notification, push(notification, false));
+				attempted.add(notification);
+			} catch (RuntimeException e) {
+				log.error("failed to dispatch notification " + notification, e);
+			}
+		}
+
+		if (jobs.size() > 0) {
+			for (PushJob job : _pipeline.pushAll(jobs)) {
+				recordPushAttempt(job.getNotification(), job.result());
+				attempted.add(job.getNotification());
+			}
+		}
+
+		if (attempted.size() > 0) {
+			_notificationDAO.updateAll(attempted);
+		}
+	}
+
 	/**
 	 *
 	 * @param notification
@@ -198,6 +165,7 @@ public abstract class AbstractPushDispatcher implements IPushDispatcher, Initial
 			throw new NotifyException("failed to dispatch now: " + notification + " (" + rm.getMessage() + ")");
 		} else {
 			recordPushAttempt(notification, rm);
+			_notificationDAO.update(notification);
 		}
 	}
 
@@ -207,6 +175,11 @@ public abstract class AbstractPushDispatcher implements IPushDispatcher, Initial
 			notification.setPushState(PushState.PUSHED);
 			notification.setPushDate(new Date());
 			notification.setPushErrorMessage(rm.getMessage());
+		} else if (rm.getResult() == PushResult.DEFERRED && !isDeferredTooLong(notification)) {
+			// throttled, retry without counting as error
+			notification.setPushState(PushState.QUEUED);
+			notification.setPushDate(new Date(System.currentTimeMillis() + rm.getDeferMs()));
+			notification.setPushErrorMessage(rm.getMessage());
 		} else {
 			int errorCount = notification.recordPushError(rm.getMessage());
 
@@ -220,7 +193,17 @@ public abstract class AbstractPushDispatcher implements IPushDispatcher, Initial
 
 		}
 
-		_notificationDAO.update(notification);
+		notification.setLeaseOwner(null).setLeaseExpires(null);
+	}
+
+	/**
+	 * @return true if notification is older than maxDeferMs, i.e. deferrals
+	 *         count as errors to not retry forever (e.g. 452 for a mailbox over
+	 *         quota)
+	 */
+	private boolean isDeferredTooLong(Notification notification) {
+		Date date = notification.getDate();
+		return date != null && System.currentTimeMillis() - date.getTime() > _maxDeferMs;
 	}
 
 	private long waitAfter(final int errorCount) {
@@ -273,10 +256,39 @@ public abstract class AbstractPushDispatcher implements IPushDispatcher, Initial
 		_maxErrorCount = maxErrorCount;
 	}
 
+	/**
+	 * age of a notification after which deferrals count as errors
+	 */
+	public void setMaxDeferMs(long maxDeferMs) {
+		_maxDeferMs = maxDeferMs;
+	}
+
 	public void setNotificationDAO(INotificationDAO notificationDAO) {
 		_notificationDAO = notificationDAO;
 	}
 
+	/**
+	 * optional, pushes batches passed to {@link #dispatchAll(Collection)}
+	 * through separate stages for rendering and delivery
+	 */
+	public void setPipeline(PushPipeline pipeline) {
+		_pipeline = pipeline;
+	}
+
+	/**
+	 * set by the {@link DigestPushDispatcher} delivering notifications of
+	 * channels not configured for {@link Frequency#INSTANT}. Without one,
+	 * they fail temporarily and are retried.
+	 */
+	void setDigestDispatcher(DigestPushDispatcher digestDispatcher) {
+		_digestDispatcher = digestDispatcher;
+	}
+
+	@CheckForNull
+	protected DigestPushDispatcher getDigestDispatcher() {
+		return _digestDispatcher;
+	}
+
 	protected Set<IPushChannel> getPushChannels() {
 		return _pushChannels;
 	}
@@ -301,34 +313,52 @@ public abstract class AbstractPushDispatcher implements IPushDispatcher, Initial
 		return _maxErrorCount;
 	}
 
+	protected long getMaxDeferMs() {
+		return _maxDeferMs;
+	}
+
+	protected PushPipeline getPipeline() {
+		return _pipeline;
+	}
+
 	protected enum PushResult {
-		SUCCESS, TEMPORARY_ERROR, PERSISTENT_ERROR;
+		SUCCESS, DEFERRED, TEMPORARY_ERROR, PERSISTENT_ERROR;
 	}
 
 	protected static class PushResultMessage {
 
-		private static PushResultMessage success(String message) {
+		static PushResultMessage success(String message) {
 			return new PushResultMessage(message, PushResult.SUCCESS);
 		}
 
-		private static PushResultMessage persistent(String message) {
+		static PushResultMessage persistent(String message) {
 			return new PushResultMessage(message, PushResult.PERSISTENT_ERROR);
 		}
 
-		private static PushResultMessage temporary(String message) {
+		static PushResultMessage temporary(String message) {
 			return new PushResultMessage(message, PushResult.TEMPORARY_ERROR);
 		}
 
+		static PushResultMessage deferred(String message, long deferMs) {
+			return new PushResultMessage(message, PushResult.DEFERRED, deferMs);
+		}
+
 		private final String _message;
 		private final PushResult _result;
+		private final long _deferMs;
 
 		private PushResultMessage(String message, PushResult result) {
+			this(message, result, 0);
+		}
+
+		private PushResultMessage(String message, PushResult result, long deferMs) {
 			if (result == null) {
 				throw new NullPointerException("result");
 			}
 
 			_message = message;
 			_result = result;
+			_deferMs = deferMs;
 		}
 
 		public String getMessage() {
@@ -339,6 +369,14 @@ public abstract class AbstractPushDispatcher implements IPushDispatcher, Initial
 			return _result;
 		}
 
+		/**
+		 * @return time to wait before next attempt if result is
+		 *         {@link PushResult#DEFERRED}
+		 */
+		public long getDeferMs() {
+			return _deferMs;
+		}
+
 		@Override
 		public String toString() {
 			return _result + " (" + _message + ")";
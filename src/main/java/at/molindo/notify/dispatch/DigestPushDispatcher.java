@@ -0,0 +1,483 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dispatch;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.SmartLifecycle;
+
+import at.molindo.notify.INotifyService;
+import at.molindo.notify.channel.IPushChannel;
+import at.molindo.notify.channel.IPushChannel.PushException;
+import at.molindo.notify.model.Dispatch;
+import at.molindo.notify.model.IPreferences;
+import at.molindo.notify.model.IPushChannelPreferences;
+import at.molindo.notify.model.Notification;
+import at.molindo.notify.model.Notification.Type;
+import at.molindo.notify.model.Param;
+import at.molindo.notify.model.PushChannelPreferences.Frequency;
+import at.molindo.notify.render.IRenderService.RenderException;
+import at.molindo.notify.util.AbstractSmartLifecycle;
+import at.molindo.utils.concurrent.FactoryThread;
+import at.molindo.utils.concurrent.FactoryThread.FactoryThreadGroup;
+import at.molindo.utils.data.ExceptionUtils;
+import at.molindo.utils.net.DnsUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * delivers notifications to channels configured for {@link Frequency#DAILY},
+ * {@link Frequency#WEEKLY} or {@link Frequency#MONTHLY}. At the end of each
+ * window, all notifications of a user created within the window are rendered
+ * as a single notification using the digest template (see
+ * {@link #setDigestKey(String)}) and pushed once per channel.
+ *
+ * Windows are claimed through {@link
+ * at.molindo.notify.dao.INotificationDAO#claimDigest(Frequency, Date, String)},
+ * so any number of dispatchers may share the same storage while each digest is
+ * sent once. After a (re)start, dispatching resumes with the window
+ * following the latest claimed one. A window claimed by a dispatcher that
+ * fails while digesting isn't repeated.
+ */
+public class DigestPushDispatcher extends AbstractPushDispatcher implements DisposableBean, SmartLifecycle {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(DigestPushDispatcher.class);
+
+	/**
+	 * {@link List} of {@link Notification}s in digest
+	 */
+	public static final Param<Object> DIGEST_NOTIFICATIONS = Param.pObject("digestNotifications");
+	public static final Param<String> DIGEST_FREQUENCY = Param.pString("digestFrequency");
+	public static final Param<Object> DIGEST_FROM = Param.pObject("digestFrom");
+	public static final Param<Object> DIGEST_TO = Param.pObject("digestTo");
+
+	private static final String DEFAULT_DIGEST_KEY = "digest";
+	private static final int DEFAULT_PAGE_SIZE = 500;
+
+	private static final Frequency[] DIGEST_FREQUENCIES = { Frequency.DAILY, Frequency.WEEKLY, Frequency.MONTHLY };
+
+	private String _digestKey = DEFAULT_DIGEST_KEY;
+	private TimeZone _timeZone = TimeZone.getDefault();
+	private int _pageSize = DEFAULT_PAGE_SIZE;
+	private String _workerId = DnsUtils.getLocalHostName() + "-" + UUID.randomUUID();
+	private AbstractPushDispatcher _pushDispatcher;
+
+	/**
+	 * start of current window per frequency, only accessed by scheduler
+	 * thread while running
+	 */
+	private final EnumMap<Frequency, Date> _windowStart = new EnumMap<Frequency, Date>(Frequency.class);
+
+	private final Object _wait = new Object();
+	private FactoryThreadGroup _threadGroup;
+
+	private final Lifecycle _lifecycle = new Lifecycle();
+
+	@Override
+	public void afterPropertiesSet() {
+		super.afterPropertiesSet();
+		if (getPreferencesDAO() == null) {
+			throw new IllegalStateException("no preferencesDAO configured");
+		}
+		if (_pushDispatcher == null) {
+			throw new IllegalStateException("no pushDispatcher configured");
+		}
+		_pushDispatcher.setDigestDispatcher(this);
+		_threadGroup = new FactoryThread.FactoryThreadGroup(DigestPushDispatcher.class.getSimpleName(), 1,
+				new FactoryThread.IRunnableFactory() {
+
+					@Override
+					public Runnable newRunnable() {
+						return new Scheduler();
+					}
+				});
+	}
+
+	@Override
+	public void destroy() {
+		stop();
+		if (_pushDispatcher != null) {
+			_pushDispatcher.setDigestDispatcher(null);
+		}
+	}
+
+	/**
+	 * pushes digests of all notifications with from &lt;= date &lt; to to
+	 * all channels configured for frequency
+	 *
+	 * @return number of pushed digests
+	 */
+	public int digest(@Nonnull Frequency frequency, @Nonnull Date from, @Nonnull Date to) {
+		if (frequency == Frequency.INSTANT) {
+			throw new IllegalArgumentException("no digest for frequency " + frequency);
+		}
+
+		int pushed = 0;
+
+		String userId = null;
+		List<Notification> pending = Lists.newArrayList();
+
+		int first = 0;
+		List<Notification> page;
+		do {
+			// ordered by user
+			page = getNotificationDAO().getByDate(from, to, first, _pageSize);
+			for (Notification notification : page) {
+				if (!notification.getUserId().equals(userId)) {
+					if (userId != null) {
+						pushed += digest(frequency, from, to, userId, pending);
+					}
+					userId = notification.getUserId();
+					pending = Lists.newArrayList();
+				}
+				if (notification.getParams().get(INotifyService.NOTIFY_UNKNOWN) == null) {
+					pending.add(notification);
+				}
+			}
+			first += page.size();
+		} while (page.size() == _pageSize);
+
+		if (userId != null) {
+			pushed += digest(frequency, from, to, userId, pending);
+		}
+
+		log.info("pushed " + pushed + " " + frequency + " digests for " + from + " - " + to);
+
+		return pushed;
+	}
+
+	private int digest(Frequency frequency, Date from, Date to, String userId, List<Notification> notifications) {
+		if (notifications.size() == 0) {
+			return 0;
+		}
+
+		IPreferences prefs = getPreferencesDAO().getPreferences(userId);
+		if (prefs == null) {
+			log.debug("no digest for unknown user " + userId);
+			return 0;
+		}
+
+		int pushed = 0;
+		for (IPushChannel channel : getPushChannels()) {
+			IPushChannelPreferences cPrefs = prefs.getChannelPrefs().get(channel.getId());
+			if (cPrefs == null || cPrefs.getFrequency() != frequency) {
+				continue;
+			}
+
+			List<Notification> applicable = Lists.newArrayListWithCapacity(notifications.size());
+			Type type = Type.PUBLIC;
+			for (Notification notification : notifications) {
+				if (channel.getNotificationTypes().contains(notification.getType())) {
+					applicable.add(notification);
+					if (notification.getType() == Type.PRIVATE) {
+						type = Type.PRIVATE;
+					}
+				}
+			}
+			if (applicable.size() == 0) {
+				continue;
+			}
+
+			Notification digest = new Notification().setUserId(userId).setKey(_digestKey).setType(type).setDate(to);
+			digest.setParam(DIGEST_NOTIFICATIONS, applicable);
+			digest.setParam(DIGEST_FREQUENCY, frequency.name());
+			digest.setParam(DIGEST_FROM, from);
+			digest.setParam(DIGEST_TO, to);
+
+			try {
+				Dispatch dispatch = getDispatchService().create(digest, prefs, cPrefs);
+				if (!channel.isConfigured(dispatch.getParams())) {
+					continue;
+				}
+				channel.push(dispatch);
+				pushed++;
+			} catch (PushException e) {
+				if (getErrorListener() != null) {
+					getErrorListener().error(digest, channel, e);
+				} else {
+					log.info("failed to deliver digest " + digest + " on channel " + channel.getId() + ": "
+							+ ExceptionUtils.getAllMessages(e));
+				}
+			} catch (RenderException e) {
+				log.error("failed to render digest " + digest, e);
+			}
+		}
+		return pushed;
+	}
+
+	/**
+	 * initializes the start of the next window per frequency from the latest
+	 * claimed windows
+	 */
+	void resume(@Nonnull Date now) {
+		for (Frequency frequency : DIGEST_FREQUENCIES) {
+			Date last = getNotificationDAO().getLastDigest(frequency);
+			_windowStart.put(frequency, firstWindow(frequency, last, now, _timeZone));
+		}
+	}
+
+	/**
+	 * @return start of the window following the last claimed window or the
+	 *         window containing now if none was claimed yet
+	 */
+	static Date firstWindow(@Nonnull Frequency frequency, @CheckForNull Date lastClaimed, @Nonnull Date now,
+			@Nonnull TimeZone timeZone) {
+		Date current = windowStart(frequency, now, timeZone);
+		if (lastClaimed == null) {
+			return current;
+		}
+		Date next = windowEnd(frequency, lastClaimed, timeZone);
+		return next.after(current) ? current : next;
+	}
+
+	/**
+	 * @return start of the window containing date
+	 */
+	static Date windowStart(@Nonnull Frequency frequency, @Nonnull Date date, @Nonnull TimeZone timeZone) {
+		Calendar cal = Calendar.getInstance(timeZone);
+		cal.setFirstDayOfWeek(Calendar.MONDAY);
+		cal.setTime(date);
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+
+		switch (frequency) {
+		case DAILY:
+			break;
+		case WEEKLY:
+			while (cal.get(Calendar.DAY_OF_WEEK) != cal.getFirstDayOfWeek()) {
+				cal.add(Calendar.DAY_OF_MONTH, -1);
+			}
+			break;
+		case MONTHLY:
+			cal.set(Calendar.DAY_OF_MONTH, 1);
+			break;
+		default:
+			throw new IllegalArgumentException("no window for frequency " + frequency);
+		}
+		return cal.getTime();
+	}
+
+	/**
+	 * @return start of the window following the window starting at
+	 *         windowStart
+	 */
+	static Date windowEnd(@Nonnull Frequency frequency, @Nonnull Date windowStart, @Nonnull TimeZone timeZone) {
+		Calendar cal = Calendar.getInstance(timeZone);
+		cal.setTime(windowStart);
+
+		switch (frequency) {
+		case DAILY:
+			cal.add(Calendar.DAY_OF_MONTH, 1);
+			break;
+		case WEEKLY:
+			cal.add(Calendar.WEEK_OF_YEAR, 1);
+			break;
+		case MONTHLY:
+			cal.add(Calendar.MONTH, 1);
+			break;
+		default:
+			throw new IllegalArgumentException("no window for frequency " + frequency);
+		}
+		return cal.getTime();
+	}
+
+	public String getDigestKey() {
+		return _digestKey;
+	}
+
+	/**
+	 * template key used to render digests
+	 */
+	public void setDigestKey(String digestKey) {
+		if (digestKey == null) {
+			throw new NullPointerException("digestKey");
+		}
+		_digestKey = digestKey;
+	}
+
+	public TimeZone getTimeZone() {
+		return _timeZone;
+	}
+
+	/**
+	 * time zone used to compute windows, i.e. start of days, weeks and months
+	 */
+	public void setTimeZone(TimeZone timeZone) {
+		if (timeZone == null) {
+			throw new NullPointerException("timeZone");
+		}
+		_timeZone = timeZone;
+	}
+
+	public int getPageSize() {
+		return _pageSize;
+	}
+
+	public void setPageSize(int pageSize) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("pageSize must be positive, was " + pageSize);
+		}
+		_pageSize = pageSize;
+	}
+
+	public AbstractPushDispatcher getPushDispatcher() {
+		return _pushDispatcher;
+	}
+
+	/**
+	 * dispatcher of instant notifications, leaves notifications of channels
+	 * configured for digests to this dispatcher
+	 */
+	public void setPushDispatcher(AbstractPushDispatcher pushDispatcher) {
+		_pushDispatcher = pushDispatcher;
+	}
+
+	public String getWorkerId() {
+		return _workerId;
+	}
+
+	/**
+	 * identifies this dispatcher when claiming digest windows, unique per
+	 * process by default
+	 */
+	public void setWorkerId(String workerId) {
+		if (workerId == null) {
+			throw new NullPointerException("workerId");
+		}
+		_workerId = workerId;
+	}
+
+	class Scheduler implements Runnable {
+
+		@Override
+		public void run() {
+			long next = Long.MAX_VALUE;
+
+			for (Frequency frequency : DIGEST_FREQUENCIES) {
+				Date start = _windowStart.get(frequency);
+				Date end = windowEnd(frequency, start, _timeZone);
+
+				if (end.getTime() <= System.currentTimeMillis()) {
+					try {
+						if (getNotificationDAO().claimDigest(frequency, start, _workerId)) {
+							digest(frequency, start, end);
+						} else {
+							log.debug(frequency + " digest for " + start + " already claimed");
+						}
+					} finally {
+						// don't repeat failed digests
+						_windowStart.put(frequency, end);
+					}
+					end = windowEnd(frequency, end, _timeZone);
+				}
+				next = Math.min(next, end.getTime());
+			}
+
+			delay(next - System.currentTimeMillis());
+		}
+
+		private void delay(long wait) {
+			if (wait <= 0) {
+				return;
+			}
+			synchronized (_wait) {
+				try {
+					if (_lifecycle.isRunning()) {
+						_wait.wait(wait);
+					}
+				} catch (InterruptedException e) {
+					log.debug("digest thread interrupted", e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void start() {
+		_lifecycle.start();
+	}
+
+	@Override
+	public void stop() {
+		_lifecycle.stop();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return _lifecycle.isRunning();
+	}
+
+	@Override
+	public int getPhase() {
+		return _lifecycle.getPhase();
+	}
+
+	@Override
+	public boolean isAutoStartup() {
+		return _lifecycle.isAutoStartup();
+	}
+
+	@Override
+	public void stop(Runnable callback) {
+		_lifecycle.stop(callback);
+	}
+
+	private class Lifecycle extends AbstractSmartLifecycle {
+
+		private volatile boolean _running = false;
+
+		@Override
+		public boolean isRunning() {
+			return _running;
+		}
+
+		@Override
+		protected void doStart() {
+			resume(new Date());
+			_running = true;
+			_threadGroup.start();
+		}
+
+		@Override
+		protected void doStop() {
+			_threadGroup.setInactive();
+			synchronized (_wait) {
+				_running = false;
+				_wait.notifyAll();
+			}
+			try {
+				log.info("waiting for termination of running digest task");
+				_threadGroup.join();
+				log.info("running digest task terminated");
+			} catch (InterruptedException e1) {
+				log.warn("interrupted while waiting for termination of digest task");
+			}
+		}
+
+	}
+}
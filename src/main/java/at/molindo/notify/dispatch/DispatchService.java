@@ -26,6 +26,7 @@ import at.molindo.notify.INotifyService.NotifyException;
 import at.molindo.notify.model.Dispatch;
 import at.molindo.notify.model.IChannelPreferences;
 import at.molindo.notify.model.IPreferences;
+import at.molindo.notify.model.LayeredParams;
 import at.molindo.notify.model.Notification;
 import at.molindo.notify.model.Params;
 import at.molindo.notify.render.IRenderService;
@@ -45,11 +46,8 @@ public class DispatchService implements IDispatchService {
 	public Dispatch create(Notification notification, IPreferences prefs, IChannelPreferences cPrefs)
 			throws RenderException {
 
-		Params params = new Params();
-
-		params.setAll(prefs.getParams());
-		params.setAll(cPrefs.getParams());
-		params.setAll(notification.getParams());
+		// notification over channel preferences over preferences, not copied
+		Params params = new LayeredParams(notification.getParams(), cPrefs.getParams(), prefs.getParams());
 
 		params.set(INotifyService.NOTIFICATION, notification);
 		params.set(INotifyService.PREFERENCES, prefs);
@@ -16,37 +16,71 @@
 
 package at.molindo.notify.dispatch;
 
-import java.util.concurrent.Callable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.SmartLifecycle;
 
 import at.molindo.notify.INotifyService;
-import at.molindo.notify.INotifyService.NotifyRuntimeException;
 import at.molindo.notify.model.Notification;
 import at.molindo.notify.util.AbstractSmartLifecycle;
 import at.molindo.utils.concurrent.FactoryThread;
 import at.molindo.utils.concurrent.FactoryThread.FactoryThreadGroup;
-import at.molindo.utils.concurrent.KeyLock;
-import at.molindo.utils.concurrent.KeyLock.KeyLockedException;
+import at.molindo.utils.net.DnsUtils;
 
+import com.google.common.collect.Lists;
+
+/**
+ * dispatches notifications claimed in batches with
+ * {@link at.molindo.notify.dao.INotificationDAO#getNextBatch(int, String, long)}
+ * . Claimed notifications are kept in an in-process ready queue that is
+ * drained by all polling threads, the outcome of each drained chunk is
+ * recorded with a single
+ * {@link at.molindo.notify.dao.INotificationDAO#updateAll(java.util.Collection)}
+ * . As claims are leased to {@link #getWorkerId()}, any number of dispatchers
+ * may share the same notification storage.
+ *
+ * {@link INotifyService#notify(Notification)} triggers an immediate claim,
+ * otherwise claims are throttled to one per sweep interval as long as no
+ * notifications are due.
+ */
 public class PollingPushDispatcher extends AbstractPushDispatcher implements INotifyService.INotificationListner,
 		DisposableBean, SmartLifecycle {
 
 	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(PollingPushDispatcher.class);
 
 	private static final int DEFAULT_POOL_SIZE = 1;
+	private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+	private static final int DEFAULT_BATCH_SIZE = 50;
+	private static final long DEFAULT_SWEEP_INTERVAL_MS = TimeUnit.SECONDS.toMillis(20);
+	private static final long DEFAULT_LEASE_MS = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * wakes up waiting polling threads, never dispatched
+	 */
+	private static final Notification WAKEUP = new Notification();
 
 	private int _poolSize = DEFAULT_POOL_SIZE;
+	private int _batchSize = DEFAULT_BATCH_SIZE;
+	private long _sweepIntervalMs = DEFAULT_SWEEP_INTERVAL_MS;
+	private long _leaseMs = DEFAULT_LEASE_MS;
+	private String _workerId = DnsUtils.getLocalHostName() + "-" + UUID.randomUUID();
 
 	private INotifyService _notifyService;
 
-	private final Object _wait = new Object();
-	private final KeyLock<Long, Void> _notificationLock = KeyLock.newKeyLock(false);
+	private volatile BlockingQueue<Notification> _ready = new LinkedBlockingQueue<Notification>(
+			DEFAULT_QUEUE_CAPACITY);
+	private final AtomicLong _nextSweep = new AtomicLong();
+	private final AtomicBoolean _wakeupPending = new AtomicBoolean();
 
 	private FactoryThreadGroup _threadGroup;
 
@@ -73,10 +107,16 @@ public class PollingPushDispatcher extends AbstractPushDispatcher implements INo
 		_notifyService.removeNotificationListener(this);
 	}
 
+	/**
+	 * claim immediately, waking up a waiting thread if necessary
+	 */
 	@Override
 	public void notification(Notification notification) {
-		synchronized (_wait) {
-			_wait.notify();
+		_nextSweep.set(0);
+		if (_ready.isEmpty() && _wakeupPending.compareAndSet(false, true)) {
+			if (!_ready.offer(WAKEUP)) {
+				_wakeupPending.set(false);
+			}
 		}
 	}
 
@@ -92,57 +132,164 @@ public class PollingPushDispatcher extends AbstractPushDispatcher implements INo
 		_poolSize = poolSize;
 	}
 
+	public int getQueueCapacity() {
+		return _ready.remainingCapacity() + _ready.size();
+	}
+
+	/**
+	 * must not be changed while running
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (isRunning()) {
+			throw new IllegalStateException("can't change queue capacity while running");
+		}
+		_ready = new LinkedBlockingQueue<Notification>(queueCapacity);
+	}
+
+	public int getBatchSize() {
+		return _batchSize;
+	}
+
+	/**
+	 * maximum number of notifications claimed at once
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize must be positive, was " + batchSize);
+		}
+		_batchSize = batchSize;
+	}
+
+	public long getSweepIntervalMs() {
+		return _sweepIntervalMs;
+	}
+
+	/**
+	 * interval of claims while no notifications are due
+	 */
+	public void setSweepIntervalMs(long sweepIntervalMs) {
+		if (sweepIntervalMs <= 0) {
+			throw new IllegalArgumentException("sweepIntervalMs must be positive, was " + sweepIntervalMs);
+		}
+		_sweepIntervalMs = sweepIntervalMs;
+	}
+
+	public long getLeaseMs() {
+		return _leaseMs;
+	}
+
+	/**
+	 * duration of claims, must be longer than it takes to dispatch a full
+	 * batch. Notifications aren't dispatched after their lease expired as they
+	 * might be claimed by another worker already.
+	 */
+	public void setLeaseMs(long leaseMs) {
+		if (leaseMs <= 0) {
+			throw new IllegalArgumentException("leaseMs must be positive, was " + leaseMs);
+		}
+		_leaseMs = leaseMs;
+	}
+
+	public String getWorkerId() {
+		return _workerId;
+	}
+
+	/**
+	 * unique id of this dispatcher among all dispatchers sharing the same
+	 * notification storage, defaults to host name and a random UUID
+	 */
+	public void setWorkerId(String workerId) {
+		if (workerId == null) {
+			throw new NullPointerException("workerId");
+		}
+		_workerId = workerId;
+	}
+
 	class Polling implements Runnable {
 		@Override
 		public void run() {
-			Notification notification = getNotificationDAO().getNext();
-			if (notification != null) {
-				doPush(notification);
+			List<Notification> chunk = drain();
+			if (chunk.size() == 0 && claim()) {
+				chunk = drain();
+			}
+
+			if (chunk.size() > 0) {
+				dispatchAll(chunk);
 			} else {
-				// add a polling delay
+				// wait for notify() or the next sweep
 				delay();
 			}
 		}
 
 		/**
-		 * wraps a {@link KeyLock} around {@link #push(DispatchConf)}
-		 * 
-		 * @see #doPush(DispatchConf)
-		 * @return null if notification already gets pushed by another thread
+		 * @return up to a fair share of the batch size from the ready queue
 		 */
-		@CheckForNull
-		private void doPush(final @Nonnull Notification notification) {
-			try {
-				_notificationLock.withLock(notification.getId(), new Callable<Void>() {
+		@Nonnull
+		private List<Notification> drain() {
+			int max = Math.max(1, _batchSize / Math.max(1, _poolSize));
+			List<Notification> chunk = Lists.newArrayListWithCapacity(max);
+			_ready.drainTo(chunk, max);
+
+			Iterator<Notification> iter = chunk.iterator();
+			while (iter.hasNext()) {
+				if (iter.next() == WAKEUP) {
+					_wakeupPending.set(false);
+					iter.remove();
+				}
+			}
+			return chunk;
+		}
 
-					@Override
-					public Void call() {
-						dispatch(notification);
-						return null;
-					}
-				});
-			} catch (KeyLockedException e) {
-				/*
-				 * INotificationDAO implementation should avoid this but it
-				 * might happen if a push takes an unusual amount of time to
-				 * finish
-				 */
-				log.info("notification id currently locked: " + e.getKey());
-			} catch (Exception e) {
-				throw new NotifyRuntimeException("unexepcted exception from doPush()", e);
+		/**
+		 * only one thread per sweep interval claims notifications as long as
+		 * there aren't any due. If there are, there is a backlog and claiming
+		 * continues without delay.
+		 *
+		 * @return true if notifications were claimed
+		 */
+		private boolean claim() {
+			long next = _nextSweep.get();
+			long now = System.currentTimeMillis();
+			if (now < next || !_nextSweep.compareAndSet(next, now + _sweepIntervalMs)) {
+				return false;
+			}
+
+			int max = Math.min(_batchSize, _ready.remainingCapacity());
+			if (max <= 0) {
+				return false;
+			}
+
+			List<Notification> batch = getNotificationDAO().getNextBatch(max, _workerId, _leaseMs);
+			if (batch.size() == 0) {
+				return false;
 			}
+
+			_nextSweep.set(0);
+			for (Notification notification : batch) {
+				if (!_ready.offer(notification)) {
+					// only if notify() added a wakeup concurrently, lease will
+					// expire
+					log.debug("ready queue full, dropping claimed notification: " + notification);
+				}
+			}
+			return true;
 		}
 
 		/**
-		 * overwrite for testing
+		 * waits for the next sweep or a wakeup. overwrite for testing
 		 */
 		protected void delay() {
-			synchronized (_wait) {
-				try {
-					_wait.wait(TimeUnit.SECONDS.toMillis(20));
-				} catch (InterruptedException e) {
-					log.debug("polling thread interrupted", e);
+			long wait = Math.max(1, _nextSweep.get() - System.currentTimeMillis());
+			try {
+				Notification notification = _ready.poll(wait, TimeUnit.MILLISECONDS);
+				if (notification == WAKEUP) {
+					_wakeupPending.set(false);
+				} else if (notification != null) {
+					// claimed by another thread, dispatch with next run()
+					_ready.offer(notification);
 				}
+			} catch (InterruptedException e) {
+				log.debug("polling thread interrupted", e);
 			}
 		}
 
@@ -197,8 +344,8 @@ public class PollingPushDispatcher extends AbstractPushDispatcher implements INo
 		protected void doStop() {
 			_threadGroup.setInactive();
 			_running = false;
-			synchronized (_wait) {
-				_wait.notifyAll();
+			for (int i = 0; i < _poolSize; i++) {
+				_ready.offer(WAKEUP);
 			}
 			try {
 				log.info("waiting for termination of running notification tasks");
@@ -206,6 +353,13 @@ public class PollingPushDispatcher extends AbstractPushDispatcher implements INo
 				log.info("all running notification tasks terminated");
 			} catch (InterruptedException e1) {
 				log.warn("interrupted while waiting for termination of notificaiton tasks");
+			} finally {
+				/*
+				 * claimed notifications that weren't dispatched will be
+				 * claimed again after their lease expired
+				 */
+				_ready.clear();
+				_wakeupPending.set(false);
 			}
 		}
 
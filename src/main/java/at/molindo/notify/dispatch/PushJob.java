@@ -0,0 +1,248 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dispatch;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import at.molindo.notify.INotifyService;
+import at.molindo.notify.channel.IPushChannel;
+import at.molindo.notify.channel.IPushChannel.PushException;
+import at.molindo.notify.dispatch.AbstractPushDispatcher.PushResultMessage;
+import at.molindo.notify.model.Dispatch;
+import at.molindo.notify.model.IPreferences;
+import at.molindo.notify.model.IPushChannelPreferences;
+import at.molindo.notify.model.Notification;
+import at.molindo.notify.model.Preferences;
+import at.molindo.notify.model.PushChannelPreferences.Frequency;
+import at.molindo.notify.render.IRenderService.RenderException;
+import at.molindo.utils.data.ExceptionUtils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * push of a single notification split into stages: {@link #resolve()} loads
+ * preferences and applicable channels, {@link #render(IPushChannel)} creates
+ * the {@link Dispatch} for a channel and {@link #deliver(IPushChannel, Dispatch)}
+ * pushes it. Stages for different channels may run concurrently, the outcome
+ * is collected thread-safely.
+ */
+class PushJob {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(PushJob.class);
+
+	private final AbstractPushDispatcher _dispatcher;
+	private final Notification _notification;
+	private final boolean _ignoreFrequency;
+
+	private IPreferences _prefs;
+	private List<IPushChannel> _channels = ImmutableList.of();
+
+	private final Set<String> _successChannels = Sets.newConcurrentHashSet();
+	private final Set<String> _digestChannels = Sets.newConcurrentHashSet();
+	private final Map<String, String> _temporaryChannels = Maps.newConcurrentMap();
+	private final Map<String, String> _persistentChannels = Maps.newConcurrentMap();
+	private final Map<String, String> _deferredChannels = Maps.newConcurrentMap();
+	private final AtomicLong _deferMs = new AtomicLong();
+
+	private volatile PushResultMessage _failure;
+
+	PushJob(@Nonnull AbstractPushDispatcher dispatcher, @Nonnull Notification notification, boolean ignoreFrequency) {
+		_dispatcher = dispatcher;
+		_notification = notification;
+		_ignoreFrequency = ignoreFrequency;
+	}
+
+	/**
+	 * @return false if notification can't be pushed at all
+	 */
+	boolean resolve() {
+		final String unknownChannel = _notification.getParams().get(INotifyService.NOTIFY_UNKNOWN);
+		if (unknownChannel != null) {
+			_prefs = new Preferences().setUserId(_notification.getUserId());
+		} else {
+			_prefs = _dispatcher.getPreferencesDAO().getPreferences(_notification.getUserId());
+		}
+
+		if (_prefs == null) {
+			log.warn("can't push to unknown user " + _notification.getUserId());
+			_failure = PushResultMessage.persistent("unknown user " + _notification.getUserId());
+			return false;
+		}
+
+		ImmutableList.Builder<IPushChannel> channels = ImmutableList.builder();
+		for (IPushChannel channel : _dispatcher.getPushChannels()) {
+			if (unknownChannel == null || channel.getId().equals(unknownChannel)) {
+				channels.add(channel);
+			}
+		}
+		_channels = channels.build();
+		return true;
+	}
+
+	/**
+	 * @return applicable channels, available after {@link #resolve()}
+	 */
+	@Nonnull
+	List<IPushChannel> getChannels() {
+		return _channels;
+	}
+
+	/**
+	 * @return the dispatch or null if channel is left for the
+	 *         {@link DigestPushDispatcher}
+	 */
+	@CheckForNull
+	Dispatch render(IPushChannel channel) throws PushException, RenderException {
+
+		IPushChannelPreferences cPrefs = _prefs.getChannelPrefs().get(channel.getId());
+		if (cPrefs == null) {
+			cPrefs = channel.newDefaultPreferences();
+			if (cPrefs == null) {
+				// don't flood user after he configures this channel
+				throw new PushException("channel not configured for user", false);
+			}
+		}
+
+		if (!channel.getNotificationTypes().contains(_notification.getType())) {
+			// channel not applicable for type
+			throw new PushException("channel not applicable for type " + _notification.getType(), false);
+		}
+
+		Dispatch dispatch = _dispatcher.getDispatchService().create(_notification, _prefs, cPrefs);
+
+		if (!channel.isConfigured(dispatch.getParams())) {
+			// don't flood user after he configures this channel
+			throw new PushException("channel not configured for user", false);
+		}
+
+		if (!_ignoreFrequency && !Frequency.INSTANT.equals(cPrefs.getFrequency())) {
+			if (_dispatcher.getDigestDispatcher() == null) {
+				// retry until a digest dispatcher is configured
+				throw new PushException("channel not configured for this frequency", true);
+			}
+			// DigestPushDispatcher will handle this
+			_digestChannels.add(channel.getId());
+			return null;
+		}
+
+		return dispatch;
+	}
+
+	void deliver(IPushChannel channel, Dispatch dispatch) throws PushException {
+		channel.push(dispatch);
+		_successChannels.add(channel.getId());
+	}
+
+	/**
+	 * render and deliver in calling thread
+	 */
+	void push(IPushChannel channel) {
+		try {
+			Dispatch dispatch = render(channel);
+			if (dispatch != null) {
+				deliver(channel, dispatch);
+			}
+		} catch (PushException e) {
+			failed(channel, e);
+		} catch (RenderException e) {
+			failed(channel, e);
+		}
+	}
+
+	void failed(IPushChannel channel, PushException e) {
+		if (e.isDeferred()) {
+			_deferredChannels.put(channel.getId(), String.valueOf(e.getMessage()));
+			long deferMs;
+			while ((deferMs = _deferMs.get()) < e.getDeferMs() && !_deferMs.compareAndSet(deferMs, e.getDeferMs())) {
+				// retry
+			}
+			log.debug("deferred notification " + _notification + " on channel " + channel.getId() + " for "
+					+ e.getDeferMs() + "ms: " + e.getMessage());
+			return;
+		} else if (e.isTemporaryError()) {
+			_temporaryChannels.put(channel.getId(), String.valueOf(e.getMessage()));
+		} else {
+			_persistentChannels.put(channel.getId(), String.valueOf(e.getMessage()));
+		}
+		if (_dispatcher.getErrorListener() != null) {
+			_dispatcher.getErrorListener().error(_notification, channel, e);
+		} else {
+			log.info("failed to deliver notification " + _notification + " on channel " + channel.getId() + ": "
+					+ ExceptionUtils.getAllMessages(e));
+		}
+	}
+
+	void failed(IPushChannel channel, RenderException e) {
+		log.error("failed to render notification " + _notification, e);
+		_temporaryChannels.put(channel.getId(), ExceptionUtils.getAllMessages(e));
+	}
+
+	/**
+	 * unexpected failure, e.g. a {@link RuntimeException}
+	 */
+	void failed(IPushChannel channel, Throwable t) {
+		log.error("failed to push notification " + _notification + " on channel " + channel.getId(), t);
+		_temporaryChannels.put(channel.getId(), ExceptionUtils.getAllMessages(t));
+	}
+
+	/**
+	 * unexpected failure before any channel was tried
+	 */
+	void failed(Throwable t) {
+		log.error("failed to push notification " + _notification, t);
+		_failure = PushResultMessage.temporary(ExceptionUtils.getAllMessages(t));
+	}
+
+	@Nonnull
+	Notification getNotification() {
+		return _notification;
+	}
+
+	/**
+	 * @return result after all stages completed
+	 */
+	@Nonnull
+	PushResultMessage result() {
+		if (_failure != null) {
+			return _failure;
+		} else if (_successChannels.size() > 0) {
+			return PushResultMessage.success("channels: " + _successChannels
+					+ (_digestChannels.size() > 0 ? ", digest channels: " + _digestChannels : ""));
+		} else if (_deferredChannels.size() > 0 && _temporaryChannels.size() == 0) {
+			// not an error, retry after all deferred channels are expected to
+			// accept it
+			return PushResultMessage.deferred("deferred channels: " + _deferredChannels, _deferMs.get());
+		} else if (_digestChannels.size() > 0 && _temporaryChannels.size() == 0) {
+			// DigestPushDispatcher will deliver them
+			return PushResultMessage.success("digest channels: " + _digestChannels);
+		} else if (_temporaryChannels.size() > 0) {
+			return PushResultMessage.temporary("temporary error, channels: " + _temporaryChannels);
+		} else if (_persistentChannels.size() > 0) {
+			return PushResultMessage.persistent("persistent error, channels: " + _persistentChannels);
+		} else {
+			return PushResultMessage.temporary("no allowed channels available");
+		}
+	}
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dispatch;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import at.molindo.notify.channel.IPushChannel;
+import at.molindo.notify.channel.IPushChannel.PushException;
+import at.molindo.notify.model.Dispatch;
+import at.molindo.notify.render.IRenderService.RenderException;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * pushes notifications in three stages with separate executors: preferences
+ * lookup, rendering (CPU bound, defaults to one thread per core) and delivery
+ * (I/O bound, one executor per channel). A slow channel therefore doesn't hold
+ * up rendering of other notifications or delivery to other channels.
+ *
+ * Queues are bounded, a stage that can't keep up blocks the submitting thread
+ * until there is room in its queue. Notifications are pushed concurrently,
+ * i.e. pipelined dispatch doesn't preserve order within a batch.
+ */
+public class PushPipeline implements InitializingBean, DisposableBean {
+
+	private static final int DEFAULT_RESOLVE_POOL_SIZE = 2;
+	private static final int DEFAULT_RENDER_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+	private static final int DEFAULT_DELIVERY_POOL_SIZE = 4;
+	private static final int DEFAULT_QUEUE_CAPACITY = 100;
+
+	/**
+	 * waits for room in the queue if it is full. runs tasks in caller after
+	 * shutdown or if interrupted as pending jobs must complete
+	 */
+	private static final RejectedExecutionHandler WAIT_FOR_QUEUE = new RejectedExecutionHandler() {
+
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (!executor.isShutdown()) {
+				try {
+					executor.getQueue().put(r);
+					// all workers might have timed out in the meantime
+					executor.prestartCoreThread();
+					return;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			r.run();
+		}
+	};
+
+	private int _resolvePoolSize = DEFAULT_RESOLVE_POOL_SIZE;
+	private int _renderPoolSize = DEFAULT_RENDER_POOL_SIZE;
+	private int _deliveryPoolSize = DEFAULT_DELIVERY_POOL_SIZE;
+	private Map<String, Integer> _deliveryPoolSizes = ImmutableMap.of();
+	private int _queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+	private ThreadPoolExecutor _resolve;
+	private ThreadPoolExecutor _render;
+	private final ConcurrentMap<String, ThreadPoolExecutor> _delivery = Maps.newConcurrentMap();
+
+	@Override
+	public void afterPropertiesSet() {
+		_resolve = newExecutor("resolve", _resolvePoolSize);
+		_render = newExecutor("render", _renderPoolSize);
+	}
+
+	@Override
+	public void destroy() {
+		_resolve.shutdown();
+		_render.shutdown();
+		for (ThreadPoolExecutor executor : _delivery.values()) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * pushes all jobs, returns after all stages of all jobs completed
+	 *
+	 * @return jobs
+	 */
+	@Nonnull
+	List<PushJob> pushAll(@Nonnull List<PushJob> jobs) {
+		if (_resolve == null) {
+			throw new IllegalStateException("pipeline not initialized");
+		}
+
+		CountDownLatch latch = new CountDownLatch(jobs.size());
+		for (PushJob job : jobs) {
+			_resolve.execute(new Resolve(job, latch));
+		}
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				// jobs are still running and must be recorded
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return jobs;
+	}
+
+	private ThreadPoolExecutor delivery(IPushChannel channel) {
+		ThreadPoolExecutor executor = _delivery.get(channel.getId());
+		if (executor == null) {
+			Integer poolSize = _deliveryPoolSizes.get(channel.getId());
+			ThreadPoolExecutor created = newExecutor("deliver-" + channel.getId(),
+					poolSize == null ? _deliveryPoolSize : poolSize);
+			executor = _delivery.putIfAbsent(channel.getId(), created);
+			if (executor == null) {
+				executor = created;
+			} else {
+				created.shutdown();
+			}
+		}
+		return executor;
+	}
+
+	private ThreadPoolExecutor newExecutor(String stage, int poolSize) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(_queueCapacity), new ThreadFactoryBuilder()
+						.setNameFormat(PushPipeline.class.getSimpleName() + "-" + stage + "-%d").setDaemon(true)
+						.build(), WAIT_FOR_QUEUE);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	public int getResolvePoolSize() {
+		return _resolvePoolSize;
+	}
+
+	public void setResolvePoolSize(int resolvePoolSize) {
+		_resolvePoolSize = resolvePoolSize;
+	}
+
+	public int getRenderPoolSize() {
+		return _renderPoolSize;
+	}
+
+	public void setRenderPoolSize(int renderPoolSize) {
+		_renderPoolSize = renderPoolSize;
+	}
+
+	public int getDeliveryPoolSize() {
+		return _deliveryPoolSize;
+	}
+
+	/**
+	 * default pool size of delivery executors
+	 */
+	public void setDeliveryPoolSize(int deliveryPoolSize) {
+		_deliveryPoolSize = deliveryPoolSize;
+	}
+
+	/**
+	 * pool size of delivery executors per channel id
+	 */
+	public void setDeliveryPoolSizes(Map<String, Integer> deliveryPoolSizes) {
+		_deliveryPoolSizes = ImmutableMap.copyOf(deliveryPoolSizes);
+	}
+
+	public int getQueueCapacity() {
+		return _queueCapacity;
+	}
+
+	/**
+	 * capacity of each stage's queue
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		_queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * releases a share of a job, counts down the latch after the last share
+	 */
+	private static void release(AtomicInteger pending, CountDownLatch latch) {
+		if (pending.decrementAndGet() == 0) {
+			latch.countDown();
+		}
+	}
+
+	private class Resolve implements Runnable {
+		private final PushJob _job;
+		private final CountDownLatch _latch;
+
+		private Resolve(PushJob job, CountDownLatch latch) {
+			_job = job;
+			_latch = latch;
+		}
+
+		@Override
+		public void run() {
+			// resolve holds a share until all channels are submitted
+			AtomicInteger pending = new AtomicInteger(1);
+			try {
+				if (_job.resolve()) {
+					for (IPushChannel channel : _job.getChannels()) {
+						Render render = new Render(_job, channel, pending, _latch);
+						pending.incrementAndGet();
+						boolean submitted = false;
+						try {
+							_render.execute(render);
+							submitted = true;
+						} finally {
+							if (!submitted) {
+								render.done();
+							}
+						}
+					}
+				}
+			} catch (RuntimeException e) {
+				_job.failed(e);
+			} finally {
+				release(pending, _latch);
+			}
+		}
+	}
+
+	private class Render implements Runnable {
+		private final PushJob _job;
+		private final IPushChannel _channel;
+		private final AtomicInteger _pending;
+		private final CountDownLatch _latch;
+		private final AtomicBoolean _done = new AtomicBoolean();
+
+		private Render(PushJob job, IPushChannel channel, AtomicInteger pending, CountDownLatch latch) {
+			_job = job;
+			_channel = channel;
+			_pending = pending;
+			_latch = latch;
+		}
+
+		@Override
+		public void run() {
+			boolean delivering = false;
+			try {
+				Dispatch dispatch;
+				try {
+					dispatch = _job.render(_channel);
+				} catch (PushException e) {
+					_job.failed(_channel, e);
+					dispatch = null;
+				} catch (RenderException e) {
+					_job.failed(_channel, e);
+					dispatch = null;
+				} catch (RuntimeException e) {
+					_job.failed(_channel, e);
+					dispatch = null;
+				}
+
+				if (dispatch != null) {
+					delivery(_channel).execute(new Deliver(this, dispatch));
+					delivering = true;
+				}
+			} finally {
+				if (!delivering) {
+					done();
+				}
+			}
+		}
+
+		/**
+		 * idempotent, a failed submit might follow a Deliver run in caller
+		 */
+		void done() {
+			if (_done.compareAndSet(false, true)) {
+				release(_pending, _latch);
+			}
+		}
+	}
+
+	private class Deliver implements Runnable {
+		private final Render _render;
+		private final Dispatch _dispatch;
+
+		private Deliver(Render render, Dispatch dispatch) {
+			_render = render;
+			_dispatch = dispatch;
+		}
+
+		@Override
+		public void run() {
+			try {
+				_render._job.deliver(_render._channel, _dispatch);
+			} catch (PushException e) {
+				_render._job.failed(_render._channel, e);
+			} catch (RuntimeException e) {
+				_render._job.failed(_render._channel, e);
+			} finally {
+				_render.done();
+			}
+		}
+	}
+}
@@ -0,0 +1,422 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dispatch;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.SmartLifecycle;
+
+import at.molindo.notify.INotifyService;
+import at.molindo.notify.dao.IMembershipDAO;
+import at.molindo.notify.dao.IShardedNotificationDAO;
+import at.molindo.notify.model.Notification;
+import at.molindo.notify.util.AbstractSmartLifecycle;
+import at.molindo.notify.util.NotifyUtils;
+import at.molindo.utils.concurrent.FactoryThread;
+import at.molindo.utils.net.DnsUtils;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * dispatcher for multiple nodes sharing the same notification storage. Users
+ * are hashed into a fixed number of shards that are assigned to live members
+ * of an {@link IMembershipDAO}. Assignments are rebalanced whenever members
+ * join or leave, only moving shards from leaving or to joining members.
+ *
+ * Each owned shard is handled by exactly one local thread, dispatching
+ * notifications of a user sequentially and in pushDate order. Claims are
+ * leased to {@link #getMemberId()} in order to guard against double delivery
+ * while ownership moves between nodes.
+ */
+public class ShardedPushDispatcher extends AbstractPushDispatcher implements INotifyService.INotificationListner,
+		DisposableBean, SmartLifecycle {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ShardedPushDispatcher.class);
+
+	private static final int DEFAULT_SHARD_COUNT = 64;
+	private static final int DEFAULT_POOL_SIZE = 1;
+	private static final int DEFAULT_BATCH_SIZE = 50;
+	private static final long DEFAULT_SWEEP_INTERVAL_MS = TimeUnit.SECONDS.toMillis(20);
+	private static final long DEFAULT_LEASE_MS = TimeUnit.MINUTES.toMillis(5);
+	private static final long DEFAULT_HEARTBEAT_MS = TimeUnit.SECONDS.toMillis(10);
+	private static final long DEFAULT_MEMBER_TTL_MS = TimeUnit.SECONDS.toMillis(30);
+
+	private int _shardCount = DEFAULT_SHARD_COUNT;
+	private int _poolSize = DEFAULT_POOL_SIZE;
+	private int _batchSize = DEFAULT_BATCH_SIZE;
+	private long _sweepIntervalMs = DEFAULT_SWEEP_INTERVAL_MS;
+	private long _leaseMs = DEFAULT_LEASE_MS;
+	private long _heartbeatMs = DEFAULT_HEARTBEAT_MS;
+	private long _memberTtlMs = DEFAULT_MEMBER_TTL_MS;
+	private String _memberId = DnsUtils.getLocalHostName() + "-" + UUID.randomUUID();
+
+	private INotifyService _notifyService;
+	private IMembershipDAO _membershipDAO;
+
+	private volatile Set<Integer> _ownedShards = ImmutableSet.of();
+	private final AtomicLong _nextHeartbeat = new AtomicLong();
+
+	private volatile Lane[] _lanes = new Lane[0];
+	private FactoryThread[] _threads;
+
+	private final Lifecycle _lifecycle = new Lifecycle();
+
+	@Override
+	public void afterPropertiesSet() {
+		super.afterPropertiesSet();
+		if (!(getNotificationDAO() instanceof IShardedNotificationDAO)) {
+			throw new IllegalStateException("notificationDAO must implement "
+					+ IShardedNotificationDAO.class.getSimpleName());
+		}
+		if (_membershipDAO == null) {
+			throw new IllegalStateException("no membershipDAO configured");
+		}
+		if (_heartbeatMs >= _memberTtlMs) {
+			throw new IllegalStateException("heartbeatMs must be less than memberTtlMs");
+		}
+		_notifyService.addNotificationListener(this);
+	}
+
+	@Override
+	public void destroy() {
+		stop();
+		_notifyService.removeNotificationListener(this);
+	}
+
+	/**
+	 * wakes up the thread responsible for the notification's shard if owned
+	 */
+	@Override
+	public void notification(Notification notification) {
+		if (notification.getUserId() == null) {
+			return;
+		}
+		int shard = NotifyUtils.shard(notification.getUserId(), _shardCount);
+		Lane[] lanes = _lanes;
+		if (lanes.length > 0 && _ownedShards.contains(shard)) {
+			lanes[shard % lanes.length].wakeup();
+		}
+	}
+
+	/**
+	 * renews membership and recomputes owned shards if heartbeat is due
+	 */
+	void heartbeat() {
+		long next = _nextHeartbeat.get();
+		long now = System.currentTimeMillis();
+		if (now < next || !_nextHeartbeat.compareAndSet(next, now + _heartbeatMs)) {
+			return;
+		}
+
+		_membershipDAO.heartbeat(_memberId, _memberTtlMs);
+
+		Set<String> members = _membershipDAO.getMembers();
+		if (!members.contains(_memberId)) {
+			// e.g. membership expired while stuck in a long GC pause
+			members = Sets.newHashSet(members);
+			members.add(_memberId);
+		}
+
+		Set<Integer> owned = NotifyUtils.ownedShards(_memberId, members, _shardCount);
+		if (!owned.equals(_ownedShards)) {
+			log.info("rebalanced shards among " + members.size() + " members, now owning " + owned.size() + " of "
+					+ _shardCount + " shards");
+			_ownedShards = owned;
+			for (Lane lane : _lanes) {
+				lane.wakeup();
+			}
+		}
+	}
+
+	@Nonnull
+	public Set<Integer> getOwnedShards() {
+		return _ownedShards;
+	}
+
+	public void setNotifyService(INotifyService notifyService) {
+		_notifyService = notifyService;
+	}
+
+	public void setMembershipDAO(IMembershipDAO membershipDAO) {
+		_membershipDAO = membershipDAO;
+	}
+
+	public int getShardCount() {
+		return _shardCount;
+	}
+
+	/**
+	 * must be equal on all nodes and must not be changed while running
+	 */
+	public void setShardCount(int shardCount) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("shardCount must be positive, was " + shardCount);
+		}
+		if (isRunning()) {
+			throw new IllegalStateException("can't change shard count while running");
+		}
+		_shardCount = shardCount;
+	}
+
+	public int getPoolSize() {
+		return _poolSize;
+	}
+
+	public void setPoolSize(int poolSize) {
+		_poolSize = poolSize;
+	}
+
+	public int getBatchSize() {
+		return _batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize must be positive, was " + batchSize);
+		}
+		_batchSize = batchSize;
+	}
+
+	public long getSweepIntervalMs() {
+		return _sweepIntervalMs;
+	}
+
+	public void setSweepIntervalMs(long sweepIntervalMs) {
+		if (sweepIntervalMs <= 0) {
+			throw new IllegalArgumentException("sweepIntervalMs must be positive, was " + sweepIntervalMs);
+		}
+		_sweepIntervalMs = sweepIntervalMs;
+	}
+
+	public long getLeaseMs() {
+		return _leaseMs;
+	}
+
+	public void setLeaseMs(long leaseMs) {
+		if (leaseMs <= 0) {
+			throw new IllegalArgumentException("leaseMs must be positive, was " + leaseMs);
+		}
+		_leaseMs = leaseMs;
+	}
+
+	public long getHeartbeatMs() {
+		return _heartbeatMs;
+	}
+
+	public void setHeartbeatMs(long heartbeatMs) {
+		_heartbeatMs = heartbeatMs;
+	}
+
+	public long getMemberTtlMs() {
+		return _memberTtlMs;
+	}
+
+	/**
+	 * time after which shards of a crashed node are taken over by others
+	 */
+	public void setMemberTtlMs(long memberTtlMs) {
+		_memberTtlMs = memberTtlMs;
+	}
+
+	public String getMemberId() {
+		return _memberId;
+	}
+
+	/**
+	 * unique id of this node, defaults to host name and a random UUID
+	 */
+	public void setMemberId(String memberId) {
+		if (memberId == null) {
+			throw new NullPointerException("memberId");
+		}
+		_memberId = memberId;
+	}
+
+	/**
+	 * handles all owned shards with shard % poolSize == index
+	 */
+	class Lane implements Runnable {
+
+		private final int _index;
+		private final Object _wait = new Object();
+		private boolean _wakeup;
+
+		Lane(int index) {
+			_index = index;
+		}
+
+		@Override
+		public void run() {
+			heartbeat();
+
+			Set<Integer> shards = shards();
+			List<Notification> batch;
+			if (shards.size() == 0) {
+				batch = null;
+			} else {
+				batch = ((IShardedNotificationDAO) getNotificationDAO()).getNextBatch(_batchSize, _memberId, _leaseMs,
+						_shardCount, shards);
+			}
+
+			if (batch != null && batch.size() > 0) {
+				dispatchAll(batch);
+			} else {
+				delay();
+			}
+		}
+
+		@Nonnull
+		Set<Integer> shards() {
+			int lanes = _lanes.length;
+			if (lanes == 0) {
+				return ImmutableSet.of();
+			}
+			ImmutableSet.Builder<Integer> shards = ImmutableSet.builder();
+			for (Integer shard : _ownedShards) {
+				if (shard % lanes == _index) {
+					shards.add(shard);
+				}
+			}
+			return shards.build();
+		}
+
+		void wakeup() {
+			synchronized (_wait) {
+				_wakeup = true;
+				_wait.notify();
+			}
+		}
+
+		/**
+		 * waits for a wakeup, the next sweep or the next heartbeat. overwrite
+		 * for testing
+		 */
+		protected void delay() {
+			synchronized (_wait) {
+				try {
+					if (!_wakeup) {
+						_wait.wait(Math.min(_sweepIntervalMs, _heartbeatMs));
+					}
+				} catch (InterruptedException e) {
+					log.debug("lane thread interrupted", e);
+				} finally {
+					_wakeup = false;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void start() {
+		_lifecycle.start();
+	}
+
+	@Override
+	public void stop() {
+		_lifecycle.stop();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return _lifecycle.isRunning();
+	}
+
+	@Override
+	public int getPhase() {
+		return _lifecycle.getPhase();
+	}
+
+	@Override
+	public boolean isAutoStartup() {
+		return _lifecycle.isAutoStartup();
+	}
+
+	@Override
+	public void stop(Runnable callback) {
+		_lifecycle.stop(callback);
+	}
+
+	private class Lifecycle extends AbstractSmartLifecycle {
+
+		private volatile boolean _running = false;
+
+		@Override
+		public boolean isRunning() {
+			return _running;
+		}
+
+		@Override
+		protected void doStart() {
+			final Lane[] lanes = new Lane[Math.max(1, _poolSize)];
+			FactoryThread[] threads = new FactoryThread[lanes.length];
+			for (int i = 0; i < lanes.length; i++) {
+				final Lane lane = lanes[i] = new Lane(i);
+				threads[i] = new FactoryThread(new FactoryThread.IRunnableFactory() {
+
+					@Override
+					public Runnable newRunnable() {
+						return lane;
+					}
+				}, ShardedPushDispatcher.class.getSimpleName() + "-" + i);
+			}
+			_lanes = lanes;
+			_threads = threads;
+
+			_nextHeartbeat.set(0);
+			heartbeat();
+
+			for (FactoryThread thread : threads) {
+				thread.start();
+			}
+			_running = true;
+		}
+
+		@Override
+		protected void doStop() {
+			_running = false;
+			for (FactoryThread thread : _threads) {
+				thread.setInactive();
+			}
+			for (Lane lane : _lanes) {
+				lane.wakeup();
+			}
+			try {
+				log.info("waiting for termination of running notification tasks");
+				for (FactoryThread thread : _threads) {
+					thread.join();
+				}
+				log.info("all running notification tasks terminated");
+			} catch (InterruptedException e1) {
+				log.warn("interrupted while waiting for termination of notificaiton tasks");
+			} finally {
+				// hand over shards immediately
+				_membershipDAO.leave(_memberId);
+				_ownedShards = ImmutableSet.of();
+				_lanes = new Lane[0];
+			}
+		}
+
+	}
+}
@@ -17,21 +17,39 @@
 package at.molindo.notify.model;
 
 import java.beans.PropertyDescriptor;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
-import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.beanutils.PropertyUtils;
 
 import at.molindo.notify.INotifyService.NotifyRuntimeException;
 
+import com.google.common.collect.ImmutableMap;
+
 public class BeanParams<B> implements IParams {
 
+	private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+	/**
+	 * introspection is done once per class, {@link ClassValue} won't keep
+	 * classes from being unloaded
+	 */
+	private static final ClassValue<Map<String, Property>> PROPERTIES = new ClassValue<Map<String, Property>>() {
+
+		@Override
+		protected Map<String, Property> computeValue(Class<?> type) {
+			return properties(type);
+		}
+	};
+
 	private final B _bean;
+	private final Map<String, Property> _properties;
 
 	public static <B> BeanParams<B> params(B bean) {
 		return new BeanParams<B>(bean);
@@ -42,7 +60,7 @@ public class BeanParams<B> implements IParams {
 			throw new NullPointerException("bean");
 		}
 		_bean = bean;
-
+		_properties = PROPERTIES.get(bean.getClass());
 	}
 
 	public B getBean() {
@@ -65,7 +83,8 @@ public class BeanParams<B> implements IParams {
 		} else if (o instanceof String) {
 			return param.toObject((String) o);
 		} else {
-			return param.toObject(param.toString(o));
+			// convert to string and back to object
+			return param.toObject(ParamType.of(o.getClass()).p(param.getName()).toString(o));
 		}
 	}
 
@@ -78,20 +97,20 @@ public class BeanParams<B> implements IParams {
 	public Iterator<ParamValue> iterator() {
 		return new Iterator<ParamValue>() {
 
-			private final Iterator<PropertyDescriptor> _iter = getDescriptorsIter();
+			private final Iterator<Property> _iter = _properties.values().iterator();
 			private ParamValue _next = findNext();
 
 			private ParamValue findNext() {
 				while (_iter.hasNext()) {
-					PropertyDescriptor pd = _iter.next();
-					if (pd.getWriteMethod() == null || pd.getReadMethod() == null) {
+					Property p = _iter.next();
+					if (!p.isWritable()) {
 						continue;
 					}
-					Object value = invoke(pd.getReadMethod());
+					Object value = p.get(_bean);
 					if (value == null) {
 						continue;
 					}
-					return Param.p(pd.getPropertyType(), pd.getName()).paramValue(value);
+					return p.getParam().paramValue(value);
 				}
 				return null;
 			}
@@ -134,74 +153,135 @@ public class BeanParams<B> implements IParams {
 		return IParams.Util.newMap(this);
 	}
 
-	private PropertyDescriptor getDescriptor(String propertyName) {
-		try {
-			PropertyDescriptor pd = PropertyUtils.getPropertyDescriptor(_bean, propertyName);
-			return pd != null && pd.getWriteMethod() != null && pd.getReadMethod() != null ? pd : null;
-		} catch (IllegalAccessException e) {
-			throw new NotifyRuntimeException("failed to get PropertyDescriptor for property " + propertyName
-					+ " from bean " + _bean, e);
-		} catch (InvocationTargetException e) {
-			throw new NotifyRuntimeException("failed to get PropertyDescriptor for property " + propertyName
-					+ " from bean " + _bean, e);
-		} catch (NoSuchMethodException e) {
-			// ignore
-			return null;
+	/**
+	 * @return readable properties of type by name, in the order of their
+	 *         descriptors
+	 */
+	private static Map<String, Property> properties(Class<?> type) {
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		ImmutableMap.Builder<String, Property> properties = ImmutableMap.builder();
+		for (PropertyDescriptor pd : PropertyUtils.getPropertyDescriptors(type)) {
+			Method read = PropertyUtils.getReadMethod(pd);
+			if (read == null || pd.getPropertyType() == null) {
+				// write-only or indexed
+				continue;
+			}
+			Method write = PropertyUtils.getWriteMethod(pd);
+			try {
+				MethodHandle getter = lookup.unreflect(read).asType(GETTER);
+				MethodHandle setter = write == null ? null : lookup.unreflect(write).asType(SETTER);
+				properties.put(pd.getName(), new Property(pd, getter, setter));
+			} catch (IllegalAccessException e) {
+				// not accessible, same as unknown
+				continue;
+			}
 		}
+		return properties.build();
 	}
 
-	private Iterator<PropertyDescriptor> getDescriptorsIter() {
-		return Arrays.asList(PropertyUtils.getPropertyDescriptors(_bean)).iterator();
-	}
-
+	/**
+	 * @return value of property, nested properties (e.g. "foo.bar") are
+	 *         supported. null if unknown
+	 */
 	private Object getProperty(String name) {
-		try {
-			return BeanUtils.getProperty(_bean, name);
-		} catch (IllegalAccessException e) {
-			throw new NotifyRuntimeException("failed to get property " + name + " from bean " + _bean, e);
-		} catch (InvocationTargetException e) {
-			throw new NotifyRuntimeException("failed to get property " + name + " from bean " + _bean, e);
-		} catch (NoSuchMethodException e) {
-			// ignore
-			return null;
+		Property p = _properties.get(name);
+		if (p != null) {
+			return p.get(_bean);
 		}
+		int dot = name.indexOf('.');
+		BeanParams<?> nested = nested(name, dot);
+		return nested == null ? null : nested.getProperty(name.substring(dot + 1));
 	}
 
-	private Object invoke(Method m, Object... args) {
-		try {
-			return m.invoke(_bean, args);
-		} catch (IllegalArgumentException e) {
-			throw new NotifyRuntimeException("failed to invoke method " + m + " on " + _bean, e);
-		} catch (IllegalAccessException e) {
-			throw new NotifyRuntimeException("failed to invoke method " + m + " on " + _bean, e);
-		} catch (InvocationTargetException e) {
-			throw new NotifyRuntimeException("failed to invoke method " + m + " on " + _bean, e);
-		}
+	private void setProperty(Param<?> param, Object value) {
+		setProperty(param.getName(), param, value);
 	}
 
-	private void setProperty(Param<?> param, Object value) {
-		PropertyDescriptor pd = getDescriptor(param.getName());
-		if (pd == null) {
+	private void setProperty(String name, Param<?> param, Object value) {
+		Property p = _properties.get(name);
+		if (p == null) {
+			int dot = name.indexOf('.');
+			BeanParams<?> nested = nested(name, dot);
+			if (nested != null) {
+				nested.setProperty(name.substring(dot + 1), param, value);
+			}
 			// TODO simply ignore?
 			return;
+		} else if (!p.isWritable()) {
+			return;
 		}
 
 		Object converted;
-		if (value == null || pd.getPropertyType().isAssignableFrom(value.getClass())) {
+		if (value == null || p.getType().isAssignableFrom(value.getClass())) {
 			converted = value;
 		} else {
-			converted = Param.p(pd.getPropertyType(), pd.getName()).toObject(param.toString(value));
+			converted = p.getParam().toObject(param.toString(value));
 		}
 
-		try {
-			PropertyUtils.setProperty(_bean, param.getName(), converted);
-		} catch (NoSuchMethodException e) {
-			throw new NotifyRuntimeException(e);
-		} catch (IllegalAccessException e) {
-			throw new NotifyRuntimeException(e);
-		} catch (InvocationTargetException e) {
-			throw new NotifyRuntimeException(e);
+		p.set(_bean, converted);
+	}
+
+	/**
+	 * @return params of the bean referenced by the first part of a nested
+	 *         name or null
+	 */
+	private BeanParams<?> nested(String name, int dot) {
+		if (dot <= 0) {
+			return null;
 		}
+		Property p = _properties.get(name.substring(0, dot));
+		Object bean = p == null ? null : p.get(_bean);
+		return bean == null ? null : new BeanParams<Object>(bean);
 	}
 
+	/**
+	 * accessors of a single bean property
+	 */
+	private static final class Property {
+		private final String _name;
+		private final Class<?> _type;
+		private final Param<?> _param;
+		private final MethodHandle _getter;
+		private final MethodHandle _setter;
+
+		private Property(PropertyDescriptor pd, MethodHandle getter, MethodHandle setter) {
+			_name = pd.getName();
+			_type = pd.getPropertyType();
+			_param = Param.p(_type, _name);
+			_getter = getter;
+			_setter = setter;
+		}
+
+		public Class<?> getType() {
+			return _type;
+		}
+
+		public Param<?> getParam() {
+			return _param;
+		}
+
+		public boolean isWritable() {
+			return _setter != null;
+		}
+
+		public Object get(Object bean) {
+			try {
+				return (Object) _getter.invokeExact(bean);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new NotifyRuntimeException("failed to get property " + _name + " from bean " + bean, t);
+			}
+		}
+
+		public void set(Object bean, Object value) {
+			try {
+				_setter.invokeExact(bean, value);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new NotifyRuntimeException("failed to set property " + _name + " on bean " + bean, t);
+			}
+		}
+	}
 }
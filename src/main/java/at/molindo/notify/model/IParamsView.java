@@ -0,0 +1,31 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.model;
+
+import java.util.Map;
+
+/**
+ * {@link IParams} readable as a map without copying all values like
+ * {@link IParams#newMap()}, e.g. to pass them to a template engine
+ */
+public interface IParamsView {
+
+	/**
+	 * @return read-only view of all values by name
+	 */
+	Map<String, Object> asMap();
+}
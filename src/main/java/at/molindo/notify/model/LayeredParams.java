@@ -0,0 +1,262 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * params resolving lookups through a stack of parents without copying them.
+ * Values set on this object go to a mutable top layer, overriding (or
+ * removing if set to null) values of parents. Parents are read live, i.e.
+ * later changes to them are visible.
+ */
+public class LayeredParams extends Params {
+
+	private static final Function<ParamValue, Map.Entry<String, ParamValue>> ENTRY =
+			new Function<ParamValue, Map.Entry<String, ParamValue>>() {
+
+				@Override
+				public Map.Entry<String, ParamValue> apply(ParamValue input) {
+					return Maps.immutableEntry(input.getName(), input);
+				}
+			};
+
+	private final IParams[] _parents;
+	private Set<String> _removed;
+
+	/**
+	 * @param parents
+	 *            parents in descending priority, i.e. values of the first
+	 *            parent override values of all others
+	 */
+	public LayeredParams(@Nonnull IParams... parents) {
+		for (IParams parent : parents) {
+			if (parent == null) {
+				throw new NullPointerException("parent");
+			}
+		}
+		_parents = parents.clone();
+	}
+
+	@Override
+	public <T> IParams set(Param<T> param, T value) {
+		super.set(param, value);
+		if (value == null) {
+			if (_removed == null) {
+				_removed = Sets.newHashSet();
+			}
+			_removed.add(param.getName());
+		} else if (_removed != null) {
+			_removed.remove(param.getName());
+		}
+		return this;
+	}
+
+	@Override
+	public <T> T get(Param<T> param) {
+		if (super.isSet(param)) {
+			return super.get(param);
+		}
+		IParams parent = parent(param);
+		return parent == null ? null : parent.get(param);
+	}
+
+	@Override
+	public boolean isSet(Param<?> param) {
+		return super.isSet(param) || parent(param) != null;
+	}
+
+	@Override
+	public boolean containsAll(Param<?>... params) {
+		for (Param<?> param : params) {
+			if (!isSet(param)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return first parent param is set in unless removed
+	 */
+	private IParams parent(Param<?> param) {
+		if (_removed != null && _removed.contains(param.getName())) {
+			return null;
+		}
+		for (IParams parent : _parents) {
+			if (parent.isSet(param)) {
+				return parent;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Map<String, Object> asMap() {
+		return new LayeredMap();
+	}
+
+	@Override
+	public Iterator<ParamValue> iterator() {
+		return new LayeredIterator();
+	}
+
+	/**
+	 * @return read-only live view of all values, resolved through all layers
+	 *         on iteration
+	 */
+	@Override
+	protected Map<String, ParamValue> getValues() {
+		return new LayeredValues();
+	}
+
+	/**
+	 * @return true if a value of the parent at index layer is removed or
+	 *         overridden by a higher layer
+	 */
+	private boolean isShadowed(ParamValue v, int layer) {
+		String name = v.getName();
+		if (_removed != null && _removed.contains(name)) {
+			return true;
+		}
+		// all params look up values by name only
+		Param<?> param = Param.pObject(name);
+		if (super.isSet(param)) {
+			return true;
+		}
+		for (int i = 0; i < layer; i++) {
+			if (_parents[i].isSet(param)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	protected LayeredParams clone() {
+		LayeredParams p = (LayeredParams) super.clone();
+		if (_removed != null) {
+			p._removed = Sets.newHashSet(_removed);
+		}
+		return p;
+	}
+
+	/**
+	 * iterates the top layer followed by all parents, skipping values removed
+	 * or overridden by a higher layer
+	 */
+	private final class LayeredIterator extends AbstractIterator<ParamValue> {
+
+		private Iterator<ParamValue> _current = LayeredParams.super.iterator();
+		private int _layer = -1;
+
+		@Override
+		protected ParamValue computeNext() {
+			while (true) {
+				while (_current.hasNext()) {
+					ParamValue v = _current.next();
+					if (_layer < 0 || !isShadowed(v, _layer)) {
+						return v;
+					}
+				}
+				if (++_layer == _parents.length) {
+					return endOfData();
+				}
+				_current = _parents[_layer].iterator();
+			}
+		}
+	}
+
+	private final class LayeredValues extends AbstractMap<String, ParamValue> {
+
+		@Override
+		public Set<Map.Entry<String, ParamValue>> entrySet() {
+			return new AbstractSet<Map.Entry<String, ParamValue>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, ParamValue>> iterator() {
+					return Iterators.transform(new LayeredIterator(), ENTRY);
+				}
+
+				@Override
+				public int size() {
+					return Iterators.size(new LayeredIterator());
+				}
+			};
+		}
+	}
+
+	/**
+	 * resolves values by name through all layers
+	 */
+	private final class LayeredMap extends AbstractMap<String, Object> {
+
+		private final Map<String, Object> _top = LayeredParams.super.asMap();
+		private List<Map<String, Object>> _parentMaps;
+
+		@Override
+		public Object get(Object key) {
+			Object value = _top.get(key);
+			if (value != null || _removed != null && _removed.contains(key)) {
+				return value;
+			}
+			for (Map<String, Object> parent : parentMaps()) {
+				value = parent.get(key);
+				if (value != null) {
+					return value;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		private List<Map<String, Object>> parentMaps() {
+			if (_parentMaps == null) {
+				List<Map<String, Object>> maps = Lists.newArrayListWithCapacity(_parents.length);
+				for (IParams parent : _parents) {
+					maps.add(parent instanceof IParamsView ? ((IParamsView) parent).asMap() : parent.newMap());
+				}
+				_parentMaps = maps;
+			}
+			return _parentMaps;
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return Collections.unmodifiableMap(newMap()).entrySet();
+		}
+	}
+}
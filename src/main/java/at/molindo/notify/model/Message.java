@@ -19,11 +19,13 @@ package at.molindo.notify.model;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.CheckForNull;
+
 import at.molindo.notify.render.IRenderService;
 import at.molindo.notify.render.IRenderService.RenderException;
 import at.molindo.notify.render.IRenderService.Type;
+import at.molindo.notify.util.IHtml2Text;
 import at.molindo.notify.util.NotifyUtils;
-import at.molindo.utils.data.StringUtils;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
@@ -40,26 +42,51 @@ public class Message {
 	private String _subject;
 	private String _message;
 
+	/**
+	 * derived representations, computed at most once per message (racy
+	 * single-check: concurrent callers might convert twice but always get
+	 * equal results)
+	 */
+	private volatile String _text;
+	private volatile String _html;
+
+	private IHtml2Text _html2text;
+
 	public static Message parse(String str, IRenderService.Type type) throws RenderException {
+		return parse((CharSequence) str, type);
+	}
 
-		Set<String> required = Sets.newHashSet(REQUIRED_FIELDS);
-		Map<String, String> fieldValues = Maps.newHashMap();
+	/**
+	 * parses header fields and body in a single pass over str. The body is
+	 * copied only once, after skipping leading blank lines.
+	 */
+	public static Message parse(CharSequence str, IRenderService.Type type) throws RenderException {
+
+		Map<String, String> fieldValues = Maps.newHashMapWithExpectedSize(SUPPORTED_FIELDS.size());
 
 		Message rendered = new Message();
 		rendered.setType(type);
 
-		StringBuilder body = null;
-		for (String line : StringUtils.split(str, "\n")) {
-			if (body == null) {
-				if (StringUtils.empty(StringUtils.trim(line))) {
-					body = new StringBuilder();
+		int len = str.length();
+		int pos = 0;
+		int bodyStart = -1;
+		boolean header = true;
+
+		while (bodyStart < 0) {
+			int eol = indexOf(str, '\n', pos);
+			int lineEnd = eol < 0 ? len : eol;
+
+			if (header) {
+				int begin = skipWhitespace(str, pos, lineEnd);
+				if (begin == lineEnd) {
+					header = false;
 				} else {
-					int split = line.indexOf(':');
+					int split = indexOf(str, ':', pos, lineEnd);
 					if (split < 0) {
-						throw new RenderException("illegal line: " + line);
+						throw new RenderException("illegal line: " + str.subSequence(pos, lineEnd));
 					}
-					String fieldName = line.substring(0, split).trim();
-					String fieldValue = line.substring(split + 1).trim();
+					String fieldName = str.subSequence(begin, split).toString().trim();
+					String fieldValue = str.subSequence(split + 1, lineEnd).toString().trim();
 
 					if (!SUPPORTED_FIELDS.contains(fieldName)) {
 						throw new RenderException("unknown field: " + fieldName);
@@ -67,28 +94,56 @@ public class Message {
 
 					fieldValues.put(fieldName, fieldValue);
 				}
-			} else if (body.length() > 0 || !StringUtils.empty(StringUtils.trim(line))) {
-				body.append(line).append("\n");
+			} else if (skipWhitespace(str, pos, lineEnd) < lineEnd) {
+				bodyStart = pos;
 			}
+
+			if (eol < 0) {
+				break;
+			}
+			pos = eol + 1;
 		}
 
-		required.removeAll(fieldValues.keySet());
-		if (required.size() > 0) {
+		if (!fieldValues.keySet().containsAll(REQUIRED_FIELDS)) {
+			Set<String> required = Sets.newHashSet(REQUIRED_FIELDS);
+			required.removeAll(fieldValues.keySet());
 			throw new RenderException("missing fields: " + required);
 		}
 
-		if (body == null || body.length() == 0) {
+		if (bodyStart < 0) {
 			throw new RenderException("empty body");
 		}
-		// remove trailing \n
-		body.setLength(body.length() - 1);
 
 		rendered.setSubject(fieldValues.get(FIELD_SUBJECT));
-		rendered.setMessage(body.toString());
+		rendered.setMessage(str.subSequence(bodyStart, len).toString());
 
 		return rendered;
 	}
 
+	private static int indexOf(CharSequence str, char c, int from) {
+		return indexOf(str, c, from, str.length());
+	}
+
+	private static int indexOf(CharSequence str, char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (str.charAt(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return index of first char > ' ' in range (same as
+	 *         {@link String#trim()}) or to if none
+	 */
+	private static int skipWhitespace(CharSequence str, int from, int to) {
+		while (from < to && str.charAt(from) <= ' ') {
+			from++;
+		}
+		return from;
+	}
+
 	public Message() {
 
 	}
@@ -99,6 +154,16 @@ public class Message {
 		setMessage(message);
 	}
 
+	/**
+	 * copies message including already converted text and html
+	 */
+	public Message(Message message) {
+		this(message.getSubject(), message.getMessage(), message.getType());
+		_html2text = message._html2text;
+		_text = message._text;
+		_html = message._html;
+	}
+
 	public Type getType() {
 		return _type;
 	}
@@ -108,6 +173,7 @@ public class Message {
 			throw new NullPointerException("type");
 		}
 		_type = type;
+		reset();
 	}
 
 	public String getSubject() {
@@ -124,22 +190,48 @@ public class Message {
 
 	public void setMessage(String message) {
 		_message = message;
+		reset();
+	}
+
+	public IHtml2Text getHtml2Text() {
+		return _html2text;
+	}
+
+	/**
+	 * converter for {@link #getText()} of HTML messages, null for
+	 * {@link NotifyUtils#html2text(String)}
+	 */
+	public void setHtml2Text(@CheckForNull IHtml2Text html2text) {
+		_html2text = html2text;
+		_text = null;
+	}
+
+	private void reset() {
+		_text = null;
+		_html = null;
 	}
 
 	public String getText() {
-		if (getType() == Type.HTML) {
-			return NotifyUtils.html2text(getMessage());
-		} else {
+		if (getType() != Type.HTML || getMessage() == null) {
 			return getMessage();
 		}
+		String text = _text;
+		if (text == null) {
+			IHtml2Text html2text = _html2text;
+			_text = text = html2text == null ? NotifyUtils.html2text(getMessage()) : html2text.html2text(getMessage());
+		}
+		return text;
 	}
 
 	public String getHtml() {
-		if (getType() == Type.TEXT) {
-			return NotifyUtils.text2html(getMessage());
-		} else {
+		if (getType() != Type.TEXT || getMessage() == null) {
 			return getMessage();
 		}
+		String html = _html;
+		if (html == null) {
+			_html = html = NotifyUtils.text2html(getMessage());
+		}
+		return html;
 	}
 
 	@Override
@@ -44,6 +44,8 @@ public class Notification {
 	private Date _pushDate = new Date();
 	private int _pushErrors = 0;
 	private String _pushErrorMessage;
+	private String _leaseOwner;
+	private Date _leaseExpires;
 
 	public Long getId() {
 		return _id;
@@ -165,6 +167,36 @@ public class Notification {
 		return this;
 	}
 
+	/**
+	 * @return id of the dispatcher that claimed this notification or null
+	 * @see at.molindo.notify.dao.INotificationDAO#getNextBatch(int, String, long)
+	 */
+	public String getLeaseOwner() {
+		return _leaseOwner;
+	}
+
+	public Notification setLeaseOwner(String leaseOwner) {
+		_leaseOwner = leaseOwner;
+		return this;
+	}
+
+	/**
+	 * @return expiry of the current claim, the notification may be claimed by
+	 *         other dispatchers afterwards
+	 */
+	public Date getLeaseExpires() {
+		return _leaseExpires;
+	}
+
+	public Notification setLeaseExpires(Date leaseExpires) {
+		_leaseExpires = leaseExpires;
+		return this;
+	}
+
+	public boolean isLeaseExpired(long now) {
+		return _leaseExpires != null && _leaseExpires.getTime() <= now;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
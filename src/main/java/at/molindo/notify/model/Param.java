@@ -17,9 +17,12 @@
 package at.molindo.notify.model;
 
 import java.io.NotSerializableException;
-import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nonnull;
 
@@ -27,12 +30,119 @@ import at.molindo.utils.data.HexUtils;
 import at.molindo.utils.data.SerializationUtils;
 import at.molindo.utils.data.StringUtils;
 
+import com.google.common.collect.Maps;
+
 public abstract class Param<T> {
 
+	private static final int MAX_INTERNED = 10000;
+
+	private static final Map<ParamType, ConcurrentMap<String, Param<?>>> INTERNED;
+	static {
+		Map<ParamType, ConcurrentMap<String, Param<?>>> interned = Maps.newEnumMap(ParamType.class);
+		for (ParamType type : ParamType.values()) {
+			interned.put(type, new ConcurrentHashMap<String, Param<?>>());
+		}
+		INTERNED = Collections.unmodifiableMap(interned);
+	}
+
 	private String _name;
 	private Class<T> _type;
 
 	public static Param<String> pString(String name) {
+		return intern(ParamType.STRING, name);
+	}
+
+	public static Param<Integer> pInteger(String name) {
+		return intern(ParamType.INTEGER, name);
+	}
+
+	public static Param<Long> pLong(String name) {
+		return intern(ParamType.LONG, name);
+	}
+
+	public static Param<Double> pDouble(String name) {
+		return intern(ParamType.DOUBLE, name);
+	}
+
+	public static Param<Float> pFloat(String name) {
+		return intern(ParamType.FLOAT, name);
+	}
+
+	public static Param<Boolean> pBoolean(String name) {
+		return intern(ParamType.BOOLEAN, name);
+	}
+
+	public static Param<Character> pCharacter(String name) {
+		return intern(ParamType.CHARACTER, name);
+	}
+
+	public static Param<URL> pURL(String name) {
+		return intern(ParamType.URL, name);
+	}
+
+	public static Param<Object> pSerializable(String name) {
+		return intern(ParamType.SERIALIZABLE, name);
+	}
+
+	public static Param<Object> pObject(String name) {
+		return intern(ParamType.OBJECT, name);
+	}
+
+	/**
+	 * @return a new instance, only used for interning
+	 */
+	static Param<?> create(ParamType type, String name) {
+		switch (type) {
+		case STRING:
+			return newString(name);
+		case INTEGER:
+			return newInteger(name);
+		case LONG:
+			return newLong(name);
+		case DOUBLE:
+			return newDouble(name);
+		case FLOAT:
+			return newFloat(name);
+		case BOOLEAN:
+			return newBoolean(name);
+		case CHARACTER:
+			return newCharacter(name);
+		case URL:
+			return newURL(name);
+		case SERIALIZABLE:
+			return newSerializable(name);
+		case OBJECT:
+			return newObject(name);
+		default:
+			throw new IllegalArgumentException("unknown type " + type);
+		}
+	}
+
+	/**
+	 * params are immutable, share one instance per name and type. Interning
+	 * stops at {@link #MAX_INTERNED} names per type to cap memory if names
+	 * are generated dynamically.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> Param<T> intern(ParamType type, String name) {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		ConcurrentMap<String, Param<?>> interned = INTERNED.get(type);
+		Param<?> param = interned.get(name);
+		if (param == null) {
+			param = create(type, name);
+			if (interned.size() < MAX_INTERNED) {
+				Param<?> previous = interned.putIfAbsent(name, param);
+				if (previous != null) {
+					param = previous;
+				}
+			}
+		}
+		return (Param<T>) param;
+	}
+
+	private static Param<String> newString(String name) {
 		return new Param<String>(name, String.class) {
 
 			@Override
@@ -53,7 +163,7 @@ public abstract class Param<T> {
 		};
 	}
 
-	public static Param<Integer> pInteger(String name) {
+	private static Param<Integer> newInteger(String name) {
 		return new Param<Integer>(name, Integer.class) {
 
 			@Override
@@ -68,7 +178,7 @@ public abstract class Param<T> {
 		};
 	}
 
-	public static Param<Long> pLong(String name) {
+	private static Param<Long> newLong(String name) {
 		return new Param<Long>(name, Long.class) {
 
 			@Override
@@ -83,7 +193,7 @@ public abstract class Param<T> {
 		};
 	}
 
-	public static Param<Double> pDouble(String name) {
+	private static Param<Double> newDouble(String name) {
 		return new Param<Double>(name, Double.class) {
 
 			@Override
@@ -98,7 +208,7 @@ public abstract class Param<T> {
 		};
 	}
 
-	public static Param<Float> pFloat(String name) {
+	private static Param<Float> newFloat(String name) {
 		return new Param<Float>(name, Float.class) {
 
 			@Override
@@ -113,7 +223,7 @@ public abstract class Param<T> {
 		};
 	}
 
-	public static Param<Boolean> pBoolean(String name) {
+	private static Param<Boolean> newBoolean(String name) {
 		return new Param<Boolean>(name, Boolean.class) {
 
 			@Override
@@ -128,7 +238,7 @@ public abstract class Param<T> {
 		};
 	}
 
-	public static Param<Character> pCharacter(String name) {
+	private static Param<Character> newCharacter(String name) {
 		return new Param<Character>(name, Character.class) {
 
 			@Override
@@ -143,7 +253,7 @@ public abstract class Param<T> {
 		};
 	}
 
-	public static Param<URL> pURL(String name) {
+	private static Param<URL> newURL(String name) {
 		return new Param<URL>(name, URL.class) {
 
 			@Override
@@ -162,7 +272,7 @@ public abstract class Param<T> {
 		};
 	}
 
-	public static Param<Object> pSerializable(String name) {
+	private static Param<Object> newSerializable(String name) {
 		return new Param<Object>(name, Object.class) {
 
 			@Override
@@ -190,7 +300,7 @@ public abstract class Param<T> {
 		};
 	}
 
-	public static Param<Object> pObject(String name) {
+	private static Param<Object> newObject(String name) {
 		return new Param<Object>(name, Object.class) {
 
 			@Override
@@ -211,28 +321,7 @@ public abstract class Param<T> {
 	}
 
 	static Param<?> p(Class<?> cls, String name) {
-		// TODO use reflection in static initializer to build lookup table?
-		if (String.class.isAssignableFrom(cls)) {
-			return pString(name);
-		} else if (Integer.class.isAssignableFrom(cls) || int.class.equals(cls)) {
-			return pInteger(name);
-		} else if (Long.class.isAssignableFrom(cls) || long.class.equals(cls)) {
-			return pLong(name);
-		} else if (Double.class.isAssignableFrom(cls) || double.class.equals(cls)) {
-			return pDouble(name);
-		} else if (Float.class.isAssignableFrom(cls) || float.class.equals(cls)) {
-			return pFloat(name);
-		} else if (Boolean.class.isAssignableFrom(cls) || boolean.class.equals(cls)) {
-			return pBoolean(name);
-		} else if (Character.class.isAssignableFrom(cls) || char.class.equals(cls)) {
-			return pCharacter(name);
-		} else if (URL.class.isAssignableFrom(cls)) {
-			return pURL(name);
-		} else if (Serializable.class.isAssignableFrom(cls)) {
-			return pSerializable(name);
-		} else {
-			return pObject(name);
-		}
+		return ParamType.of(cls).p(name);
 	}
 
 	private Param() {
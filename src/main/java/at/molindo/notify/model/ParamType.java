@@ -16,7 +16,11 @@
 
 package at.molindo.notify.model;
 
+import java.io.Serializable;
 import java.net.URL;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
 
 public enum ParamType {
 	STRING {
@@ -97,5 +101,26 @@ public enum ParamType {
 		}
 	};
 
+	/**
+	 * all types but {@link #SERIALIZABLE} and {@link #OBJECT} are final
+	 * classes, hence an exact lookup is sufficient
+	 */
+	private static final Map<Class<?>, ParamType> TYPES = ImmutableMap.<Class<?>, ParamType> builder()
+			.put(String.class, STRING).put(Integer.class, INTEGER).put(int.class, INTEGER).put(Long.class, LONG)
+			.put(long.class, LONG).put(Double.class, DOUBLE).put(double.class, DOUBLE).put(Float.class, FLOAT)
+			.put(float.class, FLOAT).put(Boolean.class, BOOLEAN).put(boolean.class, BOOLEAN)
+			.put(Character.class, CHARACTER).put(char.class, CHARACTER).put(java.net.URL.class, URL).build();
+
 	abstract Param<?> p(String name);
+
+	/**
+	 * @return type used for values of class cls
+	 */
+	static ParamType of(Class<?> cls) {
+		ParamType type = TYPES.get(cls);
+		if (type != null) {
+			return type;
+		}
+		return Serializable.class.isAssignableFrom(cls) ? SERIALIZABLE : OBJECT;
+	}
 }
\ No newline at end of file
@@ -18,7 +18,17 @@ package at.molindo.notify.model;
 
 import javax.annotation.Nonnull;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 public class ParamValue {
+
+	/**
+	 * names of values loaded from storage, shared across all params holding
+	 * the same name
+	 */
+	private static final Interner<String> NAMES = Interners.newWeakInterner();
+
 	private ParamType _type;
 	private String _name;
 	private Object _value;
@@ -29,7 +39,8 @@ public class ParamValue {
 
 	public <T> ParamValue(Param<T> param, T value) {
 		setType(param.type());
-		setName(param.getName());
+		// interned params share their name already
+		_name = param.getName();
 		setValue(value);
 	}
 
@@ -52,7 +63,7 @@ public class ParamValue {
 		if (name == null) {
 			throw new NullPointerException("name");
 		}
-		_name = name;
+		_name = NAMES.intern(name);
 	}
 
 	@Nonnull
@@ -16,14 +16,35 @@
 
 package at.molindo.notify.model;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
+import com.google.common.base.Function;
 import com.google.common.collect.Maps;
 
-public class Params implements IParams {
+public class Params implements IParams, IParamsView {
 
-	private Map<String, ParamValue> _params = Maps.newHashMap();
+	private static final Function<ParamValue, Object> VALUE = new Function<ParamValue, Object>() {
+
+		@Override
+		public Object apply(ParamValue input) {
+			return input.getValue();
+		}
+	};
+
+	private static final ParamValue[] EMPTY = new ParamValue[0];
+
+	/**
+	 * values sorted by name. Arrays are sized exactly as most params hold
+	 * only a few values and are rarely modified once built, which is much
+	 * more compact than a HashMap with its table and entries.
+	 */
+	private ParamValue[] _values = EMPTY;
 
 	public Params() {
 
@@ -42,16 +63,16 @@ public class Params implements IParams {
 	@Override
 	public <T> IParams set(Param<T> param, T value) {
 		if (value == null) {
-			_params.remove(param.getName());
+			remove(param.getName());
 		} else {
-			_params.put(param.getName(), param.value(value));
+			put(param.value(value));
 		}
 		return this;
 	}
 
 	@Override
 	public <T> T get(Param<T> param) {
-		ParamValue v = _params.get(param.getName());
+		ParamValue v = find(param.getName());
 		if (v == null || v.getValue() == null) {
 			return null;
 		}
@@ -69,13 +90,13 @@ public class Params implements IParams {
 
 	@Override
 	public boolean isSet(Param<?> param) {
-		return _params.get(param.getName()) != null;
+		return find(param.getName()) != null;
 	}
 
 	@Override
 	public boolean containsAll(Param<?>... params) {
 		for (Param<?> p : params) {
-			if (!_params.containsKey(p.getName())) {
+			if (find(p.getName()) == null) {
 				return false;
 			}
 		}
@@ -93,11 +114,79 @@ public class Params implements IParams {
 		return IParams.Util.newMap(this);
 	}
 
+	/**
+	 * @return read-only view of all values by name, cheaper than
+	 *         {@link #newMap()} if only a few values are read
+	 */
+	@Override
+	public Map<String, Object> asMap() {
+		return Maps.transformValues(new ValuesMap(), VALUE);
+	}
+
+	private int indexOf(Object name) {
+		if (!(name instanceof String)) {
+			return -1;
+		}
+		int low = 0;
+		int high = _values.length - 1;
+		while (low <= high) {
+			int mid = low + high >>> 1;
+			String midName = _values[mid].getName();
+			int cmp = midName == name ? 0 : midName.compareTo((String) name);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private ParamValue find(Object name) {
+		int idx = indexOf(name);
+		return idx >= 0 ? _values[idx] : null;
+	}
+
+	private ParamValue put(ParamValue value) {
+		int idx = indexOf(value.getName());
+		if (idx >= 0) {
+			ParamValue previous = _values[idx];
+			_values[idx] = value;
+			return previous;
+		}
+		idx = -(idx + 1);
+		ParamValue[] values = new ParamValue[_values.length + 1];
+		System.arraycopy(_values, 0, values, 0, idx);
+		values[idx] = value;
+		System.arraycopy(_values, idx, values, idx + 1, _values.length - idx);
+		_values = values;
+		return null;
+	}
+
+	private ParamValue remove(Object name) {
+		int idx = indexOf(name);
+		if (idx < 0) {
+			return null;
+		}
+		ParamValue previous = _values[idx];
+		if (_values.length == 1) {
+			_values = EMPTY;
+		} else {
+			ParamValue[] values = new ParamValue[_values.length - 1];
+			System.arraycopy(_values, 0, values, 0, idx);
+			System.arraycopy(_values, idx + 1, values, idx, values.length - idx);
+			_values = values;
+		}
+		return previous;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + (_params == null ? 0 : _params.hashCode());
+		result = prime * result + getValues().hashCode();
 		return result;
 	}
 
@@ -113,19 +202,12 @@ public class Params implements IParams {
 			return false;
 		}
 		Params other = (Params) obj;
-		if (_params == null) {
-			if (other._params != null) {
-				return false;
-			}
-		} else if (!_params.equals(other._params)) {
-			return false;
-		}
-		return true;
+		return getValues().equals(other.getValues());
 	}
 
 	@Override
 	public String toString() {
-		return "Params [params=" + _params + "]";
+		return "Params [params=" + getValues() + "]";
 	}
 
 	@Override
@@ -133,27 +215,164 @@ public class Params implements IParams {
 		Params p;
 		try {
 			p = (Params) super.clone();
-			p._params = Maps.newHashMap(_params);
+			p._values = _values.length == 0 ? EMPTY : _values.clone();
 			return p;
 		} catch (CloneNotSupportedException e) {
 			throw new RuntimeException("can't clone object?", e);
 		}
 	}
 
+	/**
+	 * @return live view of values by name, a new instance on every call and
+	 *         never the map passed to {@link #setValues(Map)}
+	 */
 	protected Map<String, ParamValue> getValues() {
-		return _params;
+		return new ValuesMap();
 	}
 
+	/**
+	 * replaces all values with the values of params, keys must match the
+	 * names of values. Values are copied, params isn't adopted: later changes
+	 * to it aren't reflected. Subclasses that need to keep the same map
+	 * instance (e.g. a collection managed by a persistence framework) must
+	 * hold it themselves.
+	 */
 	protected void setValues(Map<String, ParamValue> params) {
 		if (params == null) {
 			throw new NullPointerException("params");
 		}
-		_params = params;
+		ParamValue[] values = params.values().toArray(new ParamValue[params.size()]);
+		Arrays.sort(values, NameComparator.INSTANCE);
+		for (Map.Entry<String, ParamValue> e : params.entrySet()) {
+			if (!e.getKey().equals(e.getValue().getName())) {
+				throw new IllegalArgumentException("key " + e.getKey() + " doesn't match name of " + e.getValue());
+			}
+		}
+		_values = values.length == 0 ? EMPTY : values;
+	}
+
+	/**
+	 * replaces all values, sorting the passed array in place
+	 */
+	void setValues(ParamValue[] values) {
+		Arrays.sort(values, NameComparator.INSTANCE);
+		for (int i = 1; i < values.length; i++) {
+			if (values[i - 1].getName().equals(values[i].getName())) {
+				throw new IllegalArgumentException("duplicate name " + values[i].getName());
+			}
+		}
+		_values = values.length == 0 ? EMPTY : values;
 	}
 
 	@Override
 	public Iterator<ParamValue> iterator() {
-		return _params.values().iterator();
+		return new ValuesIterator();
 	}
 
+	private enum NameComparator implements java.util.Comparator<ParamValue> {
+		INSTANCE;
+
+		@Override
+		public int compare(ParamValue v1, ParamValue v2) {
+			return v1.getName().compareTo(v2.getName());
+		}
+	}
+
+	private final class ValuesIterator implements Iterator<ParamValue> {
+		private int _next;
+		private ParamValue _last;
+
+		@Override
+		public boolean hasNext() {
+			return _next < _values.length;
+		}
+
+		@Override
+		public ParamValue next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return _last = _values[_next++];
+		}
+
+		@Override
+		public void remove() {
+			if (_last == null) {
+				throw new IllegalStateException();
+			}
+			Params.this.remove(_last.getName());
+			_last = null;
+			_next--;
+		}
+	}
+
+	private final class ValuesMap extends AbstractMap<String, ParamValue> {
+
+		@Override
+		public int size() {
+			return _values.length;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return find(key) != null;
+		}
+
+		@Override
+		public ParamValue get(Object key) {
+			return find(key);
+		}
+
+		@Override
+		public ParamValue put(String key, ParamValue value) {
+			if (!key.equals(value.getName())) {
+				throw new IllegalArgumentException("key " + key + " doesn't match name of " + value);
+			}
+			return Params.this.put(value);
+		}
+
+		@Override
+		public ParamValue remove(Object key) {
+			return Params.this.remove(key);
+		}
+
+		@Override
+		public void clear() {
+			_values = EMPTY;
+		}
+
+		@Override
+		public Set<Map.Entry<String, ParamValue>> entrySet() {
+			return new AbstractSet<Map.Entry<String, ParamValue>>() {
+
+				@Override
+				public int size() {
+					return _values.length;
+				}
+
+				@Override
+				public Iterator<Map.Entry<String, ParamValue>> iterator() {
+					final Iterator<ParamValue> iter = new ValuesIterator();
+					return new Iterator<Map.Entry<String, ParamValue>>() {
+
+						@Override
+						public boolean hasNext() {
+							return iter.hasNext();
+						}
+
+						@Override
+						public Map.Entry<String, ParamValue> next() {
+							ParamValue v = iter.next();
+							return new AbstractMap.SimpleImmutableEntry<String, ParamValue>(v.getName(), v);
+						}
+
+						@Override
+						public void remove() {
+							iter.remove();
+						}
+					};
+				}
+			};
+		}
+	}
 }
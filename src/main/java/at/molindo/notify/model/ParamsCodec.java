@@ -0,0 +1,373 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.model;
+
+import java.io.NotSerializableException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import at.molindo.utils.data.SerializationUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * compact binary form of {@link IParams}, e.g. to store all params in a
+ * single blob column. Layout:
+ * 
+ * <pre>
+ * version:byte count:varint (type:byte name:string value)*
+ * </pre>
+ * 
+ * integral values are zigzag varints, strings are UTF-8 prefixed by their
+ * varint length. {@link ParamType#SERIALIZABLE} values are prefixed by the
+ * type they are encoded with, so that wrapped primitives and strings don't
+ * need Java serialization. {@link ParamType#OBJECT} values can't be encoded.
+ */
+public final class ParamsCodec {
+
+	public static final byte VERSION = 1;
+
+	private static final byte STRING = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte FLOAT = 5;
+	private static final byte BOOLEAN = 6;
+	private static final byte CHARACTER = 7;
+	private static final byte URL = 8;
+	private static final byte SERIALIZABLE = 9;
+
+	private ParamsCodec() {
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if a value is null or can't be encoded
+	 */
+	public static byte[] encode(@Nonnull IParams params) {
+		// iterate only once, e.g. BeanParams read all properties on iteration
+		List<ParamValue> values = Lists.newArrayList(params);
+
+		Output out = new Output();
+		out.write(VERSION);
+
+		out.writeVarint(values.size());
+
+		for (ParamValue v : values) {
+			ParamType type = v.getType();
+			Object value = v.getValue();
+			if (value == null) {
+				throw new IllegalArgumentException("can't encode null value of " + v.getName());
+			}
+			out.write(tag(type));
+			out.writeString(v.getName());
+			if (type == ParamType.SERIALIZABLE) {
+				writeSerializable(out, value);
+			} else {
+				writeValue(out, type, value);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if bytes are malformed or of an unsupported version
+	 */
+	public static Params decode(@Nonnull byte[] bytes) {
+		Input in = new Input(bytes);
+		byte version = in.read();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("unsupported version " + version);
+		}
+
+		ParamValue[] values = new ParamValue[in.readLength()];
+		for (int i = 0; i < values.length; i++) {
+			ParamType type = type(in.read());
+			Param<?> param = type.p(in.readString());
+			Object value = type == ParamType.SERIALIZABLE ? readValue(in, in.read()) : readValue(in, tag(type));
+			values[i] = param.paramValue(value);
+		}
+		if (in.remaining() > 0) {
+			throw new IllegalArgumentException("unexpected " + in.remaining() + " trailing bytes");
+		}
+
+		Params params = new Params();
+		params.setValues(values);
+		return params;
+	}
+
+	private static void writeSerializable(Output out, Object value) {
+		ParamType valueType = ParamType.of(value.getClass());
+		if (valueType == ParamType.SERIALIZABLE || valueType == ParamType.OBJECT) {
+			out.write(SERIALIZABLE);
+			try {
+				out.writeBytes(SerializationUtils.serialize(value));
+			} catch (NotSerializableException e) {
+				throw new IllegalArgumentException("can't encode value " + value, e);
+			}
+		} else {
+			out.write(tag(valueType));
+			writeValue(out, valueType, value);
+		}
+	}
+
+	private static void writeValue(Output out, ParamType type, Object value) {
+		switch (type) {
+		case STRING:
+			out.writeString((String) value);
+			break;
+		case INTEGER:
+			out.writeVarint(zigzag((Integer) value));
+			break;
+		case LONG:
+			out.writeVarint(zigzag((Long) value));
+			break;
+		case DOUBLE:
+			out.writeFixed(Double.doubleToLongBits((Double) value), 8);
+			break;
+		case FLOAT:
+			out.writeFixed(Float.floatToIntBits((Float) value), 4);
+			break;
+		case BOOLEAN:
+			out.write((Boolean) value ? (byte) 1 : (byte) 0);
+			break;
+		case CHARACTER:
+			out.writeVarint((Character) value);
+			break;
+		case URL:
+			out.writeString(((URL) value).toExternalForm());
+			break;
+		default:
+			throw new IllegalArgumentException("can't encode value of type " + type);
+		}
+	}
+
+	private static Object readValue(Input in, byte tag) {
+		switch (tag) {
+		case STRING:
+			return in.readString();
+		case INTEGER:
+			return (int) unzigzag(in.readVarint());
+		case LONG:
+			return unzigzag(in.readVarint());
+		case DOUBLE:
+			return Double.longBitsToDouble(in.readFixed(8));
+		case FLOAT:
+			return Float.intBitsToFloat((int) in.readFixed(4));
+		case BOOLEAN:
+			return in.read() != 0;
+		case CHARACTER:
+			return (char) in.readVarint();
+		case URL:
+			try {
+				return new URL(in.readString());
+			} catch (MalformedURLException e) {
+				throw new IllegalArgumentException("invalid url", e);
+			}
+		case SERIALIZABLE:
+			try {
+				return SerializationUtils.deserialize(in.readBytes());
+			} catch (ClassNotFoundException e) {
+				throw new IllegalArgumentException("can't decode serialized value", e);
+			}
+		default:
+			throw new IllegalArgumentException("unknown value type " + tag);
+		}
+	}
+
+	private static byte tag(ParamType type) {
+		switch (type) {
+		case STRING:
+			return STRING;
+		case INTEGER:
+			return INTEGER;
+		case LONG:
+			return LONG;
+		case DOUBLE:
+			return DOUBLE;
+		case FLOAT:
+			return FLOAT;
+		case BOOLEAN:
+			return BOOLEAN;
+		case CHARACTER:
+			return CHARACTER;
+		case URL:
+			return URL;
+		case SERIALIZABLE:
+			return SERIALIZABLE;
+		default:
+			throw new IllegalArgumentException("can't encode values of type " + type);
+		}
+	}
+
+	private static ParamType type(byte tag) {
+		switch (tag) {
+		case STRING:
+			return ParamType.STRING;
+		case INTEGER:
+			return ParamType.INTEGER;
+		case LONG:
+			return ParamType.LONG;
+		case DOUBLE:
+			return ParamType.DOUBLE;
+		case FLOAT:
+			return ParamType.FLOAT;
+		case BOOLEAN:
+			return ParamType.BOOLEAN;
+		case CHARACTER:
+			return ParamType.CHARACTER;
+		case URL:
+			return ParamType.URL;
+		case SERIALIZABLE:
+			return ParamType.SERIALIZABLE;
+		default:
+			throw new IllegalArgumentException("unknown type " + tag);
+		}
+	}
+
+	private static long zigzag(long value) {
+		return value << 1 ^ value >> 63;
+	}
+
+	private static long unzigzag(long value) {
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	/**
+	 * unsynchronized growing byte buffer
+	 */
+	private static final class Output {
+		private byte[] _buf = new byte[64];
+		private int _pos;
+
+		private void ensure(int length) {
+			if (_pos + length > _buf.length) {
+				_buf = Arrays.copyOf(_buf, Math.max(_buf.length << 1, _pos + length));
+			}
+		}
+
+		void write(byte b) {
+			ensure(1);
+			_buf[_pos++] = b;
+		}
+
+		void writeVarint(long value) {
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				_buf[_pos++] = (byte) (value & 0x7F | 0x80);
+				value >>>= 7;
+			}
+			_buf[_pos++] = (byte) value;
+		}
+
+		void writeFixed(long value, int bytes) {
+			ensure(bytes);
+			for (int i = bytes - 1; i >= 0; i--) {
+				_buf[_pos++] = (byte) (value >>> i * 8);
+			}
+		}
+
+		void writeBytes(byte[] bytes) {
+			writeVarint(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, _buf, _pos, bytes.length);
+			_pos += bytes.length;
+		}
+
+		void writeString(String string) {
+			writeBytes(string.getBytes(StandardCharsets.UTF_8));
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(_buf, _pos);
+		}
+	}
+
+	private static final class Input {
+		private final byte[] _buf;
+		private int _pos;
+
+		private Input(byte[] buf) {
+			_buf = buf;
+		}
+
+		private void check(int length) {
+			if (length < 0 || length > remaining()) {
+				throw new IllegalArgumentException("truncated input at position " + _pos);
+			}
+		}
+
+		int remaining() {
+			return _buf.length - _pos;
+		}
+
+		byte read() {
+			check(1);
+			return _buf[_pos++];
+		}
+
+		long readVarint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = read();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("malformed varint at position " + _pos);
+		}
+
+		long readFixed(int bytes) {
+			check(bytes);
+			long value = 0;
+			for (int i = 0; i < bytes; i++) {
+				value = value << 8 | _buf[_pos++] & 0xFF;
+			}
+			return value;
+		}
+
+		byte[] readBytes() {
+			int length = readLength();
+			byte[] bytes = Arrays.copyOfRange(_buf, _pos, _pos + length);
+			_pos += length;
+			return bytes;
+		}
+
+		String readString() {
+			int length = readLength();
+			String string = new String(_buf, _pos, length, StandardCharsets.UTF_8);
+			_pos += length;
+			return string;
+		}
+
+		/**
+		 * @return a length that doesn't exceed the remaining bytes
+		 */
+		int readLength() {
+			long length = readVarint();
+			check(length > Integer.MAX_VALUE ? -1 : (int) length);
+			return (int) length;
+		}
+	}
+}
@@ -95,8 +95,13 @@ public class Template implements Cloneable {
 		return this;
 	}
 
+	/**
+	 * @return identity of this template variant, independent of content and
+	 *         modification date
+	 */
 	public Key key() {
-		return getKey() == null || getVersion() == null ? null : new Key(getKey(), getVersion());
+		return getKey() == null || getVersion() == null ? null : new Key(getKey(), getVersion(), getType(),
+				getLocale());
 	}
 
 	public Locale getLocale() {
@@ -178,8 +183,10 @@ public class Template implements Cloneable {
 
 		private final String _key;
 		private final Version _version;
+		private final Type _type;
+		private final Locale _locale;
 
-		private Key(String key, Version version) {
+		private Key(String key, Version version, Type type, Locale locale) {
 			if (key == null) {
 				throw new NullPointerException("key");
 			}
@@ -188,6 +195,8 @@ public class Template implements Cloneable {
 			}
 			_key = key;
 			_version = version;
+			_type = type;
+			_locale = locale;
 		}
 
 		@Override
@@ -196,6 +205,8 @@ public class Template implements Cloneable {
 			int result = 1;
 			result = prime * result + _key.hashCode();
 			result = prime * result + _version.hashCode();
+			result = prime * result + (_type == null ? 0 : _type.hashCode());
+			result = prime * result + (_locale == null ? 0 : _locale.hashCode());
 			return result;
 		}
 
@@ -218,8 +229,23 @@ public class Template implements Cloneable {
 			if (_version != other._version) {
 				return false;
 			}
+			if (_type != other._type) {
+				return false;
+			}
+			if (_locale == null) {
+				if (other._locale != null) {
+					return false;
+				}
+			} else if (!_locale.equals(other._locale)) {
+				return false;
+			}
 			return true;
 		}
+
+		@Override
+		public String toString() {
+			return _key + "." + _version + (_locale == null ? "" : "." + _locale) + "." + _type;
+		}
 	}
 
 	@Override
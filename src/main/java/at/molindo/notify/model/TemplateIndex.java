@@ -0,0 +1,193 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.model;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import at.molindo.notify.render.IRenderService.Type;
+import at.molindo.notify.render.IRenderService.Version;
+import at.molindo.utils.data.StringUtils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * immutable lookup structure for all templates of a key, built once when
+ * templates are loaded. HTML is preferred over TEXT. Locales fall back from
+ * full locale (de_AT) to language (de) to templates without locale and
+ * finally to any template of the requested version. Resolved locales are
+ * memoized, hence lookups don't allocate.
+ *
+ * Templates are shared and must not be modified.
+ */
+public final class TemplateIndex {
+
+	private static final TemplateIndex EMPTY = new TemplateIndex(ImmutableList.<Template> of());
+
+	private static final String NO_LOCALE = "";
+
+	/**
+	 * locales might be user input
+	 */
+	private static final int MAX_RESOLVED = 256;
+
+	private final List<Template> _templates;
+	private final VersionIndex[] _versions = new VersionIndex[Version.values().length];
+
+	@Nonnull
+	public static TemplateIndex of(@Nonnull Collection<Template> templates) {
+		return templates.isEmpty() ? EMPTY : new TemplateIndex(templates);
+	}
+
+	@Nonnull
+	public static TemplateIndex empty() {
+		return EMPTY;
+	}
+
+	private TemplateIndex(Collection<Template> templates) {
+		_templates = ImmutableList.copyOf(templates);
+		for (Version version : Version.values()) {
+			_versions[version.ordinal()] = new VersionIndex(_templates, version);
+		}
+	}
+
+	/**
+	 * @param locale
+	 *            locale as returned by {@link Locale#toString()}, e.g. de_AT,
+	 *            or null
+	 * @return best matching template or null if no template of version
+	 *         available
+	 */
+	@CheckForNull
+	public Template choose(@Nonnull Version version, @CheckForNull String locale) {
+		return _versions[version.ordinal()].choose(locale == null ? NO_LOCALE : locale);
+	}
+
+	@CheckForNull
+	public Template choose(@Nonnull Version version, @CheckForNull Locale locale) {
+		return choose(version, locale == null ? null : locale.toString());
+	}
+
+	/**
+	 * @return all indexed templates
+	 */
+	@Nonnull
+	public List<Template> getTemplates() {
+		return _templates;
+	}
+
+	public boolean isEmpty() {
+		return _templates.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "TemplateIndex [templates=" + _templates + "]";
+	}
+
+	private static boolean better(@CheckForNull Template current, @Nonnull Template candidate) {
+		// prefer HTML over TEXT
+		return current == null || candidate.getType() == Type.HTML && current.getType() != Type.HTML;
+	}
+
+	private static final class VersionIndex {
+
+		/**
+		 * templates by full locale
+		 */
+		private final Map<String, Template> _locales = Maps.newHashMap();
+
+		/**
+		 * best template by language
+		 */
+		private final Map<String, Template> _languages = Maps.newHashMap();
+
+		/**
+		 * template without locale or any template
+		 */
+		private final Template _fallback;
+
+		private final ConcurrentMap<String, Template> _resolved = Maps.newConcurrentMap();
+
+		private VersionIndex(List<Template> templates, Version version) {
+			Template noLocale = null;
+			Template any = null;
+			Map<String, Template> languagesOnly = Maps.newHashMap();
+
+			for (Template t : templates) {
+				if (t.getVersion() != version) {
+					continue;
+				}
+				if (better(any, t)) {
+					any = t;
+				}
+
+				Locale locale = t.getLocale();
+				if (locale == null || StringUtils.empty(locale.toString())) {
+					if (better(noLocale, t)) {
+						noLocale = t;
+					}
+					continue;
+				}
+
+				String tag = locale.toString();
+				if (better(_locales.get(tag), t)) {
+					_locales.put(tag, t);
+				}
+
+				String language = locale.getLanguage();
+				if (StringUtils.empty(locale.getCountry()) && better(languagesOnly.get(language), t)) {
+					languagesOnly.put(language, t);
+				}
+				if (better(_languages.get(language), t)) {
+					_languages.put(language, t);
+				}
+			}
+			// prefer templates for language only over other countries
+			_languages.putAll(languagesOnly);
+
+			_fallback = noLocale != null ? noLocale : any;
+		}
+
+		private Template choose(String locale) {
+			Template t = _resolved.get(locale);
+			if (t == null && _fallback != null) {
+				t = resolve(locale);
+				if (_resolved.size() < MAX_RESOLVED) {
+					_resolved.putIfAbsent(locale, t);
+				}
+			}
+			return t;
+		}
+
+		private Template resolve(String locale) {
+			Template t = _locales.get(locale);
+			if (t == null) {
+				int idx = locale.indexOf('_');
+				t = _languages.get(idx < 0 ? locale : locale.substring(0, idx));
+			}
+			return t == null ? _fallback : t;
+		}
+	}
+}
@@ -16,10 +16,31 @@
 
 package at.molindo.notify.render;
 
+import java.io.Writer;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+
 import at.molindo.notify.model.IParams;
 import at.molindo.notify.model.Template;
 import at.molindo.notify.render.IRenderService.RenderException;
 
 public interface ITemplateRenderer {
 	String render(Template template, IParams params) throws RenderException;
+
+	/**
+	 * renders template to writer without creating an intermediate String
+	 */
+	void render(Template template, IParams params, Writer writer) throws RenderException;
+
+	/**
+	 * prepares template for rendering, e.g. to fail early on parse errors
+	 */
+	void compile(Template template) throws RenderException;
+
+	/**
+	 * @return names of all params template might read or null if unknown
+	 */
+	@CheckForNull
+	Set<String> getReferences(Template template) throws RenderException;
 }
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.render;
+
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import at.molindo.notify.model.Message;
+import at.molindo.notify.render.IRenderService.Type;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * master template rendered once with placeholders for the inner message.
+ * Applying a layout only concatenates static segments and message values
+ * instead of merging and parsing the master template again.
+ */
+final class MasterLayout {
+
+	private enum Field {
+		SUBJECT, MESSAGE, TEXT, HTML;
+
+		/**
+		 * contains chars changed by any escaping, so that escaped or
+		 * otherwise transformed values aren't mistaken for plain ones
+		 */
+		private final String _marker = "<&'\"layout:" + name() + "\"'&>";
+	}
+
+	private final Type _type;
+	private final List<Object> _subject;
+	private final List<Object> _body;
+
+	private MasterLayout(Type type, List<Object> subject, List<Object> body) {
+		_type = type;
+		_subject = subject;
+		_body = body;
+	}
+
+	/**
+	 * @return placeholder to pass as message when rendering the master
+	 *         template for {@link #compile(Placeholder, Message)}
+	 */
+	static Placeholder placeholder() {
+		return new Placeholder();
+	}
+
+	/**
+	 * @param rendered
+	 *            master template rendered with placeholder
+	 * @return layout or null if template didn't simply output message
+	 *         properties, e.g. used them in conditions or transformed them
+	 */
+	@CheckForNull
+	static MasterLayout compile(@Nonnull Placeholder placeholder, @Nonnull Message rendered) {
+		ImmutableList.Builder<Object> subject = ImmutableList.builder();
+		ImmutableList.Builder<Object> body = ImmutableList.builder();
+
+		int fields = split(rendered.getSubject(), subject) + split(rendered.getMessage(), body);
+		if (fields != placeholder._reads) {
+			return null;
+		}
+		return new MasterLayout(rendered.getType(), subject.build(), body.build());
+	}
+
+	/**
+	 * @return number of placeholders in str
+	 */
+	private static int split(String str, ImmutableList.Builder<Object> segments) {
+		if (str == null) {
+			segments.add("");
+			return 0;
+		}
+
+		int count = 0;
+		int pos = 0;
+		while (true) {
+			Field next = null;
+			int nextIdx = -1;
+			for (Field field : Field.values()) {
+				int idx = str.indexOf(field._marker, pos);
+				if (idx >= 0 && (nextIdx < 0 || idx < nextIdx)) {
+					next = field;
+					nextIdx = idx;
+				}
+			}
+			if (next == null) {
+				break;
+			}
+			if (nextIdx > pos) {
+				segments.add(str.substring(pos, nextIdx));
+			}
+			segments.add(next);
+			pos = nextIdx + next._marker.length();
+			count++;
+		}
+		if (pos < str.length()) {
+			segments.add(str.substring(pos));
+		}
+		return count;
+	}
+
+	/**
+	 * @return message in layout or null if message has null values or the
+	 *         body is blank
+	 */
+	@CheckForNull
+	Message apply(@Nonnull Message message) {
+		String subject = join(_subject, message);
+		String body = subject == null ? null : stripBlankLines(join(_body, message));
+		if (body == null) {
+			return null;
+		}
+		Message layout = new Message(subject.trim(), body, _type);
+		layout.setHtml2Text(message.getHtml2Text());
+		return layout;
+	}
+
+	/**
+	 * @return body without leading blank lines (as skipped by
+	 *         {@link Message#parse(CharSequence, Type)}) or null if blank
+	 */
+	@CheckForNull
+	private static String stripBlankLines(@CheckForNull String body) {
+		if (body == null) {
+			return null;
+		}
+		int len = body.length();
+		int pos = 0;
+		while (pos < len) {
+			int eol = body.indexOf('\n', pos);
+			int lineEnd = eol < 0 ? len : eol;
+			for (int i = pos; i < lineEnd; i++) {
+				if (body.charAt(i) > ' ') {
+					return pos == 0 ? body : body.substring(pos);
+				}
+			}
+			if (eol < 0) {
+				break;
+			}
+			pos = eol + 1;
+		}
+		return null;
+	}
+
+	private static String join(List<Object> segments, Message message) {
+		if (segments.size() == 1 && segments.get(0) instanceof String) {
+			return (String) segments.get(0);
+		}
+
+		String[] values = new String[segments.size()];
+		int length = 0;
+		for (int i = 0; i < values.length; i++) {
+			Object segment = segments.get(i);
+			String value = segment instanceof Field ? value((Field) segment, message) : (String) segment;
+			if (value == null) {
+				// would fail in strict mode
+				return null;
+			}
+			values[i] = value;
+			length += value.length();
+		}
+
+		StringBuilder buf = new StringBuilder(length);
+		for (String value : values) {
+			buf.append(value);
+		}
+		return buf.toString();
+	}
+
+	private static String value(Field field, Message message) {
+		switch (field) {
+		case SUBJECT:
+			return message.getSubject();
+		case MESSAGE:
+			return message.getMessage();
+		case TEXT:
+			return message.getText();
+		case HTML:
+			return message.getHtml();
+		default:
+			throw new IllegalArgumentException("unexpected field " + field);
+		}
+	}
+
+	/**
+	 * passed to master template instead of the inner message, counts reads
+	 * of its properties
+	 */
+	public static final class Placeholder {
+
+		private int _reads;
+
+		private Placeholder() {
+		}
+
+		public String getSubject() {
+			return read(Field.SUBJECT);
+		}
+
+		public String getMessage() {
+			return read(Field.MESSAGE);
+		}
+
+		public String getText() {
+			return read(Field.TEXT);
+		}
+
+		public String getHtml() {
+			return read(Field.HTML);
+		}
+
+		public Type getType() {
+			// can't be used as placeholder
+			_reads = -1;
+			return null;
+		}
+
+		private String read(Field field) {
+			if (_reads >= 0) {
+				_reads++;
+			}
+			return field._marker;
+		}
+
+		@Override
+		public String toString() {
+			_reads = -1;
+			return super.toString();
+		}
+	}
+}
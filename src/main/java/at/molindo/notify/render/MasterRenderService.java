@@ -16,6 +16,13 @@
 
 package at.molindo.notify.render;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.CheckForNull;
+
 import at.molindo.notify.INotifyService;
 import at.molindo.notify.model.IParams;
 import at.molindo.notify.model.Message;
@@ -23,39 +30,120 @@ import at.molindo.notify.model.Param;
 import at.molindo.notify.model.Params;
 import at.molindo.utils.data.StringUtils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 public class MasterRenderService implements IRenderService {
 
 	public static final String DEFAULT_TEMPLATE_KEY = "masterTemplate";
 	public static final String DEFAULT_TEMPLATE_CONTENT = "message";
+	public static final long DEFAULT_LAYOUT_TTL_MS = 60 * 1000;
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(MasterRenderService.class);
 
 	private IRenderService _renderService;
 	private String _masterTemplateKey = DEFAULT_TEMPLATE_KEY;
 	private String _masterTemplateMessage = DEFAULT_TEMPLATE_CONTENT;
 	private IParams _masterParams;
 
+	private boolean _layout = false;
+	private long _layoutTtlMs = DEFAULT_LAYOUT_TTL_MS;
+	private final Cache<List<Object>, CachedLayout> _layouts = CacheBuilder.newBuilder().build();
+
 	@Override
 	public Message render(String key, Version version, IParams params) throws RenderException {
 
 		Message mRaw = _renderService.render(key, version, params);
 
+		Boolean renderMaster = params.get(INotifyService.RENDER_MASTER_TEMPLATE);
+		if (Boolean.FALSE.equals(renderMaster)) {
+			return mRaw;
+		}
+
+		String locale = params.get(INotifyService.LOCALE);
+
+		Message m = null;
+		if (_layout) {
+			MasterLayout layout = layout(version, locale);
+			if (layout != null) {
+				m = layout.apply(mRaw);
+			}
+		}
+		if (m == null) {
+			m = _renderService.render(_masterTemplateKey, version, masterParams(mRaw, locale));
+		}
+
+		if (StringUtils.empty(m.getSubject()) && !StringUtils.empty(mRaw.getSubject())) {
+			m.setSubject(mRaw.getSubject());
+		}
+		return m;
+	}
+
+	private Params masterParams(Object message, String locale) {
 		Params masterParams = new Params();
 		if (_masterParams != null) {
 			masterParams.setAll(_masterParams);
 		}
-		masterParams.set(getMasterTemplateMessageParam(), mRaw);
-
-		Boolean renderMaster = params.get(INotifyService.RENDER_MASTER_TEMPLATE);
+		masterParams.set(getMasterTemplateMessageParam(), message);
+		if (masterParams.get(INotifyService.LOCALE) == null) {
+			// choose master template in same locale
+			masterParams.set(INotifyService.LOCALE, locale);
+		}
+		return masterParams;
+	}
 
-		Message m;
-		if (!Boolean.FALSE.equals(renderMaster)) {
-			m = _renderService.render(_masterTemplateKey, version, masterParams);
-			if (StringUtils.empty(m.getSubject()) && !StringUtils.empty(mRaw.getSubject())) {
-				m.setSubject(mRaw.getSubject());
+	/**
+	 * @return layout of master template or null if master template can't be
+	 *         used as layout
+	 */
+	private MasterLayout layout(final Version version, final String locale) throws RenderException {
+		List<Object> key = Arrays.<Object> asList(version, locale);
+		try {
+			while (true) {
+				CachedLayout cached = _layouts.get(key, new Callable<CachedLayout>() {
+
+					@Override
+					public CachedLayout call() throws RenderException {
+						return new CachedLayout(compile(version, locale), System.currentTimeMillis() + _layoutTtlMs);
+					}
+				});
+				if (System.currentTimeMillis() < cached._expires) {
+					return cached._layout;
+				}
+				// render again to pick up modified master templates
+				_layouts.asMap().remove(key, cached);
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RenderException) {
+				throw (RenderException) e.getCause();
 			}
-		} else {
-			m = mRaw;
+			throw new RenderException("failed to render master template layout", e.getCause());
+		} catch (UncheckedExecutionException e) {
+			throw new RenderException("failed to render master template layout", e.getCause());
 		}
-		return m;
+	}
+
+	@CheckForNull
+	private MasterLayout compile(Version version, String locale) throws RenderException {
+		MasterLayout.Placeholder placeholder = MasterLayout.placeholder();
+		Message rendered = _renderService.render(_masterTemplateKey, version, masterParams(placeholder, locale));
+		MasterLayout layout = MasterLayout.compile(placeholder, rendered);
+		if (layout == null) {
+			log.info("master template '" + _masterTemplateKey + "' (" + version + ", " + locale
+					+ ") not usable as layout, rendering it for every message");
+		}
+		return layout;
+	}
+
+	/**
+	 * @return true if the master template is used as layout, false if it is
+	 *         rendered for every message or null if not known yet
+	 */
+	@CheckForNull
+	Boolean isLayout(Version version, String locale) {
+		CachedLayout cached = _layouts.getIfPresent(Arrays.<Object> asList(version, locale));
+		return cached == null ? null : cached._layout != null;
 	}
 
 	public void setRenderService(IRenderService renderService) {
@@ -85,8 +173,46 @@ public class MasterRenderService implements IRenderService {
 		return _masterParams;
 	}
 
+	/**
+	 * params passed to the master template. Unless they set
+	 * {@link INotifyService#LOCALE}, the master template is chosen in the
+	 * locale of the rendered message.
+	 */
 	public void setMasterParams(IParams masterParams) {
 		_masterParams = masterParams;
 	}
 
+	public boolean isLayout() {
+		return _layout;
+	}
+
+	/**
+	 * render master template only once per version and locale, inserting
+	 * the properties of each message into its output. Only usable if the
+	 * master template depends on nothing but the message, locale and
+	 * masterParams. Master templates using message properties in conditions
+	 * or transforming them (e.g. escaping) are still rendered per message.
+	 */
+	public void setLayout(boolean layout) {
+		_layout = layout;
+	}
+
+	/**
+	 * time until a layout is rendered again to pick up modified master
+	 * templates
+	 */
+	public void setLayoutTtlMs(long layoutTtlMs) {
+		_layoutTtlMs = layoutTtlMs;
+	}
+
+	private static final class CachedLayout {
+		private final MasterLayout _layout;
+		private final long _expires;
+
+		private CachedLayout(@CheckForNull MasterLayout layout, long expires) {
+			_layout = layout;
+			_expires = expires;
+		}
+	}
+
 }
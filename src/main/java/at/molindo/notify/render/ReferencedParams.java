@@ -0,0 +1,142 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.render;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import at.molindo.notify.model.IParams;
+import at.molindo.notify.model.IParamsView;
+import at.molindo.notify.model.Param;
+import at.molindo.notify.model.ParamValue;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+
+/**
+ * read-only view of params restricted to the params referenced by a template,
+ * avoids copying unused params for every render
+ */
+class ReferencedParams implements IParams, IParamsView {
+
+	private final IParams _params;
+	private final Set<String> _references;
+
+	ReferencedParams(@Nonnull IParams params, @Nonnull Set<String> references) {
+		_params = params;
+		_references = references;
+	}
+
+	@Override
+	public <T> IParams set(Param<T> param, T value) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public <T> T get(Param<T> param) {
+		return _references.contains(param.getName()) ? _params.get(param) : null;
+	}
+
+	@Override
+	public boolean isSet(Param<?> param) {
+		return _references.contains(param.getName()) && _params.isSet(param);
+	}
+
+	@Override
+	public boolean containsAll(Param<?>... params) {
+		for (Param<?> param : params) {
+			if (!isSet(param)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public IParams setAll(IParams params) {
+		throw new UnsupportedOperationException("read only");
+	}
+
+	@Override
+	public Map<String, Object> newMap() {
+		Map<String, Object> map = Maps.newHashMapWithExpectedSize(_references.size());
+		for (ParamValue v : _params) {
+			if (_references.contains(v.getName())) {
+				map.put(v.getName(), v.getValue());
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * @return referenced values of params without copying them if params are
+	 *         an {@link IParamsView}
+	 */
+	@Override
+	public Map<String, Object> asMap() {
+		if (!(_params instanceof IParamsView)) {
+			return newMap();
+		}
+		return new ReferencedMap(((IParamsView) _params).asMap());
+	}
+
+	@Override
+	public Iterator<ParamValue> iterator() {
+		return Iterators.filter(_params.iterator(), new Predicate<ParamValue>() {
+
+			@Override
+			public boolean apply(ParamValue v) {
+				return _references.contains(v.getName());
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		return "ReferencedParams [references=" + _references + ", params=" + _params + "]";
+	}
+
+	private final class ReferencedMap extends AbstractMap<String, Object> {
+
+		private final Map<String, Object> _map;
+
+		private ReferencedMap(Map<String, Object> map) {
+			_map = map;
+		}
+
+		@Override
+		public Object get(Object key) {
+			return _references.contains(key) ? _map.get(key) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return _references.contains(key) && _map.containsKey(key);
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return Maps.filterKeys(_map, Predicates.in(_references)).entrySet();
+		}
+	}
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.render;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import at.molindo.notify.model.IParams;
+import at.molindo.notify.model.IParamsView;
+import at.molindo.notify.model.Message;
+import at.molindo.notify.model.Param;
+import at.molindo.notify.model.ParamValue;
+import at.molindo.notify.model.Template;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ForwardingMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * caches rendered messages by template and the values of all params the
+ * template read while rendering. As rendering is deterministic, equal values
+ * of these params result in an equal message, regardless of any other params
+ * (e.g. the recipient).
+ *
+ * Immutable values (strings, numbers, dates, enums, ...) and messages are
+ * compared by equality, all other objects by identity. Hence templates that
+ * read beans like the notification or preferences are cached per bean
+ * instance only. Beans are referenced weakly, such entries never match again
+ * once the bean is gone and are evicted eventually.
+ *
+ * Read params are tracked for the latest version of each template only.
+ */
+class RenderCache {
+
+	/**
+	 * maximum number of different sets of read params per template
+	 */
+	private static final int MAX_READ_SETS = 8;
+
+	private final Cache<Entry, Message> _messages;
+
+	// per call of get(..), not per lookup
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+
+	private final ConcurrentMap<Template.Key, Reads> _reads = Maps.newConcurrentMap();
+
+	RenderCache(int maxSize) {
+		_messages = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+	}
+
+	/**
+	 * @return a copy of the cached message or null
+	 */
+	@CheckForNull
+	Message get(@Nonnull Template template, @Nonnull IParams params) {
+		Template.Key key = template.key();
+		Reads reads = key == null ? null : _reads.get(key);
+		if (reads != null && reads._template.equals(template)) {
+			Map<String, Object> values = null;
+			for (List<String> names : reads._sets) {
+				if (values == null) {
+					values = values(params);
+				}
+				Message m = _messages.getIfPresent(new Entry(template, names, values));
+				if (m != null) {
+					_hits.incrementAndGet();
+					return copy(m);
+				}
+			}
+		}
+		_misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * caches a message rendered from params returned by
+	 * {@link #record(IParams)}
+	 */
+	void put(@Nonnull Template template, @Nonnull IParams recorded, @Nonnull Message message) {
+		if (!(recorded instanceof RecordingParams)) {
+			throw new IllegalArgumentException("params not recorded");
+		}
+		RecordingParams rp = (RecordingParams) recorded;
+		Template.Key key = template.key();
+		if (rp._all || key == null) {
+			// not cacheable
+			return;
+		}
+
+		List<String> names = ImmutableList.copyOf(ImmutableSortedSet.copyOf(rp._names));
+
+		Reads reads = _reads.get(key);
+		while (reads == null || !reads._template.equals(template)) {
+			// first or replaced version of template, drops previous reads
+			Reads created = new Reads(template.clone());
+			if (reads == null ? _reads.putIfAbsent(key, created) == null : _reads.replace(key, reads, created)) {
+				reads = created;
+			} else {
+				reads = _reads.get(key);
+			}
+		}
+		if (!reads._sets.contains(names)) {
+			if (reads._sets.size() >= MAX_READ_SETS) {
+				// too many paths through this template
+				return;
+			}
+			reads._sets.add(names);
+		}
+
+		_messages.put(new Entry(template, names, values(rp._params)), copy(message));
+	}
+
+	/**
+	 * @return params recording every read for {@link #put(Template, IParams, Message)}
+	 */
+	@Nonnull
+	IParams record(@Nonnull IParams params) {
+		return new RecordingParams(params);
+	}
+
+	/**
+	 * @return hits and misses of {@link #get(Template, IParams)} and evictions
+	 */
+	@Nonnull
+	CacheStats stats() {
+		return new CacheStats(_hits.get(), _misses.get(), 0, 0, 0, _messages.stats().evictionCount());
+	}
+
+	void invalidateAll() {
+		_messages.invalidateAll();
+		_reads.clear();
+	}
+
+	/**
+	 * @return number of templates with tracked reads
+	 */
+	int templates() {
+		return _reads.size();
+	}
+
+	/**
+	 * @return values by name, only read for names of a read set
+	 */
+	private static Map<String, Object> values(IParams params) {
+		return params instanceof IParamsView ? ((IParamsView) params).asMap() : params.newMap();
+	}
+
+	private static Message copy(Message m) {
+		return new Message(m);
+	}
+
+	/**
+	 * @return an object that is equal for equal values, identity otherwise
+	 */
+	private static Object fingerprint(Object value) {
+		if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean
+				|| value instanceof Character || value instanceof Enum || value instanceof Locale) {
+			return value;
+		} else if (value instanceof Date) {
+			return ((Date) value).getTime();
+		} else if (value instanceof Message) {
+			Message m = (Message) value;
+			return Arrays.asList(m.getType(), m.getSubject(), m.getMessage());
+		} else {
+			return new Identity(value);
+		}
+	}
+
+	private static final class Entry {
+
+		private final Template _template;
+		private final List<String> _names;
+		private final Object[] _values;
+		private final int _hashCode;
+
+		private Entry(Template template, List<String> names, Map<String, Object> values) {
+			_template = template;
+			_names = names;
+			_values = new Object[names.size()];
+			for (int i = 0; i < _values.length; i++) {
+				_values[i] = fingerprint(values.get(names.get(i)));
+			}
+			_hashCode = 31 * (31 * template.hashCode() + names.hashCode()) + Arrays.hashCode(_values);
+		}
+
+		@Override
+		public int hashCode() {
+			return _hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj instanceof Entry == false) {
+				return false;
+			}
+			Entry other = (Entry) obj;
+			return _hashCode == other._hashCode && _names.equals(other._names) && Arrays.equals(_values, other._values)
+					&& _template.equals(other._template);
+		}
+	}
+
+	/**
+	 * read params of a template version
+	 */
+	private static final class Reads {
+		private final Template _template;
+		private final Set<List<String>> _sets = new CopyOnWriteArraySet<List<String>>();
+
+		private Reads(Template template) {
+			_template = template;
+		}
+	}
+
+	/**
+	 * doesn't keep cached objects from being garbage collected
+	 */
+	private static final class Identity {
+		private final WeakReference<Object> _object;
+		private final int _hashCode;
+
+		private Identity(Object object) {
+			_object = new WeakReference<Object>(object);
+			_hashCode = System.identityHashCode(object);
+		}
+
+		@Override
+		public int hashCode() {
+			return _hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			Object object = _object.get();
+			return object != null && obj instanceof Identity && ((Identity) obj)._object.get() == object;
+		}
+	}
+
+	/**
+	 * records names of read params, any bulk access makes the result
+	 * uncacheable
+	 */
+	private static final class RecordingParams implements IParams, IParamsView {
+
+		private final IParams _params;
+		private final Set<String> _names = Sets.newHashSet();
+		private boolean _all;
+
+		private RecordingParams(IParams params) {
+			_params = params;
+		}
+
+		@Override
+		public <T> IParams set(Param<T> param, T value) {
+			throw new UnsupportedOperationException("read only");
+		}
+
+		@Override
+		public <T> T get(Param<T> param) {
+			_names.add(param.getName());
+			return _params.get(param);
+		}
+
+		@Override
+		public boolean isSet(Param<?> param) {
+			_names.add(param.getName());
+			return _params.isSet(param);
+		}
+
+		@Override
+		public boolean containsAll(Param<?>... params) {
+			for (Param<?> param : params) {
+				_names.add(param.getName());
+			}
+			return _params.containsAll(params);
+		}
+
+		@Override
+		public IParams setAll(IParams params) {
+			throw new UnsupportedOperationException("read only");
+		}
+
+		@Override
+		public Map<String, Object> newMap() {
+			return recording(_params.newMap());
+		}
+
+		@Override
+		public Map<String, Object> asMap() {
+			return recording(_params instanceof IParamsView ? ((IParamsView) _params).asMap() : _params.newMap());
+		}
+
+		private Map<String, Object> recording(final Map<String, Object> map) {
+			return new ForwardingMap<String, Object>() {
+
+				@Override
+				protected Map<String, Object> delegate() {
+					return map;
+				}
+
+				@Override
+				public Object get(Object key) {
+					_names.add(String.valueOf(key));
+					return super.get(key);
+				}
+
+				@Override
+				public boolean containsKey(Object key) {
+					_names.add(String.valueOf(key));
+					return super.containsKey(key);
+				}
+
+				@Override
+				public Set<String> keySet() {
+					_all = true;
+					return super.keySet();
+				}
+
+				@Override
+				public Collection<Object> values() {
+					_all = true;
+					return super.values();
+				}
+
+				@Override
+				public Set<Map.Entry<String, Object>> entrySet() {
+					_all = true;
+					return super.entrySet();
+				}
+			};
+		}
+
+		@Override
+		public Iterator<ParamValue> iterator() {
+			_all = true;
+			return _params.iterator();
+		}
+	}
+}
@@ -16,19 +16,55 @@
 
 package at.molindo.notify.render;
 
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.CheckForNull;
+
 import org.springframework.beans.factory.InitializingBean;
 
+import at.molindo.notify.INotifyService;
 import at.molindo.notify.dao.ITemplateDAO;
 import at.molindo.notify.model.IParams;
 import at.molindo.notify.model.Message;
 import at.molindo.notify.model.Template;
-import at.molindo.notify.util.NotifyUtils;
+import at.molindo.notify.util.IHtml2Text;
+import at.molindo.notify.util.JerichoHtml2Text;
+import at.molindo.notify.util.SimpleHtml2Text;
+import at.molindo.notify.util.StringBuilderWriter;
+import at.molindo.utils.data.ExceptionUtils;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class TemplateRenderService implements IRenderService, InitializingBean {
 
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TemplateRenderService.class);
+
+	/**
+	 * larger buffers (e.g. from huge digests) aren't kept for next render
+	 */
+	private static final int MAX_BUFFER_CAPACITY = 64 * 1024;
+
+	private static final ThreadLocal<StringBuilderWriter> BUFFER = new ThreadLocal<StringBuilderWriter>();
+
 	private ITemplateDAO _templateDAO;
 	private ITemplateRenderer _renderer;
 
+	private boolean _precompile = true;
+	private int _precompileThreads = Runtime.getRuntime().availableProcessors();
+
+	private int _renderCacheSize = 0;
+	private RenderCache _renderCache;
+
+	private IHtml2Text _html2Text;
+
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		if (_renderer == null) {
@@ -37,18 +73,125 @@ public class TemplateRenderService implements IRenderService, InitializingBean {
 		if (_templateDAO == null) {
 			throw new Exception("templateDAO not configured");
 		}
+		_renderCache = _renderCacheSize > 0 ? new RenderCache(_renderCacheSize) : null;
+		if (_precompile) {
+			precompile();
+		}
+	}
+
+	/**
+	 * compiles all templates in parallel, e.g. before any dispatcher starts
+	 *
+	 * @throws RenderException
+	 *             listing all templates that failed to compile
+	 */
+	public void precompile() throws RenderException {
+		long start = System.currentTimeMillis();
+
+		List<Callable<Void>> tasks = Lists.newArrayList();
+		for (final String key : _templateDAO.findKeys()) {
+			for (final Template template : _templateDAO.findTemplates(key)) {
+				tasks.add(new Callable<Void>() {
+
+					@Override
+					public Void call() throws RenderException {
+						_renderer.compile(template);
+						return null;
+					}
+				});
+			}
+		}
+		if (tasks.isEmpty()) {
+			return;
+		}
+
+		int threads = Math.max(1, Math.min(_precompileThreads, tasks.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat(
+				"precompile-%d").setDaemon(true).build());
+		List<String> errors = Lists.newArrayList();
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					log.error("failed to compile template", e.getCause());
+					errors.add(ExceptionUtils.getAllMessages(e.getCause()));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RenderException("interrupted while compiling templates", e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (errors.size() > 0) {
+			throw new RenderException("failed to compile " + errors.size() + " of " + tasks.size() + " templates: "
+					+ errors);
+		}
+		log.info("compiled " + tasks.size() + " templates in " + (System.currentTimeMillis() - start) + "ms");
 	}
 
 	@Override
 	public Message render(String key, Version version, IParams params) throws RenderException {
 
-		Template template = NotifyUtils.choose(_templateDAO.findTemplates(key), null, version);
+		String locale = params.get(INotifyService.LOCALE);
+		Template template = _templateDAO.findIndex(key).choose(version, locale);
 
 		if (template == null) {
 			throw new RenderException("no template available for '" + key + "' (" + version + ")");
 		}
 
-		return Message.parse(_renderer.render(template, params), template.getType());
+		// only pass params the template might read
+		Set<String> references = _renderer.getReferences(template);
+		if (references != null) {
+			params = new ReferencedParams(params, references);
+		}
+
+		RenderCache cache = _renderCache;
+		if (cache == null) {
+			return render(template, params);
+		}
+
+		Message message = cache.get(template, params);
+		if (message == null) {
+			IParams recorded = cache.record(params);
+			message = render(template, recorded);
+			cache.put(template, recorded, message);
+		}
+		return message;
+	}
+
+	/**
+	 * renders into a buffer that is parsed in place, copying only the body
+	 */
+	private Message render(Template template, IParams params) throws RenderException {
+		// taken from thread for reentrant renders
+		StringBuilderWriter writer = BUFFER.get();
+		if (writer == null) {
+			writer = new StringBuilderWriter();
+		} else {
+			BUFFER.remove();
+		}
+		try {
+			_renderer.render(template, params, writer);
+			Message message = Message.parse(writer.getBuilder(), template.getType());
+			message.setHtml2Text(_html2Text);
+			return message;
+		} finally {
+			if (writer.getBuilder().capacity() <= MAX_BUFFER_CAPACITY) {
+				BUFFER.set(writer.reset());
+			}
+		}
+	}
+
+	/**
+	 * @return statistics of the render cache or null if disabled
+	 */
+	@CheckForNull
+	public CacheStats getRenderCacheStats() {
+		RenderCache cache = _renderCache;
+		return cache == null ? null : cache.stats();
 	}
 
 	ITemplateDAO getTemplateDAO() {
@@ -67,4 +210,49 @@ public class TemplateRenderService implements IRenderService, InitializingBean {
 		_renderer = renderer;
 	}
 
+	public boolean isPrecompile() {
+		return _precompile;
+	}
+
+	/**
+	 * compile all templates on startup (default), failing on parse errors
+	 */
+	public void setPrecompile(boolean precompile) {
+		_precompile = precompile;
+	}
+
+	public int getPrecompileThreads() {
+		return _precompileThreads;
+	}
+
+	public void setPrecompileThreads(int precompileThreads) {
+		_precompileThreads = precompileThreads;
+	}
+
+	public int getRenderCacheSize() {
+		return _renderCacheSize;
+	}
+
+	/**
+	 * maximum number of cached messages, 0 to disable caching (default). Cached
+	 * messages are reused for renders of the same template with equal values
+	 * of all params the template reads.
+	 */
+	public void setRenderCacheSize(int renderCacheSize) {
+		_renderCacheSize = renderCacheSize;
+	}
+
+	public IHtml2Text getHtml2Text() {
+		return _html2Text;
+	}
+
+	/**
+	 * converter for text versions of rendered HTML messages, defaults to
+	 * {@link JerichoHtml2Text}. {@link SimpleHtml2Text} is considerably faster
+	 * for simple markup.
+	 */
+	public void setHtml2Text(IHtml2Text html2Text) {
+		_html2Text = html2Text;
+	}
+
 }
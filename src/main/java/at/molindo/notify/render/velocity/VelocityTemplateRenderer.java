@@ -16,6 +16,11 @@
 
 package at.molindo.notify.render.velocity;
 
+import java.io.Writer;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.velocity.runtime.RuntimeInstance;
@@ -26,14 +31,19 @@ import at.molindo.notify.model.IParams;
 import at.molindo.notify.model.Template;
 import at.molindo.notify.render.IRenderService.RenderException;
 import at.molindo.notify.render.ITemplateRenderer;
+import at.molindo.notify.util.StringBuilderWriter;
 import at.molindo.notify.util.VelocityUtils;
 
+import com.google.common.base.Objects;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 public class VelocityTemplateRenderer implements ITemplateRenderer, InitializingBean {
 
-	private final Cache<Template.Key, org.apache.velocity.Template> _templateCache = CacheBuilder.newBuilder()
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(VelocityTemplateRenderer.class);
+
+	private final Cache<Template.Key, Compiled> _templateCache = CacheBuilder.newBuilder()
 			.expireAfterAccess(1, TimeUnit.HOURS).concurrencyLevel(4).build();
 
 	private RuntimeServices _runtime = new RuntimeInstance();
@@ -54,23 +64,126 @@ public class VelocityTemplateRenderer implements ITemplateRenderer, Initializing
 
 	@Override
 	public String render(Template template, IParams params) throws RenderException {
-		return VelocityUtils.merge(getVelocityTemplate(template), params);
+		Compiled compiled = getCompiled(template);
+		StringBuilderWriter writer = new StringBuilderWriter(compiled.expectedSize());
+		VelocityUtils.merge(compiled._template, params, null, writer);
+		compiled.recordSize(writer.getBuilder().length());
+		return writer.toString();
 	}
 
-	private org.apache.velocity.Template getVelocityTemplate(Template template) throws RenderException {
-		Template.Key key = template.key();
+	@Override
+	public void render(Template template, IParams params, Writer writer) throws RenderException {
+		Compiled compiled = getCompiled(template);
+		if (writer instanceof StringBuilderWriter) {
+			StringBuilder builder = ((StringBuilderWriter) writer).getBuilder();
+			int start = builder.length();
+			builder.ensureCapacity(start + compiled.expectedSize());
+			VelocityUtils.merge(compiled._template, params, null, writer);
+			compiled.recordSize(builder.length() - start);
+		} else {
+			VelocityUtils.merge(compiled._template, params, null, writer);
+		}
+	}
+
+	@Override
+	public Set<String> getReferences(Template template) throws RenderException {
+		return getCompiled(template)._references;
+	}
+
+	@Override
+	public void compile(Template template) throws RenderException {
+		getCompiled(template);
+	}
 
-		org.apache.velocity.Template vt = _templateCache.getIfPresent(key);
-		if (vt == null) {
-			_templateCache.put(key, vt = toVelocityTemplate(template));
+	/**
+	 * parses each template only once, concurrent callers wait for the result.
+	 * Templates are parsed again if their modification date or content
+	 * changed.
+	 */
+	private Compiled getCompiled(final Template template) throws RenderException {
+		Template.Key key = template.key();
+		try {
+			Compiled compiled = _templateCache.get(key, new Callable<Compiled>() {
+
+				@Override
+				public Compiled call() throws RenderException {
+					return compile0(template);
+				}
+			});
+
+			if (!compiled.isCurrent(template)) {
+				Compiled current = compile0(template);
+				if (_templateCache.asMap().replace(key, compiled, current)) {
+					log.info("reloaded modified template " + key);
+				}
+				compiled = current;
+			}
+			return compiled;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RenderException) {
+				throw (RenderException) e.getCause();
+			}
+			throw new RenderException("failed to compile template " + template, e.getCause());
+		} catch (UncheckedExecutionException e) {
+			throw new RenderException("failed to compile template " + template, e.getCause());
 		}
+	}
 
-		return vt;
+	private Compiled compile0(Template template) throws RenderException {
+		return new Compiled(template, toVelocityTemplate(template));
 	}
 
 	private org.apache.velocity.Template toVelocityTemplate(Template template) throws RenderException {
 		return VelocityUtils.newTemplate(_runtime, template.getContent(),
-				template.getKey() + "." + template.getVersion());
+				String.valueOf(template.key()));
+	}
+
+	/**
+	 * parsed template and its references, analyzed once
+	 */
+	private static final class Compiled {
+		private static final int MIN_SIZE = 256;
+
+		private final Date _lastModified;
+		private final String _content;
+		private final org.apache.velocity.Template _template;
+		private final Set<String> _references;
+
+		/**
+		 * running average of rendered size, races only lose a sample
+		 */
+		private volatile int _averageSize;
+
+		private Compiled(Template source, org.apache.velocity.Template template) {
+			_lastModified = source.getLastModified() == null ? null : new Date(source.getLastModified().getTime());
+			_content = source.getContent();
+			_template = template;
+			_references = VelocityUtils.references(template);
+		}
+
+		/**
+		 * @return true if compiled from same version of template
+		 */
+		private boolean isCurrent(Template template) {
+			if (_lastModified == null) {
+				// no modification date, compare content
+				return template.getLastModified() == null && Objects.equal(_content, template.getContent());
+			}
+			return _lastModified.equals(template.getLastModified());
+		}
+
+		/**
+		 * @return buffer size likely sufficient for next render
+		 */
+		private int expectedSize() {
+			int average = _averageSize;
+			return Math.max(MIN_SIZE, average + (average >> 2));
+		}
+
+		private void recordSize(int size) {
+			int average = _averageSize;
+			_averageSize = average == 0 ? size : average + (size - average) / 8;
+		}
 	}
 
 }
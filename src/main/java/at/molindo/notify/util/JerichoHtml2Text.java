@@ -0,0 +1,67 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.util;
+
+import net.htmlparser.jericho.Renderer;
+import net.htmlparser.jericho.Source;
+import net.htmlparser.jericho.StartTag;
+import at.molindo.utils.data.StringUtils;
+
+import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+
+/**
+ * full HTML rendering using Jericho, handles any markup (default)
+ */
+public class JerichoHtml2Text implements IHtml2Text {
+
+	@Override
+	@SuppressWarnings("ES_COMPARING_STRINGS_WITH_EQ")
+	public String html2text(String html) {
+
+		Renderer renderer = new Renderer(new Source(html)) {
+
+			{
+				setIncludeHyperlinkURLs(true);
+			}
+
+			@Override
+			public String renderHyperlinkURL(StartTag startTag) {
+				final String href = startTag.getAttributeValue("href");
+				if (href == null || href.equals("#") || href.startsWith("javascript:")) {
+					return null;
+				}
+				// TODO customize?
+				return '<' + href + '>';
+			}
+
+		};
+
+		String text = renderer.toString();
+
+		String newLine = renderer.getNewLine();
+
+		// strip leading new lines
+		while (text != (text = StringUtils.stripLeading(text, newLine))) {
+		}
+
+		// strip trailing new lines
+		while (text != (text = StringUtils.stripTrailing(text, newLine))) {
+		}
+
+		return text;
+	}
+}
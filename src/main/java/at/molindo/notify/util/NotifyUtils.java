@@ -16,25 +16,24 @@
 
 package at.molindo.notify.util;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 
-import net.htmlparser.jericho.Renderer;
-import net.htmlparser.jericho.Source;
-import net.htmlparser.jericho.StartTag;
 import at.molindo.notify.model.Template;
 import at.molindo.notify.render.IRenderService.Type;
 import at.molindo.notify.render.IRenderService.Version;
 import at.molindo.utils.collections.IteratorUtils;
-import at.molindo.utils.data.StringUtils;
 
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
-
-import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 
 public class NotifyUtils {
 
@@ -53,49 +52,18 @@ public class NotifyUtils {
 		}
 	};
 
+	private static final HashFunction SHARD_HASH = Hashing.murmur3_32();
+
+	private static final IHtml2Text HTML2TEXT = new JerichoHtml2Text();
+
 	private NotifyUtils() {
 	};
 
 	/**
-	 * TODO this should become customizable
-	 *
-	 * @param html
-	 * @return
+	 * converts html using {@link JerichoHtml2Text}
 	 */
-	@SuppressWarnings("ES_COMPARING_STRINGS_WITH_EQ")
 	public static String html2text(String html) {
-
-		Renderer renderer = new Renderer(new Source(html)) {
-
-			{
-				setIncludeHyperlinkURLs(true);
-			}
-
-			@Override
-			public String renderHyperlinkURL(StartTag startTag) {
-				final String href = startTag.getAttributeValue("href");
-				if (href == null || href.equals("#") || href.startsWith("javascript:")) {
-					return null;
-				}
-				// TODO customize?
-				return '<' + href + '>';
-			}
-
-		};
-
-		String text = renderer.toString();
-
-		String newLine = renderer.getNewLine();
-
-		// strip leading new lines
-		while (text != (text = StringUtils.stripLeading(text, newLine))) {
-		}
-
-		// strip trailing new lines
-		while (text != (text = StringUtils.stripTrailing(text, newLine))) {
-		}
-
-		return text;
+		return HTML2TEXT.html2text(html);
 	}
 
 	public static String text2html(String text) {
@@ -140,4 +108,49 @@ public class NotifyUtils {
 			return filtered.get(0);
 		}
 	}
+
+	/**
+	 * @return shard of a user in [0, shardCount), stable across processes
+	 */
+	public static int shard(@Nonnull String userId, int shardCount) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("shardCount must be positive, was " + shardCount);
+		}
+		int hash = SHARD_HASH.hashUnencodedChars(userId).asInt();
+		return (hash & Integer.MAX_VALUE) % shardCount;
+	}
+
+	/**
+	 * assigns a shard to one of members using rendezvous hashing, i.e. only
+	 * shards of leaving members or shards taken over by joining members move.
+	 *
+	 * @return owner of shard or null if members is empty
+	 */
+	public static String owner(int shard, @Nonnull Collection<String> members) {
+		String owner = null;
+		int max = 0;
+		for (String member : members) {
+			int weight = SHARD_HASH.newHasher().putUnencodedChars(member).putInt(shard).hash().asInt();
+			if (owner == null || weight > max || weight == max && member.compareTo(owner) < 0) {
+				owner = member;
+				max = weight;
+			}
+		}
+		return owner;
+	}
+
+	/**
+	 * @return all shards in [0, shardCount) assigned to member
+	 * @see #owner(int, Collection)
+	 */
+	@Nonnull
+	public static Set<Integer> ownedShards(@Nonnull String member, @Nonnull Collection<String> members, int shardCount) {
+		ImmutableSet.Builder<Integer> owned = ImmutableSet.builder();
+		for (int shard = 0; shard < shardCount; shard++) {
+			if (member.equals(owner(shard, members))) {
+				owned.add(shard);
+			}
+		}
+		return owned.build();
+	}
 }
@@ -0,0 +1,412 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Set;
+
+import net.htmlparser.jericho.CharacterEntityReference;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * single pass HTML to text conversion for high volume. Handles the markup
+ * typically found in notification templates (paragraphs, line breaks, lists,
+ * tables and links) without building a document tree. Output follows
+ * {@link JerichoHtml2Text} closely but not exactly:
+ * <ul>
+ * <li>&lt;hr&gt; is dropped instead of rendered as a line of dashes</li>
+ * <li>nested list items use the same bullet as top level items</li>
+ * <li>table cells are separated by a tab only, Jericho adds a space</li>
+ * <li>runs of &lt;br&gt; after a block element add one more line break</li>
+ * </ul>
+ *
+ * Configure it with {@link at.molindo.notify.render.TemplateRenderService#setHtml2Text(IHtml2Text)}.
+ */
+public class SimpleHtml2Text implements IHtml2Text {
+
+	private static final String NEW_LINE = "\r\n";
+	private static final String INDENT = "    ";
+	private static final int MAX_ENTITY_LENGTH = 10;
+
+	/**
+	 * tags rendered with a blank line before and after
+	 */
+	private static final Set<String> PARAGRAPH_TAGS = ImmutableSet.of("p", "h1", "h2", "h3", "h4", "h5", "h6",
+			"blockquote", "pre");
+
+	/**
+	 * tags rendered on a line of their own
+	 */
+	private static final Set<String> BLOCK_TAGS = ImmutableSet.of("div", "table", "tr", "hr", "dl", "dt", "dd",
+			"form", "address", "center", "ul", "ol", "li");
+
+	/**
+	 * tags skipped including their content
+	 */
+	private static final Set<String> SKIP_TAGS = ImmutableSet.of("head", "script", "style", "title");
+
+	@Override
+	public String html2text(String html) {
+		Output out = new Output(html.length());
+		int len = html.length();
+		int i = 0;
+		while (i < len) {
+			char c = html.charAt(i);
+			if (c == '<') {
+				i = tag(html, i, out);
+			} else if (c == '&') {
+				i = entity(html, i, out);
+			} else {
+				out.text(c);
+				i++;
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return index after tag
+	 */
+	private static int tag(String html, int start, Output out) {
+		int len = html.length();
+		if (html.startsWith("<!--", start)) {
+			int end = html.indexOf("-->", start + 4);
+			return end < 0 ? len : end + 3;
+		}
+
+		int end = tagEnd(html, start + 1);
+		if (end < 0) {
+			out.text('<');
+			return start + 1;
+		}
+
+		int p = start + 1;
+		boolean closing = html.charAt(p) == '/';
+		if (closing) {
+			p++;
+		}
+		int nameStart = p;
+		while (p < end && Character.isLetterOrDigit(html.charAt(p))) {
+			p++;
+		}
+		if (p == nameStart) {
+			char c = html.charAt(start + 1);
+			if (c == '!' || c == '?') {
+				// doctype or processing instruction
+				return end + 1;
+			}
+			out.text('<');
+			return start + 1;
+		}
+
+		String name = html.substring(nameStart, p).toLowerCase(Locale.ENGLISH);
+		if (closing) {
+			out.end(name);
+		} else if (SKIP_TAGS.contains(name)) {
+			int close = indexOfIgnoreCase(html, "</" + name, end + 1);
+			if (close < 0) {
+				return len;
+			}
+			int closeEnd = html.indexOf('>', close);
+			return closeEnd < 0 ? len : closeEnd + 1;
+		} else {
+			out.start(name, name.equals("a") ? attribute(html, p, end, "href") : null);
+		}
+		return end + 1;
+	}
+
+	/**
+	 * @return index of '>' ending tag, ignoring quoted attribute values, or
+	 *         -1
+	 */
+	private static int tagEnd(String html, int from) {
+		char quote = 0;
+		for (int i = from; i < html.length(); i++) {
+			char c = html.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return i;
+			} else if (c == '<') {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	private static String attribute(String html, int from, int to, String name) {
+		int i = from;
+		while (i < to) {
+			while (i < to && !Character.isLetter(html.charAt(i))) {
+				i++;
+			}
+			int nameStart = i;
+			while (i < to && html.charAt(i) != '=' && html.charAt(i) > ' ' && html.charAt(i) != '/') {
+				i++;
+			}
+			boolean match = html.regionMatches(true, nameStart, name, 0, name.length())
+					&& i - nameStart == name.length();
+			while (i < to && html.charAt(i) <= ' ') {
+				i++;
+			}
+			if (i >= to || html.charAt(i) != '=') {
+				continue;
+			}
+			i++;
+			while (i < to && html.charAt(i) <= ' ') {
+				i++;
+			}
+			int valueStart;
+			int valueEnd;
+			if (i < to && (html.charAt(i) == '"' || html.charAt(i) == '\'')) {
+				valueStart = i + 1;
+				valueEnd = html.indexOf(html.charAt(i), valueStart);
+				if (valueEnd < 0 || valueEnd > to) {
+					valueEnd = to;
+				}
+				i = valueEnd + 1;
+			} else {
+				valueStart = i;
+				while (i < to && html.charAt(i) > ' ') {
+					i++;
+				}
+				valueEnd = i;
+			}
+			if (match) {
+				return decode(html, valueStart, valueEnd);
+			}
+		}
+		return null;
+	}
+
+	private static String decode(String html, int from, int to) {
+		String value = html.substring(from, to);
+		if (value.indexOf('&') < 0) {
+			return value;
+		}
+		StringBuilder buf = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			int end = c == '&' ? value.indexOf(';', i) : -1;
+			int codePoint = end > 0 ? codePoint(value, i + 1, end) : -1;
+			if (codePoint >= 0) {
+				buf.appendCodePoint(codePoint);
+				i = end;
+			} else {
+				buf.append(c);
+			}
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * @return index after entity
+	 */
+	private static int entity(String html, int start, Output out) {
+		int end = start + 1;
+		while (end < html.length() && end - start <= MAX_ENTITY_LENGTH && html.charAt(end) != ';') {
+			end++;
+		}
+		int codePoint = end < html.length() && html.charAt(end) == ';' ? codePoint(html, start + 1, end) : -1;
+		if (codePoint < 0) {
+			out.text('&');
+			return start + 1;
+		}
+		if (codePoint == CharacterEntityReference._nbsp) {
+			out.literal(' ');
+		} else if (Character.isSupplementaryCodePoint(codePoint)) {
+			out.literal(Character.highSurrogate(codePoint));
+			out.literal(Character.lowSurrogate(codePoint));
+		} else {
+			out.text((char) codePoint);
+		}
+		return end + 1;
+	}
+
+	/**
+	 * @return code point of reference between '&' and ';' or -1
+	 */
+	private static int codePoint(String html, int from, int to) {
+		if (from >= to) {
+			return -1;
+		}
+		if (html.charAt(from) != '#') {
+			return CharacterEntityReference.getCodePointFromName(html.substring(from, to));
+		}
+		try {
+			int codePoint;
+			if (from + 1 < to && (html.charAt(from + 1) == 'x' || html.charAt(from + 1) == 'X')) {
+				codePoint = Integer.parseInt(html.substring(from + 2, to), 16);
+			} else {
+				codePoint = Integer.parseInt(html.substring(from + 1, to));
+			}
+			return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static int indexOfIgnoreCase(String str, String search, int from) {
+		for (int i = from; i <= str.length() - search.length(); i++) {
+			if (str.regionMatches(true, i, search, 0, search.length())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * collects text, deferring whitespace and line breaks until the next
+	 * visible character to avoid leading, trailing and duplicate breaks
+	 */
+	private static final class Output {
+		private final StringBuilder _buf;
+		private final Deque<int[]> _lists = new ArrayDeque<int[]>();
+
+		private int _newLines;
+		private boolean _space;
+		private boolean _lineStart = true;
+		private String _prefix;
+		private String _indent;
+		private int _pre;
+		private int _cells;
+		private String _href;
+
+		private Output(int capacity) {
+			_buf = new StringBuilder(capacity);
+		}
+
+		private void text(char c) {
+			if (_pre > 0) {
+				if (c == '\n') {
+					_newLines++;
+				} else if (c != '\r') {
+					literal(c);
+				}
+			} else if (c <= ' ') {
+				_space = true;
+			} else {
+				literal(c);
+			}
+		}
+
+		private void literal(char c) {
+			flush();
+			_buf.append(c);
+			_lineStart = false;
+		}
+
+		private void append(String str) {
+			flush();
+			_buf.append(str);
+			_lineStart = false;
+		}
+
+		private void flush() {
+			if (_buf.length() > 0) {
+				for (int i = 0; i < _newLines; i++) {
+					_buf.append(NEW_LINE);
+					_lineStart = true;
+				}
+			}
+			if (_lineStart && _prefix != null) {
+				_buf.append(_prefix);
+			} else if (_lineStart && _indent != null && _buf.length() > 0) {
+				_buf.append(_indent);
+			} else if (_space && !_lineStart) {
+				_buf.append(' ');
+			}
+			_newLines = 0;
+			_space = false;
+			_prefix = null;
+		}
+
+		private void newLines(int count) {
+			_newLines = Math.max(_newLines, count);
+		}
+
+		private void start(String name, String href) {
+			if (name.equals("br")) {
+				_newLines++;
+			} else if (PARAGRAPH_TAGS.contains(name)) {
+				newLines(2);
+				if (name.equals("pre")) {
+					_pre++;
+				}
+			} else if (BLOCK_TAGS.contains(name)) {
+				newLines(1);
+				if (name.equals("ul") || name.equals("ol")) {
+					_lists.push(new int[] { name.equals("ol") ? 1 : 0, 0 });
+				} else if (name.equals("li")) {
+					_prefix = bullet();
+					_indent = Strings.repeat(" ", _prefix.length());
+				} else if (name.equals("tr")) {
+					_cells = 0;
+				}
+			} else if (name.equals("td") || name.equals("th")) {
+				if (_cells++ > 0) {
+					append("\t");
+				}
+			} else if (name.equals("a")) {
+				_href = href == null || href.equals("#") || href.startsWith("javascript:") ? null : href;
+			}
+		}
+
+		private void end(String name) {
+			if (PARAGRAPH_TAGS.contains(name)) {
+				newLines(2);
+				if (name.equals("pre") && _pre > 0) {
+					_pre--;
+				}
+			} else if (BLOCK_TAGS.contains(name)) {
+				newLines(1);
+				if ((name.equals("ul") || name.equals("ol")) && !_lists.isEmpty()) {
+					_lists.pop();
+				}
+				if (name.equals("li") || name.equals("ul") || name.equals("ol")) {
+					_indent = null;
+				}
+			} else if (name.equals("a") && _href != null) {
+				_space = true;
+				append("<" + _href + ">");
+				_href = null;
+			}
+		}
+
+		private String bullet() {
+			int[] list = _lists.peek();
+			int depth = Math.max(1, _lists.size());
+			if (list != null && list[0] == 1) {
+				return Strings.repeat(INDENT, depth - 1) + "   " + ++list[1] + ". ";
+			}
+			return Strings.repeat(INDENT, depth) + "* ";
+		}
+
+		@Override
+		public String toString() {
+			return _buf.toString();
+		}
+	}
+}
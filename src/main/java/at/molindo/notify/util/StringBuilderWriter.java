@@ -0,0 +1,103 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.util;
+
+import java.io.Writer;
+
+/**
+ * unsynchronized {@link Writer} appending to a {@link StringBuilder}. In
+ * contrast to {@link java.io.StringWriter}, rendered content may be read
+ * without copying it to a String first.
+ */
+public class StringBuilderWriter extends Writer {
+
+	private final StringBuilder _builder;
+
+	public StringBuilderWriter() {
+		this(1024);
+	}
+
+	public StringBuilderWriter(int capacity) {
+		_builder = new StringBuilder(capacity);
+	}
+
+	@Override
+	public void write(int c) {
+		_builder.append((char) c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		_builder.append(cbuf, off, len);
+	}
+
+	@Override
+	public void write(String str) {
+		_builder.append(str);
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		_builder.append(str, off, off + len);
+	}
+
+	@Override
+	public StringBuilderWriter append(CharSequence csq) {
+		_builder.append(csq);
+		return this;
+	}
+
+	@Override
+	public StringBuilderWriter append(CharSequence csq, int start, int end) {
+		_builder.append(csq, start, end);
+		return this;
+	}
+
+	@Override
+	public StringBuilderWriter append(char c) {
+		_builder.append(c);
+		return this;
+	}
+
+	/**
+	 * @return the underlying builder, not a copy
+	 */
+	public StringBuilder getBuilder() {
+		return _builder;
+	}
+
+	/**
+	 * discards written content but keeps allocated capacity
+	 */
+	public StringBuilderWriter reset() {
+		_builder.setLength(0);
+		return this;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		return _builder.toString();
+	}
+}
@@ -17,10 +17,15 @@
 package at.molindo.notify.util;
 
 import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
 
 import org.apache.velocity.Template;
-import org.apache.velocity.VelocityContext;
+import org.apache.velocity.context.AbstractContext;
 import org.apache.velocity.context.Context;
 import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.ParseErrorException;
@@ -29,14 +34,35 @@ import org.apache.velocity.runtime.RuntimeConstants;
 import org.apache.velocity.runtime.RuntimeInstance;
 import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.Node;
 
 import at.molindo.notify.INotifyService.NotifyRuntimeException;
 import at.molindo.notify.model.IParams;
+import at.molindo.notify.model.IParamsView;
 import at.molindo.notify.render.IRenderService.RenderException;
 import at.molindo.notify.render.velocity.SLF4JLogChute;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
 public class VelocityUtils {
 
+	/**
+	 * directives that might reference anything
+	 */
+	private static final Set<String> DYNAMIC_DIRECTIVES = ImmutableSet.of("evaluate", "parse", "include");
+
+	/**
+	 * velocity caches introspection results per context, renew contexts
+	 * from time to time to release nodes of reloaded templates
+	 */
+	private static final int CONTEXT_MAX_USES = 10000;
+
+	private static final ThreadLocal<ParamsContext> CONTEXT = new ThreadLocal<ParamsContext>();
+
 	private VelocityUtils() {
 	}
 
@@ -62,17 +88,77 @@ public class VelocityUtils {
 	}
 
 	public static String merge(Template template, IParams params, Context nestedContext) throws RenderException {
+		StringBuilderWriter writer = new StringBuilderWriter();
+		merge(template, params, nestedContext, writer);
+		return writer.toString();
+	}
+
+	/**
+	 * renders template directly to writer, e.g. a reused
+	 * {@link StringBuilderWriter}. Without nestedContext, a context reused by
+	 * the current thread reads {@link IParamsView params} through
+	 * {@link IParamsView#asMap()} instead of copying them.
+	 */
+	public static void merge(Template template, IParams params, Context nestedContext, Writer writer)
+			throws RenderException {
+		ParamsContext context;
+		if (nestedContext != null) {
+			context = new ParamsContext(nestedContext);
+		} else {
+			// taken from thread for reentrant renders, e.g. from #evaluate
+			context = CONTEXT.get();
+			if (context == null || context._uses >= CONTEXT_MAX_USES) {
+				context = new ParamsContext(null);
+			} else {
+				CONTEXT.remove();
+			}
+		}
+
 		try {
-			StringWriter writer = new StringWriter();
-			template.merge(new VelocityContext(params.newMap(), nestedContext), writer);
-			return writer.toString();
+			Map<String, Object> map = params instanceof IParamsView ? ((IParamsView) params).asMap() : params.newMap();
+			template.merge(context.reset(map), writer);
 		} catch (ResourceNotFoundException e) {
 			throw new RenderException("failed to render template " + template, e);
 		} catch (ParseErrorException e) {
 			throw new RenderException("failed to render template " + template, e);
 		} catch (MethodInvocationException e) {
 			throw new RenderException("failed to render template " + template, e);
+		} finally {
+			if (nestedContext == null) {
+				CONTEXT.set(context.reset(null));
+			}
+		}
+	}
+
+	/**
+	 * walks the AST of a parsed template
+	 *
+	 * @return root identifiers of all references in template, e.g.
+	 *         "notification" for $notification.key, or null if unknown as
+	 *         template evaluates dynamic content
+	 */
+	@CheckForNull
+	public static Set<String> references(Template template) {
+		Set<String> references = Sets.newHashSet();
+		return collect((Node) template.getData(), references) ? ImmutableSet.copyOf(references) : null;
+	}
+
+	private static boolean collect(Node node, Set<String> references) {
+		if (node instanceof ASTReference) {
+			String root = ((ASTReference) node).getRootString();
+			if (root != null) {
+				references.add(root);
+			}
+		} else if (node instanceof ASTDirective
+				&& DYNAMIC_DIRECTIVES.contains(((ASTDirective) node).getDirectiveName())) {
+			return false;
 		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			if (!collect(node.jjtGetChild(i), references)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	public static Template newTemplate(RuntimeServices runtime, String content, String templateName)
@@ -89,4 +175,79 @@ public class VelocityUtils {
 			throw new RenderException("failed to parse template", e);
 		}
 	}
+
+	/**
+	 * reads params through a map view and keeps template variables (e.g.
+	 * from #set or #foreach) separately, so that params are never copied and
+	 * the context can be cleared and reused
+	 */
+	private static final class ParamsContext extends AbstractContext {
+
+		private static final Object REMOVED = new Object();
+
+		private final Map<String, Object> _locals = Maps.newHashMap();
+		private Map<String, Object> _params = Collections.emptyMap();
+		private int _uses;
+
+		private ParamsContext(Context innerContext) {
+			super(innerContext);
+		}
+
+		private ParamsContext reset(Map<String, Object> params) {
+			_locals.clear();
+			if (params == null) {
+				_params = Collections.emptyMap();
+			} else {
+				_params = params;
+				_uses++;
+			}
+			return this;
+		}
+
+		@Override
+		public Object internalGet(String key) {
+			Object value = _locals.get(key);
+			if (value == null) {
+				return _params.get(key);
+			}
+			return value == REMOVED ? null : value;
+		}
+
+		@Override
+		public Object internalPut(String key, Object value) {
+			Object previous = _locals.put(key, value);
+			return previous == REMOVED ? null : previous;
+		}
+
+		@Override
+		public boolean internalContainsKey(Object key) {
+			Object value = _locals.get(key);
+			return value == null ? _params.containsKey(key) : value != REMOVED;
+		}
+
+		@Override
+		public Object[] internalGetKeys() {
+			Set<Object> keys = Sets.<Object> newHashSet(_params.keySet());
+			for (Map.Entry<String, Object> e : _locals.entrySet()) {
+				if (e.getValue() == REMOVED) {
+					keys.remove(e.getKey());
+				} else {
+					keys.add(e.getKey());
+				}
+			}
+			return keys.toArray();
+		}
+
+		@Override
+		public Object internalRemove(Object key) {
+			Object previous = internalGet((String) key);
+			if (_params.containsKey(key)) {
+				// hide param
+				_locals.put((String) key, REMOVED);
+			} else {
+				_locals.remove(key);
+			}
+			return previous;
+		}
+	}
 }
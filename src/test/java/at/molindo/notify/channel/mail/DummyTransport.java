@@ -0,0 +1,157 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.channel.mail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Provider;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * SMTP transport counting connections and messages without any network I/O
+ */
+public class DummyTransport extends Transport {
+
+	static final AtomicInteger CONNECTS = new AtomicInteger();
+	static final AtomicInteger MESSAGES = new AtomicInteger();
+	static final AtomicInteger RECIPIENTS = new AtomicInteger();
+	static final AtomicInteger ACTIVE = new AtomicInteger();
+	static final AtomicInteger MAX_ACTIVE = new AtomicInteger();
+
+	static final Set<String> DOWN_HOSTS = Sets.newConcurrentHashSet();
+	static final Set<String> THROTTLING_HOSTS = Sets.newConcurrentHashSet();
+	static final Set<Address> INVALID_RECIPIENTS = Sets.newConcurrentHashSet();
+	static final List<String> CONNECTED_HOSTS = new CopyOnWriteArrayList<String>();
+	/**
+	 * number of recipients and To header of each sent message
+	 */
+	static final List<Map.Entry<Integer, String>> TO_HEADERS = new CopyOnWriteArrayList<Map.Entry<Integer, String>>();
+
+	static volatile long _sendDelayMs = 0;
+
+	public static Session newSession() {
+		return newSession(null);
+	}
+
+	/**
+	 * @param host
+	 *            value for mail.smtp.host or null
+	 */
+	public static Session newSession(String host) {
+		Properties props = new Properties();
+		if (host != null) {
+			props.setProperty("mail.smtp.host", host);
+		}
+		return setProvider(Session.getInstance(props));
+	}
+
+	/**
+	 * use DummyTransport for existing session
+	 */
+	public static Session setProvider(Session session) {
+		try {
+			session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", DummyTransport.class.getName(),
+					"molindo", "1.0"));
+		} catch (NoSuchProviderException e) {
+			throw new RuntimeException(e);
+		}
+		return session;
+	}
+
+	public static void reset() {
+		CONNECTS.set(0);
+		MESSAGES.set(0);
+		RECIPIENTS.set(0);
+		ACTIVE.set(0);
+		MAX_ACTIVE.set(0);
+		DOWN_HOSTS.clear();
+		THROTTLING_HOSTS.clear();
+		INVALID_RECIPIENTS.clear();
+		CONNECTED_HOSTS.clear();
+		TO_HEADERS.clear();
+		_sendDelayMs = 0;
+	}
+
+	public DummyTransport(Session session, URLName urlname) {
+		super(session, urlname);
+	}
+
+	@Override
+	protected boolean protocolConnect(String host, int port, String user, String password)
+			throws MessagingException {
+		if (host != null && DOWN_HOSTS.contains(host)) {
+			throw new MessagingException("can't connect to " + host);
+		}
+		CONNECTS.incrementAndGet();
+		CONNECTED_HOSTS.add(String.valueOf(host));
+		return true;
+	}
+
+	@Override
+	public void sendMessage(Message msg, Address[] addresses) throws MessagingException {
+		String host = getURLName().getHost();
+		if (host != null && THROTTLING_HOSTS.contains(host)) {
+			throw new SMTPSendFailedException("MAIL", 421, "421 try again later", null, null, addresses, null);
+		}
+		int active = ACTIVE.incrementAndGet();
+		try {
+			int max;
+			while (active > (max = MAX_ACTIVE.get()) && !MAX_ACTIVE.compareAndSet(max, active)) {
+				// retry
+			}
+			if (_sendDelayMs > 0) {
+				Thread.sleep(_sendDelayMs);
+			}
+			List<Address> valid = Lists.newArrayList();
+			List<Address> invalid = Lists.newArrayList();
+			for (Address address : addresses) {
+				(INVALID_RECIPIENTS.contains(address) ? invalid : valid).add(address);
+			}
+			String[] to = msg.getHeader("To");
+			TO_HEADERS.add(Maps.immutableEntry(addresses.length, to == null ? null : to[0]));
+			MESSAGES.incrementAndGet();
+			RECIPIENTS.addAndGet(valid.size());
+			if (invalid.size() > 0) {
+				// like mail.smtp.sendpartial
+				throw new SendFailedException("invalid recipients", null, valid.toArray(new Address[valid.size()]),
+						null, invalid.toArray(new Address[invalid.size()]));
+			}
+		} catch (InterruptedException e) {
+			throw new MessagingException("interrupted", e);
+		} finally {
+			ACTIVE.decrementAndGet();
+		}
+	}
+
+}
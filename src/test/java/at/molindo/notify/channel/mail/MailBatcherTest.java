@@ -0,0 +1,183 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.channel.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.molindo.notify.model.Dispatch;
+import at.molindo.notify.model.Message;
+import at.molindo.notify.model.Params;
+import at.molindo.notify.model.PushChannelPreferences;
+import at.molindo.notify.render.IRenderService.Type;
+
+import com.google.common.collect.Lists;
+
+public class MailBatcherTest {
+
+	@Before
+	public void before() {
+		DummyTransport.reset();
+	}
+
+	@After
+	public void after() {
+		DummyTransport.reset();
+	}
+
+	private static DirectMailClient client(boolean merge) throws Exception {
+		return client(merge, 200);
+	}
+
+	private static DirectMailClient client(boolean merge, long windowMs) throws Exception {
+		DirectMailClient client = new DirectMailClient() {
+			@Override
+			protected Session createSmtpSession(String domain) {
+				return DummyTransport.newSession();
+			}
+		};
+		client.setBatchWindowMs(windowMs);
+		client.setMergeRecipients(merge);
+		client.setFrom("test@test.molindo.at", MailBatcherTest.class.getSimpleName());
+		client.setFormat(AbstractMailClient.Format.TEXT);
+		return client.init();
+	}
+
+	private static void send(DirectMailClient client, int count) throws Exception {
+		for (Future<Void> future : submit(client, count)) {
+			future.get();
+		}
+	}
+
+	private static List<Future<Void>> submit(final DirectMailClient client, int count) throws Exception {
+		final Message message = Message.parse("Subject: Test\n\nThis is a test", Type.TEXT);
+
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+		try {
+			List<Future<Void>> futures = Lists.newArrayList();
+			for (int i = 0; i < count; i++) {
+				final PushChannelPreferences cPrefs = new PushChannelPreferences();
+				MailChannel.setRecipient(cPrefs, "user" + i + "@example.com");
+
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						client.send(new Dispatch(message, new Params(cPrefs.getParams())));
+						return null;
+					}
+				}));
+			}
+			return futures;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void batch() throws Exception {
+		DummyTransport._sendDelayMs = 50;
+
+		DirectMailClient client = client(false);
+		send(client, 10);
+		client.destroy();
+
+		assertEquals(1, DummyTransport.CONNECTS.get());
+		assertEquals(10, DummyTransport.MESSAGES.get());
+		assertEquals(10, DummyTransport.RECIPIENTS.get());
+	}
+
+	@Test
+	public void merge() throws Exception {
+		// mails gather while first is delivered
+		DummyTransport._sendDelayMs = 50;
+
+		DirectMailClient client = client(true);
+		send(client, 10);
+		client.destroy();
+
+		assertEquals(1, DummyTransport.CONNECTS.get());
+		assertTrue("messages: " + DummyTransport.MESSAGES.get(), DummyTransport.MESSAGES.get() < 10);
+		assertEquals(10, DummyTransport.RECIPIENTS.get());
+
+		// recipients of merged mails aren't disclosed
+		for (Map.Entry<Integer, String> e : DummyTransport.TO_HEADERS) {
+			if (e.getKey() > 1) {
+				assertEquals("undisclosed-recipients:;", e.getValue());
+			}
+		}
+	}
+
+	@Test
+	public void mergeUnbatched() throws Exception {
+		DirectMailClient client = client(true, 0);
+		send(client, 1);
+		client.destroy();
+
+		// nothing merged, recipient stays visible
+		assertEquals(1, DummyTransport.TO_HEADERS.size());
+		assertTrue(DummyTransport.TO_HEADERS.get(0).getValue().contains("user0@example.com"));
+	}
+
+	@Test
+	public void immediate() throws Exception {
+		DirectMailClient client = client(false, 10000);
+
+		// nothing else pending, don't wait for window
+		long start = System.currentTimeMillis();
+		send(client, 1);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		client.destroy();
+
+		assertEquals(1, DummyTransport.MESSAGES.get());
+	}
+
+	@Test
+	public void partial() throws Exception {
+		DummyTransport._sendDelayMs = 50;
+		DummyTransport.INVALID_RECIPIENTS.add(new InternetAddress("user2@example.com"));
+
+		DirectMailClient client = client(true);
+		List<Future<Void>> futures = submit(client, 5);
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+				assertTrue(i != 2);
+			} catch (ExecutionException e) {
+				assertEquals(2, i);
+			}
+		}
+		client.destroy();
+
+		assertEquals(4, DummyTransport.RECIPIENTS.get());
+	}
+}
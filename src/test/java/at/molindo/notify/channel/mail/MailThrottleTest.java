@@ -0,0 +1,156 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.channel.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.molindo.notify.channel.mail.IMailClient.MailException;
+import at.molindo.notify.channel.mail.SmtpTransportPool.ThrottledException;
+import at.molindo.notify.model.Dispatch;
+import at.molindo.notify.model.Message;
+import at.molindo.notify.model.Params;
+import at.molindo.notify.model.PushChannelPreferences;
+import at.molindo.notify.render.IRenderService.Type;
+
+import com.google.common.collect.Lists;
+
+public class MailThrottleTest {
+
+	@Before
+	public void before() {
+		DummyTransport.reset();
+	}
+
+	@After
+	public void after() {
+		DummyTransport.reset();
+	}
+
+	private static DirectMailClient client() throws Exception {
+		DirectMailClient client = new DirectMailClient() {
+			@Override
+			protected Session createSmtpSession(String domain) {
+				// all domains served by the same MX host
+				return DummyTransport.newSession("mx.example.com");
+			}
+		};
+		client.setFrom("test@test.molindo.at", MailThrottleTest.class.getSimpleName());
+		client.setFormat(AbstractMailClient.Format.TEXT);
+		return client;
+	}
+
+	private static Dispatch dispatch(String recipient) throws Exception {
+		PushChannelPreferences cPrefs = new PushChannelPreferences();
+		MailChannel.setRecipient(cPrefs, recipient);
+		return new Dispatch(Message.parse("Subject: Test\n\nThis is a test", Type.TEXT), new Params(
+				cPrefs.getParams()));
+	}
+
+	@Test
+	public void rate() throws Exception {
+		DirectMailClient client = client();
+		client.setMaxRatePerDomain(1);
+		client.setRateWaitMs(0);
+		client.init();
+
+		client.send(dispatch("user1@example.com"));
+		// other domain
+		client.send(dispatch("user1@example.org"));
+
+		try {
+			client.send(dispatch("user2@example.com"));
+			fail();
+		} catch (MailException e) {
+			assertTrue(e.isDeferred());
+			assertEquals(client.getDeferMs(), e.getDeferMs());
+		}
+		assertEquals(2, DummyTransport.MESSAGES.get());
+
+		client.destroy();
+	}
+
+	@Test
+	public void connections() throws Exception {
+		final DirectMailClient client = client();
+		client.setMaxConnectionsPerMxHost(1);
+		client.setAcquireTimeoutMs(100);
+		client.init();
+
+		DummyTransport._sendDelayMs = 500;
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<Void>> futures = Lists.newArrayList();
+			for (final String recipient : new String[] { "user@example.com", "user@example.org" }) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						client.send(dispatch(recipient));
+						return null;
+					}
+				}));
+			}
+
+			int deferred = 0;
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					assertTrue(((MailException) e.getCause()).isDeferred());
+					deferred++;
+				}
+			}
+			assertEquals(1, deferred);
+			assertEquals(1, DummyTransport.MAX_ACTIVE.get());
+		} finally {
+			executor.shutdown();
+			client.destroy();
+		}
+	}
+
+	@Test
+	public void pause() throws Exception {
+		MailThrottle throttle = new MailThrottle(0, 0, 0, 0);
+		throttle.acquire("example.com", "mx.example.com");
+
+		throttle.pause("mx.example.com", 60000);
+		try {
+			throttle.acquire("example.com", "mx.example.com");
+			fail();
+		} catch (ThrottledException e) {
+			// expected
+		}
+		// other host
+		throttle.acquire("example.org", "mx.example.org");
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.channel.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Session;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.molindo.notify.channel.mail.IMailClient.MailException;
+import at.molindo.notify.model.Dispatch;
+import at.molindo.notify.model.Message;
+import at.molindo.notify.model.Params;
+import at.molindo.notify.model.PushChannelPreferences;
+import at.molindo.notify.render.IRenderService.Type;
+
+public class MxCacheTest {
+
+	@Before
+	public void before() {
+		DummyTransport.reset();
+	}
+
+	@After
+	public void after() {
+		DummyTransport.reset();
+	}
+
+	/**
+	 * resolves to mx1 and mx2 of a domain, counting lookups
+	 */
+	private static class StubResolver implements IMxResolver {
+
+		private final AtomicInteger _lookups = new AtomicInteger();
+		private final long _ttlMs;
+
+		private StubResolver(long ttlMs) {
+			_ttlMs = ttlMs;
+		}
+
+		@Override
+		public MailHosts resolve(String domain) throws NamingException {
+			_lookups.incrementAndGet();
+			if (domain.startsWith("unknown")) {
+				throw new NameNotFoundException(domain);
+			}
+			return new MailHosts(Arrays.asList("mx1." + domain, "mx2." + domain), _ttlMs);
+		}
+	}
+
+	@Test
+	public void ttl() throws Exception {
+		StubResolver resolver = new StubResolver(200);
+		MxCache cache = new MxCache(resolver, 60000, 60000);
+
+		assertEquals(Arrays.asList("mx1.example.com", "mx2.example.com"), cache.getMailHosts("example.com"));
+		cache.getMailHosts("example.com");
+		assertEquals(1, resolver._lookups.get());
+
+		Thread.sleep(250);
+		cache.getMailHosts("example.com");
+		assertEquals(2, resolver._lookups.get());
+	}
+
+	@Test
+	public void defaultTtl() throws Exception {
+		StubResolver resolver = new StubResolver(-1);
+		MxCache cache = new MxCache(resolver, 200, 60000);
+
+		cache.getMailHosts("example.com");
+		cache.getMailHosts("example.com");
+		assertEquals(1, resolver._lookups.get());
+
+		Thread.sleep(250);
+		cache.getMailHosts("example.com");
+		assertEquals(2, resolver._lookups.get());
+	}
+
+	@Test
+	public void negative() throws Exception {
+		StubResolver resolver = new StubResolver(60000);
+		MxCache cache = new MxCache(resolver, 60000, 200);
+
+		for (int i = 0; i < 3; i++) {
+			try {
+				cache.getMailHosts("unknown.example.com");
+				fail();
+			} catch (NameNotFoundException e) {
+				// expected
+			}
+		}
+		assertEquals(1, resolver._lookups.get());
+
+		Thread.sleep(250);
+		try {
+			cache.getMailHosts("unknown.example.com");
+			fail();
+		} catch (NameNotFoundException e) {
+			// expected
+		}
+		assertEquals(2, resolver._lookups.get());
+	}
+
+	@Test
+	public void failover() throws Exception {
+		DirectMailClient client = new DirectMailClient() {
+			@Override
+			protected Session createSmtpSession(String domain) throws MailException {
+				return DummyTransport.setProvider(super.createSmtpSession(domain));
+			}
+		};
+		client.setMxResolver(new StubResolver(60000));
+		client.setFrom("test@test.molindo.at", MxCacheTest.class.getSimpleName());
+		client.setFormat(AbstractMailClient.Format.TEXT);
+		client.init();
+
+		DummyTransport.DOWN_HOSTS.add("mx1.example.com");
+		client.send(dispatch("user@example.com"));
+
+		assertEquals(Arrays.asList("mx2.example.com"), DummyTransport.CONNECTED_HOSTS);
+		assertEquals(1, DummyTransport.MESSAGES.get());
+
+		try {
+			client.send(dispatch("user@unknown.example.com"));
+			fail();
+		} catch (MailException e) {
+			assertEquals(false, e.isTemporaryError());
+		}
+
+		client.destroy();
+	}
+
+	@Test
+	public void throttleConnectedHost() throws Exception {
+		DirectMailClient client = new DirectMailClient() {
+			@Override
+			protected Session createSmtpSession(String domain) throws MailException {
+				return DummyTransport.setProvider(super.createSmtpSession(domain));
+			}
+		};
+		// other.com is served by the secondary MX of example.com
+		client.setMxResolver(new IMxResolver() {
+
+			@Override
+			public MailHosts resolve(String domain) {
+				return new MailHosts(domain.equals("other.com") ? Arrays.asList("mx2.example.com") : Arrays.asList(
+						"mx1." + domain, "mx2." + domain), 60000);
+			}
+		});
+		client.setFrom("test@test.molindo.at", MxCacheTest.class.getSimpleName());
+		client.setFormat(AbstractMailClient.Format.TEXT);
+		client.init();
+
+		DummyTransport.DOWN_HOSTS.add("mx1.example.com");
+		DummyTransport.THROTTLING_HOSTS.add("mx2.example.com");
+		try {
+			client.send(dispatch("user@example.com"));
+			fail();
+		} catch (MailException e) {
+			assertTrue(e.getDeferMs() > 0);
+		}
+
+		// pauses host that responded with 421
+		try {
+			client.send(dispatch("user@other.com"));
+			fail();
+		} catch (MailException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("MX host mx2.example.com paused"));
+		}
+		assertEquals(Arrays.asList("mx2.example.com"), DummyTransport.CONNECTED_HOSTS);
+
+		client.destroy();
+	}
+
+	@Test
+	public void poolPerDomain() throws Exception {
+		DirectMailClient client = new DirectMailClient();
+		client.setMxResolver(new StubResolver(60000));
+		client.setFrom("test@test.molindo.at", MxCacheTest.class.getSimpleName());
+		client.init();
+
+		// sessions expire, pools don't depend on them
+		SmtpTransportPool pool = client.getTransportPool(client.createSmtpSession("example.com"));
+		assertSame(pool, client.getTransportPool(client.createSmtpSession("example.com")));
+		assertNotSame(pool, client.getTransportPool(client.createSmtpSession("example.org")));
+
+		client.destroy();
+	}
+
+	private static Dispatch dispatch(String recipient) throws Exception {
+		PushChannelPreferences cPrefs = new PushChannelPreferences();
+		MailChannel.setRecipient(cPrefs, recipient);
+		return new Dispatch(Message.parse("Subject: Test\n\nThis is a test", Type.TEXT), new Params(
+				cPrefs.getParams()));
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.channel.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.Address;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class SmtpTransportPoolTest {
+
+	@Before
+	public void before() {
+		DummyTransport.reset();
+	}
+
+	@After
+	public void after() {
+		DummyTransport.reset();
+	}
+
+	@Test
+	public void concurrency() throws Exception {
+		Session session = DummyTransport.newSession();
+		final SmtpTransportPool pool = new SmtpTransportPool(session, 2, 10000);
+
+		final MimeMessage mm = new MimeMessage(session);
+		mm.setText("test");
+		final Address[] recipients = { new InternetAddress("test@example.com") };
+
+		DummyTransport._sendDelayMs = 10;
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> futures = Lists.newArrayList();
+			for (int i = 0; i < 16; i++) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						pool.send(mm, recipients);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(16, DummyTransport.MESSAGES.get());
+		assertTrue("max active: " + DummyTransport.MAX_ACTIVE.get(), DummyTransport.MAX_ACTIVE.get() <= 2);
+		assertTrue("connects: " + DummyTransport.CONNECTS.get(), DummyTransport.CONNECTS.get() <= 2);
+		assertEquals(0, pool.getActive());
+	}
+
+	@Test
+	public void reuse() throws Exception {
+		Session session = DummyTransport.newSession();
+		SmtpTransportPool pool = new SmtpTransportPool(session, 2, 10000).setMaxMessagesPerConnection(5);
+
+		MimeMessage mm = new MimeMessage(session);
+		mm.setText("test");
+		Address[] recipients = { new InternetAddress("test@example.com") };
+
+		for (int i = 0; i < 12; i++) {
+			pool.send(mm, recipients);
+		}
+
+		assertEquals(12, DummyTransport.MESSAGES.get());
+		assertEquals(3, DummyTransport.CONNECTS.get());
+		assertEquals(1, pool.getIdle());
+
+		pool.close();
+		assertEquals(0, pool.getIdle());
+	}
+
+	@Test
+	public void evictIdle() throws Exception {
+		Session session = DummyTransport.newSession();
+		SmtpTransportPool pool = new SmtpTransportPool(session, 2, 10000).setMaxIdleMs(200);
+
+		pool.connect();
+		assertEquals(1, DummyTransport.CONNECTS.get());
+		assertEquals(1, pool.getIdle());
+
+		Thread.sleep(250);
+		pool.evictIdle();
+		assertEquals(0, pool.getIdle());
+
+		pool.close();
+	}
+
+	@Test
+	public void closeInUse() throws Exception {
+		Session session = DummyTransport.newSession();
+		SmtpTransportPool pool = new SmtpTransportPool(session, 2, 10000);
+
+		MimeMessage mm = new MimeMessage(session);
+		mm.setText("test");
+		Address[] recipients = { new InternetAddress("test@example.com") };
+
+		pool.close();
+
+		// still usable but doesn't keep connections open
+		pool.send(mm, recipients);
+		assertEquals(1, DummyTransport.MESSAGES.get());
+		assertEquals(0, pool.getIdle());
+	}
+}
@@ -16,6 +16,7 @@
 
 package at.molindo.notify.dao.dummy;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -25,6 +26,7 @@ import at.molindo.notify.dao.INotificationDAO;
 import at.molindo.notify.model.Notification;
 import at.molindo.notify.model.Notification.Type;
 import at.molindo.notify.model.Param;
+import at.molindo.notify.model.PushChannelPreferences.Frequency;
 import at.molindo.notify.model.PushState;
 
 import com.google.common.collect.Lists;
@@ -43,6 +45,11 @@ public class DummyNotificationDAO implements INotificationDAO {
 		// do nothing
 	}
 
+	@Override
+	public void updateAll(Collection<Notification> notifications) {
+		// do nothing
+	}
+
 	@Override
 	public void delete(Notification notification) {
 		// do nothing
@@ -73,6 +80,31 @@ public class DummyNotificationDAO implements INotificationDAO {
 		}
 	}
 
+	@Override
+	public List<Notification> getNextBatch(int max, String workerId, long leaseMs) {
+		Notification next = max > 0 ? getNext() : null;
+		if (next == null) {
+			return Lists.newArrayListWithCapacity(0);
+		}
+		return Lists.newArrayList(next.setLeaseOwner(workerId).setLeaseExpires(
+				new Date(System.currentTimeMillis() + leaseMs)));
+	}
+
+	@Override
+	public List<Notification> getByDate(Date from, Date to, int first, int count) {
+		return Lists.newArrayListWithCapacity(0);
+	}
+
+	@Override
+	public boolean claimDigest(Frequency frequency, Date windowStart, String workerId) {
+		return true;
+	}
+
+	@Override
+	public Date getLastDigest(Frequency frequency) {
+		return null;
+	}
+
 	@Override
 	public List<Notification> getRecent(String userId, Set<Type> types, int first, int count) {
 		if (DummyUtils.USER_ID.equals(userId) && types.contains(Type.PRIVATE) && first == 0 && count > 0) {
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dao.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.molindo.notify.model.Template;
+import at.molindo.notify.render.IRenderService.Type;
+import at.molindo.notify.render.IRenderService.Version;
+
+import com.google.common.collect.ImmutableSet;
+
+public class FileTemplateDAOTest {
+
+	private File _baseDir;
+	private FileTemplateDAO _dao;
+
+	@Before
+	public void before() throws IOException {
+		_baseDir = Files.createTempDirectory("templates").toFile();
+		write("welcome/long.en.text", "Subject: Welcome\n\nwelcome");
+		write("welcome/short..text", "Subject: Welcome\n\nhi");
+		write("welcome/ignored.txt", "ignored");
+
+		_dao = new FileTemplateDAO();
+		_dao.setBaseDir(_baseDir);
+	}
+
+	@After
+	public void after() throws IOException {
+		_dao.destroy();
+		delete(_baseDir);
+	}
+
+	@Test
+	public void find() throws Exception {
+		_dao.afterPropertiesSet();
+
+		assertEquals(ImmutableSet.of("welcome"), _dao.findKeys());
+
+		List<Template> templates = _dao.findTemplates("welcome");
+		assertEquals(2, templates.size());
+		for (Template t : templates) {
+			assertEquals(Type.TEXT, t.getType());
+			if (t.getVersion() == Version.LONG) {
+				assertEquals(Locale.ENGLISH, t.getLocale());
+				assertEquals("Subject: Welcome\n\nwelcome", t.getContent());
+			}
+		}
+
+		// copies
+		templates.get(0).setContent("changed");
+		assertTrue(!"changed".equals(_dao.findTemplates("welcome").get(0).getContent()));
+	}
+
+	@Test
+	public void watch() throws Exception {
+		_dao.afterPropertiesSet();
+
+		write("welcome/long.en.text", "Subject: Welcome\n\nwelcome back");
+		new File(_baseDir, "welcome/long.en.text").setLastModified(System.currentTimeMillis() + 5000);
+		write("bye/long.en.text", "Subject: Bye\n\nbye");
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!_dao.findKeys().contains("bye") || !"Subject: Welcome\n\nwelcome back".equals(content("welcome"))) {
+			assertTrue("changes not detected", System.currentTimeMillis() < deadline);
+			Thread.sleep(50);
+		}
+	}
+
+	@Test
+	public void watchExisting() throws Exception {
+		// only rely on events
+		_dao.setRescanIntervalMs(0);
+		_dao.afterPropertiesSet();
+
+		write("welcome/long.en.text", "Subject: Welcome\n\nwelcome back");
+		new File(_baseDir, "welcome/long.en.text").setLastModified(System.currentTimeMillis() + 5000);
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!"Subject: Welcome\n\nwelcome back".equals(content("welcome"))) {
+			assertTrue("changes not detected", System.currentTimeMillis() < deadline);
+			Thread.sleep(50);
+		}
+	}
+
+	@Test
+	public void rescan() throws Exception {
+		_dao.setWatch(false);
+		_dao.setRescanIntervalMs(0);
+		_dao.afterPropertiesSet();
+
+		write("bye/long.en.text", "Subject: Bye\n\nbye");
+		assertEquals(ImmutableSet.of("welcome", "bye"), _dao.findKeys());
+	}
+
+	private String content(String key) {
+		for (Template t : _dao.findTemplates(key)) {
+			if (t.getVersion() == Version.LONG) {
+				return t.getContent();
+			}
+		}
+		return null;
+	}
+
+	private void write(String path, String content) throws IOException {
+		File file = new File(_baseDir, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -18,9 +18,11 @@ package at.molindo.notify.dao.memory;
 
 import static at.molindo.utils.collections.ArrayUtils.empty;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -28,20 +30,27 @@ import java.util.ListIterator;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
-import at.molindo.notify.dao.INotificationDAO;
+import at.molindo.notify.dao.IShardedNotificationDAO;
 import at.molindo.notify.model.Notification;
 import at.molindo.notify.model.Notification.Type;
+import at.molindo.notify.model.PushChannelPreferences.Frequency;
 import at.molindo.notify.model.PushState;
+import at.molindo.notify.util.NotifyUtils;
 import at.molindo.utils.collections.CollectionUtils;
 
 import com.google.common.collect.Lists;
 
-public class MemoryNotificationDAO implements INotificationDAO {
+public class MemoryNotificationDAO implements IShardedNotificationDAO {
 
 	private final LinkedList<Notification> _queue = Lists.newLinkedList();
 
 	private final AtomicLong _idCounter = new AtomicLong(1);
 
+	/**
+	 * guarded by itself
+	 */
+	private final EnumMap<Frequency, Date> _digests = new EnumMap<Frequency, Date>(Frequency.class);
+
 	@Override
 	public void save(Notification notification) {
 		if (notification == null) {
@@ -78,6 +87,15 @@ public class MemoryNotificationDAO implements INotificationDAO {
 		}
 	}
 
+	@Override
+	public void updateAll(Collection<Notification> notifications) {
+		synchronized (_queue) {
+			for (Notification notification : notifications) {
+				update(notification);
+			}
+		}
+	}
+
 	@Override
 	public void delete(Notification notification) {
 		if (notification.getId() == null) {
@@ -98,17 +116,7 @@ public class MemoryNotificationDAO implements INotificationDAO {
 	@Override
 	public Notification getNext() {
 		synchronized (_queue) {
-			Collections.sort(_queue, new Comparator<Notification>() {
-				@Override
-				public int compare(Notification o1, Notification o2) {
-					// QUEUED to front
-					int val = o1.getPushState().compareTo(o2.getPushState());
-					if (val != 0) {
-						return val;
-					}
-					return o1.getPushDate().compareTo(o2.getPushDate());
-				}
-			});
+			sort();
 			Notification n = _queue.peek();
 			if (n != null && n.getPushState() == PushState.QUEUED && n.getPushDate() != null
 					&& n.getPushDate().before(new Date())) {
@@ -119,6 +127,101 @@ public class MemoryNotificationDAO implements INotificationDAO {
 		}
 	}
 
+	@Override
+	public List<Notification> getNextBatch(int max, String workerId, long leaseMs) {
+		return getNextBatch(max, workerId, leaseMs, 1, null);
+	}
+
+	@Override
+	public List<Notification> getNextBatch(int max, String workerId, long leaseMs, int shardCount,
+			Set<Integer> shards) {
+		List<Notification> batch = Lists.newArrayListWithCapacity(Math.min(max, 100));
+
+		synchronized (_queue) {
+			sort();
+
+			long now = System.currentTimeMillis();
+			Date expires = new Date(now + leaseMs);
+
+			ListIterator<Notification> iter = _queue.listIterator();
+			while (batch.size() < max && iter.hasNext()) {
+				Notification n = iter.next();
+				if (n.getPushState() != PushState.QUEUED || n.getPushDate() == null
+						|| n.getPushDate().getTime() >= now) {
+					// sorted, no more due notifications
+					break;
+				}
+				if (shards != null && !shards.contains(NotifyUtils.shard(n.getUserId(), shardCount))) {
+					continue;
+				}
+				if (n.getLeaseExpires() == null || n.isLeaseExpired(now)) {
+					batch.add(n.setLeaseOwner(workerId).setLeaseExpires(expires));
+				}
+			}
+		}
+
+		return batch;
+	}
+
+	private void sort() {
+		Collections.sort(_queue, new Comparator<Notification>() {
+			@Override
+			public int compare(Notification o1, Notification o2) {
+				// QUEUED to front
+				int val = o1.getPushState().compareTo(o2.getPushState());
+				if (val != 0) {
+					return val;
+				}
+				return o1.getPushDate().compareTo(o2.getPushDate());
+			}
+		});
+	}
+
+	@Override
+	public List<Notification> getByDate(Date from, Date to, int first, int count) {
+		List<Notification> list = Lists.newArrayList();
+
+		synchronized (_queue) {
+			for (Notification n : _queue) {
+				if (!n.getDate().before(from) && n.getDate().before(to)) {
+					list.add(n);
+				}
+			}
+		}
+
+		Collections.sort(list, new Comparator<Notification>() {
+			@Override
+			public int compare(Notification o1, Notification o2) {
+				int val = o1.getUserId().compareTo(o2.getUserId());
+				if (val != 0) {
+					return val;
+				}
+				return o1.getDate().compareTo(o2.getDate());
+			}
+		});
+
+		return CollectionUtils.subList(list, first, count);
+	}
+
+	@Override
+	public boolean claimDigest(Frequency frequency, Date windowStart, String workerId) {
+		synchronized (_digests) {
+			Date last = _digests.get(frequency);
+			if (last != null && !last.before(windowStart)) {
+				return false;
+			}
+			_digests.put(frequency, windowStart);
+			return true;
+		}
+	}
+
+	@Override
+	public Date getLastDigest(Frequency frequency) {
+		synchronized (_digests) {
+			return _digests.get(frequency);
+		}
+	}
+
 	@Override
 	public List<Notification> getRecent(String userId, Set<Type> types, int first, int count) {
 		List<Notification> list = Lists.newArrayListWithCapacity(Math.max(_queue.size(), 100));
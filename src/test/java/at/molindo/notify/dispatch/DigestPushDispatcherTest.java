@@ -0,0 +1,198 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dispatch;
+
+import static at.molindo.notify.dispatch.DigestPushDispatcher.windowEnd;
+import static at.molindo.notify.dispatch.DigestPushDispatcher.windowStart;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import at.molindo.notify.INotifyService.IParamsFactory;
+import at.molindo.notify.channel.IPushChannel;
+import at.molindo.notify.channel.dummy.DummyChannel;
+import at.molindo.notify.dao.IPreferencesDAO;
+import at.molindo.notify.dao.memory.MemoryNotificationDAO;
+import at.molindo.notify.model.Dispatch;
+import at.molindo.notify.model.IChannelPreferences;
+import at.molindo.notify.model.IPreferences;
+import at.molindo.notify.model.Message;
+import at.molindo.notify.model.Notification;
+import at.molindo.notify.model.Notification.Type;
+import at.molindo.notify.model.Params;
+import at.molindo.notify.model.Preferences;
+import at.molindo.notify.model.PushChannelPreferences;
+import at.molindo.notify.model.PushChannelPreferences.Frequency;
+import at.molindo.notify.render.IRenderService;
+import at.molindo.notify.render.IRenderService.RenderException;
+
+import com.google.common.collect.Sets;
+
+public class DigestPushDispatcherTest {
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private static Date d(String date) throws Exception {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		format.setTimeZone(UTC);
+		return format.parse(date);
+	}
+
+	@Test
+	public void windows() throws Exception {
+		// 2015-07-15 is a Wednesday
+		Date date = d("2015-07-15 13:37");
+
+		assertEquals(d("2015-07-15 00:00"), windowStart(Frequency.DAILY, date, UTC));
+		assertEquals(d("2015-07-13 00:00"), windowStart(Frequency.WEEKLY, date, UTC));
+		assertEquals(d("2015-07-01 00:00"), windowStart(Frequency.MONTHLY, date, UTC));
+
+		assertEquals(d("2015-07-16 00:00"), windowEnd(Frequency.DAILY, d("2015-07-15 00:00"), UTC));
+		assertEquals(d("2015-07-20 00:00"), windowEnd(Frequency.WEEKLY, d("2015-07-13 00:00"), UTC));
+		assertEquals(d("2015-08-01 00:00"), windowEnd(Frequency.MONTHLY, d("2015-07-01 00:00"), UTC));
+	}
+
+	@Test
+	public void firstWindow() throws Exception {
+		Date now = d("2015-07-15 13:37");
+
+		assertEquals(d("2015-07-15 00:00"), DigestPushDispatcher.firstWindow(Frequency.DAILY, null, now, UTC));
+		// resume after last claimed window
+		assertEquals(d("2015-07-13 00:00"),
+				DigestPushDispatcher.firstWindow(Frequency.DAILY, d("2015-07-12 00:00"), now, UTC));
+		assertEquals(d("2015-07-15 00:00"),
+				DigestPushDispatcher.firstWindow(Frequency.DAILY, d("2015-07-15 00:00"), now, UTC));
+	}
+
+	@Test
+	public void digest() throws Exception {
+		MemoryNotificationDAO notificationDAO = new MemoryNotificationDAO();
+		for (String userId : new String[] { "daily", "instant", "daily" }) {
+			notificationDAO.save(new Notification().setUserId(userId).setKey("test").setType(Type.PRIVATE)
+					.setDate(d("2015-07-15 13:37")));
+		}
+		// outside window
+		notificationDAO.save(new Notification().setUserId("daily").setKey("test").setDate(d("2015-07-16 00:00")));
+
+		DummyChannel channel = new DummyChannel();
+		DigestPushDispatcher dispatcher = dispatcher(notificationDAO, channel);
+
+		assertEquals(0, dispatcher.digest(Frequency.WEEKLY, d("2015-07-13 00:00"), d("2015-07-20 00:00")));
+		assertNull(channel.getLastDispatch());
+
+		assertEquals(1, dispatcher.digest(Frequency.DAILY, d("2015-07-15 00:00"), d("2015-07-16 00:00")));
+		assertNotNull(channel.getLastDispatch());
+		assertEquals("digest", channel.getLastDispatch().getMessage().getSubject());
+		assertEquals("2", channel.getLastDispatch().getMessage().getText());
+	}
+
+	@Test
+	public void claim() throws Exception {
+		MemoryNotificationDAO notificationDAO = new MemoryNotificationDAO();
+		notificationDAO.save(new Notification().setUserId("daily").setKey("test").setType(Type.PRIVATE)
+				.setDate(d("2015-07-15 13:37")));
+
+		DummyChannel channel = new DummyChannel();
+		DigestPushDispatcher dispatcher = dispatcher(notificationDAO, channel);
+		dispatcher.resume(d("2015-07-15 12:00"));
+		dispatcher.new Scheduler().run();
+
+		assertNotNull(channel.getLastDispatch());
+		assertEquals(d("2015-07-15 00:00"), notificationDAO.getLastDigest(Frequency.DAILY));
+
+		// another node or a restart doesn't repeat the window
+		DummyChannel other = new DummyChannel();
+		DigestPushDispatcher otherDispatcher = dispatcher(notificationDAO, other);
+		otherDispatcher.resume(d("2015-07-15 12:00"));
+		otherDispatcher.new Scheduler().run();
+		assertNull(other.getLastDispatch());
+		assertFalse(notificationDAO.claimDigest(Frequency.DAILY, d("2015-07-15 00:00"), "other"));
+	}
+
+	@Test
+	public void pushDispatcher() {
+		DigestPushDispatcher dispatcher = dispatcher(new MemoryNotificationDAO(), new DummyChannel());
+		assertSame(dispatcher, dispatcher.getPushDispatcher().getDigestDispatcher());
+
+		dispatcher.destroy();
+		assertNull(dispatcher.getPushDispatcher().getDigestDispatcher());
+	}
+
+	private static DigestPushDispatcher dispatcher(MemoryNotificationDAO notificationDAO, DummyChannel channel) {
+		final Preferences daily = new Preferences().setUserId("daily");
+		daily.getChannelPrefs().put(DummyChannel.DEFAULT_CHANNEL_ID, new PushChannelPreferences());
+		((PushChannelPreferences) daily.getChannelPrefs().get(DummyChannel.DEFAULT_CHANNEL_ID))
+				.setFrequency(Frequency.DAILY);
+
+		final Preferences instant = new Preferences().setUserId("instant");
+		instant.getChannelPrefs().put(DummyChannel.DEFAULT_CHANNEL_ID, new PushChannelPreferences());
+
+		DigestPushDispatcher dispatcher = new DigestPushDispatcher();
+		dispatcher.setPushChannels(Sets.<IPushChannel> newHashSet(channel));
+		dispatcher.setNotificationDAO(notificationDAO);
+		dispatcher.setTimeZone(UTC);
+		dispatcher.setPageSize(2);
+		dispatcher.setPreferencesDAO(new IPreferencesDAO() {
+
+			@Override
+			public IPreferences getPreferences(String userId) {
+				return "daily".equals(userId) ? daily : instant;
+			}
+
+			@Override
+			public void savePreferences(IPreferences prefs) {
+			}
+
+			@Override
+			public void removePreferences(String userId) {
+			}
+		});
+		dispatcher.setDispatchService(new IDispatchService() {
+
+			@Override
+			public Dispatch create(Notification notification, IPreferences prefs, IChannelPreferences cPrefs)
+					throws RenderException {
+				Params params = new Params();
+				params.setAll(notification.getParams());
+				List<?> notifications = (List<?>) params.get(DigestPushDispatcher.DIGEST_NOTIFICATIONS);
+				return new Dispatch(Message.parse("Subject: " + notification.getKey() + "\n\n" + notifications.size(),
+						IRenderService.Type.TEXT), params);
+			}
+
+			@Override
+			public void addParamsFactory(IParamsFactory factory) {
+			}
+
+			@Override
+			public void removeParamsFactory(IParamsFactory factory) {
+			}
+		});
+		dispatcher.setPushDispatcher(new AbstractPushDispatcher() {
+		});
+		dispatcher.afterPropertiesSet();
+		return dispatcher;
+	}
+}
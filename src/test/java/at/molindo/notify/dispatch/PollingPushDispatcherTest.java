@@ -16,12 +16,14 @@
 
 package at.molindo.notify.dispatch;
 
+import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.reportMatcher;
 
+import java.util.Collection;
 import java.util.Date;
 
 import org.easymock.IArgumentMatcher;
@@ -47,6 +49,7 @@ import at.molindo.notify.render.IRenderService.RenderException;
 import at.molindo.notify.test.util.EasyMockContext;
 import at.molindo.notify.test.util.MockTest;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
@@ -114,7 +117,9 @@ public class PollingPushDispatcherTest {
 			protected void setup(EasyMockContext context) throws Exception {
 				super.setup(context);
 
-				expect(context.get(INotificationDAO.class).getNext()).andReturn(n());
+				expect(
+						context.get(INotificationDAO.class).getNextBatch(eq(dispatcher.getBatchSize()),
+								eq(dispatcher.getWorkerId()), anyLong())).andReturn(Lists.newArrayList(n()));
 
 				expect(context.get(IPreferencesDAO.class).getPreferences(n().getUserId())).andReturn(p());
 				expect(context.get(IPushChannel.class).getId()).andReturn(CHANNEL_ID).anyTimes();
@@ -132,7 +137,12 @@ public class PollingPushDispatcherTest {
 
 					@Override
 					public boolean matches(Object argument) {
-						Notification n = (Notification) argument;
+						Collection<?> c = (Collection<?>) argument;
+						if (c.size() != 1) {
+							return false;
+						}
+
+						Notification n = (Notification) c.iterator().next();
 
 						if (n.getPushErrors() != 1) {
 							return false;
@@ -146,6 +156,10 @@ public class PollingPushDispatcherTest {
 							return false;
 						}
 
+						if (n.getLeaseOwner() != null || n.getLeaseExpires() != null) {
+							return false;
+						}
+
 						return true;
 					}
 
@@ -154,7 +168,7 @@ public class PollingPushDispatcherTest {
 						buffer.append("rescheduling failed");
 					}
 				});
-				context.get(INotificationDAO.class).update(null);
+				context.get(INotificationDAO.class).updateAll(null);
 
 				context.get(IErrorListener.class).error(n(), context.get(IPushChannel.class), ex);
 			}
@@ -179,7 +193,9 @@ public class PollingPushDispatcherTest {
 			protected void setup(EasyMockContext context) throws Exception {
 				super.setup(context);
 
-				expect(context.get(INotificationDAO.class).getNext()).andReturn(null);
+				expect(
+						context.get(INotificationDAO.class).getNextBatch(eq(dispatcher.getBatchSize()),
+								eq(dispatcher.getWorkerId()), anyLong())).andReturn(Lists.<Notification> newArrayList());
 
 				// verify delay
 				context.get(IErrorListener.class).error(null, null, ex);
@@ -0,0 +1,288 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.molindo.notify.INotifyService.IParamsFactory;
+import at.molindo.notify.channel.IPushChannel;
+import at.molindo.notify.channel.dummy.DummyChannel;
+import at.molindo.notify.dao.IPreferencesDAO;
+import at.molindo.notify.dao.memory.MemoryNotificationDAO;
+import at.molindo.notify.model.Dispatch;
+import at.molindo.notify.model.IChannelPreferences;
+import at.molindo.notify.model.IPreferences;
+import at.molindo.notify.model.Message;
+import at.molindo.notify.model.Notification;
+import at.molindo.notify.model.Notification.Type;
+import at.molindo.notify.model.Params;
+import at.molindo.notify.model.Preferences;
+import at.molindo.notify.model.PushChannelPreferences;
+import at.molindo.notify.model.PushChannelPreferences.Frequency;
+import at.molindo.notify.model.PushState;
+import at.molindo.notify.render.IRenderService;
+import at.molindo.notify.render.IRenderService.RenderException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class PushPipelineTest {
+
+	private PushPipeline _pipeline;
+	private MemoryNotificationDAO _notificationDAO;
+
+	@Before
+	public void before() {
+		_pipeline = new PushPipeline();
+		_pipeline.setRenderPoolSize(2);
+		_pipeline.setDeliveryPoolSize(2);
+		_pipeline.setQueueCapacity(2);
+		_pipeline.afterPropertiesSet();
+
+		_notificationDAO = new MemoryNotificationDAO();
+	}
+
+	@After
+	public void after() {
+		_pipeline.destroy();
+	}
+
+	private AbstractPushDispatcher dispatcher(IPushChannel... channels) {
+		AbstractPushDispatcher dispatcher = new AbstractPushDispatcher() {
+		};
+		dispatcher.setPipeline(_pipeline);
+		dispatcher.setPushChannels(Sets.newHashSet(channels));
+		dispatcher.setNotificationDAO(_notificationDAO);
+		dispatcher.setPreferencesDAO(new IPreferencesDAO() {
+
+			@Override
+			public IPreferences getPreferences(String userId) {
+				return "unknown".equals(userId) ? null : new Preferences().setUserId(userId);
+			}
+
+			@Override
+			public void savePreferences(IPreferences prefs) {
+			}
+
+			@Override
+			public void removePreferences(String userId) {
+			}
+		});
+		dispatcher.setDispatchService(new IDispatchService() {
+
+			@Override
+			public Dispatch create(Notification notification, IPreferences prefs, IChannelPreferences cPrefs)
+					throws RenderException {
+				return new Dispatch(Message.parse("Subject: " + notification.getKey() + "\n\n"
+						+ notification.getUserId(), IRenderService.Type.TEXT), new Params());
+			}
+
+			@Override
+			public void addParamsFactory(IParamsFactory factory) {
+			}
+
+			@Override
+			public void removeParamsFactory(IParamsFactory factory) {
+			}
+		});
+		dispatcher.afterPropertiesSet();
+		return dispatcher;
+	}
+
+	private List<Notification> notifications(String... userIds) {
+		List<Notification> notifications = Lists.newArrayList();
+		for (String userId : userIds) {
+			Notification n = new Notification().setUserId(userId).setKey("test").setType(Type.PRIVATE);
+			_notificationDAO.save(n);
+			notifications.add(n);
+		}
+		return notifications;
+	}
+
+	@Test
+	public void push() throws Exception {
+		List<Notification> notifications = notifications("user1", "user2", "user3", "user4", "user5", "unknown");
+
+		dispatcher(new DummyChannel()).dispatchAll(notifications);
+
+		for (Notification n : notifications) {
+			if ("unknown".equals(n.getUserId())) {
+				assertEquals(PushState.UNDELIVERABLE, n.getPushState());
+			} else {
+				assertEquals(n.getPushErrorMessage(), PushState.PUSHED, n.getPushState());
+			}
+		}
+	}
+
+	@Test
+	public void failure() throws Exception {
+		List<Notification> notifications = notifications("user1", "user2", "user3");
+
+		dispatcher(new DummyChannel() {
+
+			@Override
+			public void push(Dispatch dispatch) throws PushException {
+				throw new PushException("failed", true);
+			}
+
+		}).dispatchAll(notifications);
+
+		for (Notification n : notifications) {
+			assertEquals(PushState.QUEUED, n.getPushState());
+			assertEquals(1, n.getPushErrors());
+		}
+	}
+
+	@Test
+	public void deferred() throws Exception {
+		List<Notification> notifications = notifications("user1", "user2");
+
+		long start = System.currentTimeMillis();
+		dispatcher(new DummyChannel() {
+
+			@Override
+			public void push(Dispatch dispatch) throws PushException {
+				throw new PushException("throttled", true).setDeferMs(60000);
+			}
+
+		}).dispatchAll(notifications);
+
+		for (Notification n : notifications) {
+			assertEquals(PushState.QUEUED, n.getPushState());
+			assertEquals(0, n.getPushErrors());
+			assertTrue(n.getPushDate().getTime() >= start + 60000);
+		}
+	}
+
+	@Test
+	public void deferredAndDigest() throws Exception {
+		List<Notification> notifications = notifications("user1");
+
+		long start = System.currentTimeMillis();
+		AbstractPushDispatcher dispatcher = dispatcher(new DailyChannel().setId("digest"), new DummyChannel() {
+
+			@Override
+			public void push(Dispatch dispatch) throws PushException {
+				throw new PushException("throttled", true).setDeferMs(60000);
+			}
+
+		}.setId("deferred"));
+		dispatcher.setDigestDispatcher(new DigestPushDispatcher());
+		dispatcher.dispatchAll(notifications);
+
+		// not pushed to all channels yet
+		Notification n = notifications.get(0);
+		assertEquals(PushState.QUEUED, n.getPushState());
+		assertEquals(0, n.getPushErrors());
+		assertTrue(n.getPushDate().getTime() >= start + 60000);
+	}
+
+	@Test
+	public void digest() throws Exception {
+		List<Notification> notifications = notifications("user1");
+
+		AbstractPushDispatcher dispatcher = dispatcher(new DailyChannel());
+		dispatcher.dispatchAll(notifications);
+
+		// retried without a digest dispatcher
+		assertEquals(PushState.QUEUED, notifications.get(0).getPushState());
+		assertEquals(1, notifications.get(0).getPushErrors());
+
+		dispatcher.setDigestDispatcher(new DigestPushDispatcher());
+		dispatcher.dispatchAll(notifications);
+		assertEquals(PushState.PUSHED, notifications.get(0).getPushState());
+	}
+
+	@Test
+	public void digestNotConfigured() throws Exception {
+		List<Notification> notifications = notifications("user1");
+
+		AbstractPushDispatcher dispatcher = dispatcher(new DailyChannel() {
+
+			@Override
+			public boolean isConfigured(Params params) {
+				return false;
+			}
+		});
+		dispatcher.setDigestDispatcher(new DigestPushDispatcher());
+		dispatcher.dispatchAll(notifications);
+
+		assertEquals(PushState.UNDELIVERABLE, notifications.get(0).getPushState());
+	}
+
+	@Test
+	public void deferredTooLong() throws Exception {
+		List<Notification> notifications = notifications("user1");
+		notifications.get(0).setDate(new Date(System.currentTimeMillis() - 120000));
+
+		AbstractPushDispatcher dispatcher = dispatcher(new DummyChannel() {
+
+			@Override
+			public void push(Dispatch dispatch) throws PushException {
+				throw new PushException("over quota", true).setDeferMs(60000);
+			}
+
+		});
+		dispatcher.setMaxDeferMs(60000);
+		dispatcher.dispatchAll(notifications);
+
+		assertEquals(PushState.QUEUED, notifications.get(0).getPushState());
+		assertEquals(1, notifications.get(0).getPushErrors());
+	}
+
+	@Test(timeout = 10000)
+	public void error() throws Exception {
+		List<Notification> notifications = notifications("user1", "user2", "user3");
+
+		// neither stage must leave pushAll waiting
+		dispatcher(new DummyChannel() {
+
+			@Override
+			public boolean isConfigured(Params params) {
+				throw new Error("render");
+			}
+
+		}).dispatchAll(notifications);
+
+		dispatcher(new DummyChannel() {
+
+			@Override
+			public void push(Dispatch dispatch) throws PushException {
+				throw new Error("deliver");
+			}
+
+		}).dispatchAll(notifications("user4", "user5"));
+	}
+
+	private static class DailyChannel extends DummyChannel {
+
+		@Override
+		public PushChannelPreferences newDefaultPreferences() {
+			PushChannelPreferences cPrefs = new PushChannelPreferences();
+			cPrefs.setFrequency(Frequency.DAILY);
+			return cPrefs;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import at.molindo.notify.dao.memory.MemoryMembershipDAO;
+
+import com.google.common.collect.Sets;
+
+public class ShardedPushDispatcherTest {
+
+	private static ShardedPushDispatcher d(String memberId, MemoryMembershipDAO membershipDAO) {
+		ShardedPushDispatcher dispatcher = new ShardedPushDispatcher();
+		dispatcher.setMemberId(memberId);
+		dispatcher.setMembershipDAO(membershipDAO);
+		dispatcher.setShardCount(32);
+		dispatcher.setHeartbeatMs(0);
+		return dispatcher;
+	}
+
+	@Test
+	public void rebalance() throws Exception {
+		MemoryMembershipDAO membershipDAO = new MemoryMembershipDAO();
+
+		ShardedPushDispatcher d1 = d("node1", membershipDAO);
+		ShardedPushDispatcher d2 = d("node2", membershipDAO);
+
+		d1.heartbeat();
+		assertEquals(32, d1.getOwnedShards().size());
+
+		// join
+		d2.heartbeat();
+		d1.heartbeat();
+		assertTrue(d1.getOwnedShards().size() > 0);
+		assertTrue(d2.getOwnedShards().size() > 0);
+		assertEquals(0, Sets.intersection(d1.getOwnedShards(), d2.getOwnedShards()).size());
+		assertEquals(32, Sets.union(d1.getOwnedShards(), d2.getOwnedShards()).size());
+
+		// leave
+		membershipDAO.leave("node2");
+		d1.heartbeat();
+		assertEquals(32, d1.getOwnedShards().size());
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.model;
+
+import org.apache.commons.beanutils.BeanUtils;
+
+import at.molindo.notify.model.BeanParamsTest.Bar;
+import at.molindo.notify.model.BeanParamsTest.MyBean;
+
+/**
+ * compares property reads of {@link BeanParams} with commons-beanutils, as
+ * used before, and direct getter calls. Run manually, e.g. from the IDE.
+ */
+public class BeanParamsBenchmark {
+
+	private static final int ITERATIONS = 1000000;
+
+	public static void main(String[] args) throws Exception {
+		MyBean bean = new MyBean();
+		bean.setFoo("foo");
+		bean.setQux(42);
+		bean.setBar(new Bar());
+		bean.getBar().setBaz(4711L);
+
+		Param<String> pFoo = Param.pString("foo");
+		Param<Integer> pQux = Param.pInteger("qux");
+		Param<Long> pBaz = Param.pLong("bar.baz");
+
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			long sum = 0;
+			for (int i = 0; i < ITERATIONS; i++) {
+				sum += bean.getFoo().length() + bean.getQux() + bean.getBar().getBaz();
+			}
+			print("direct", start, sum);
+
+			start = System.nanoTime();
+			sum = 0;
+			for (int i = 0; i < ITERATIONS; i++) {
+				BeanParams<MyBean> params = BeanParams.params(bean);
+				sum += params.get(pFoo).length() + params.get(pQux) + params.get(pBaz);
+			}
+			print("BeanParams", start, sum);
+
+			start = System.nanoTime();
+			sum = 0;
+			for (int i = 0; i < ITERATIONS / 10; i++) {
+				sum += BeanUtils.getProperty(bean, "foo").length()
+						+ Integer.parseInt(BeanUtils.getProperty(bean, "qux"))
+						+ Long.parseLong(BeanUtils.getProperty(bean, "bar.baz"));
+			}
+			print("BeanUtils (1/10)", start, sum);
+		}
+	}
+
+	private static void print(String name, long start, long sum) {
+		long nanos = System.nanoTime() - start;
+		System.out.println(String.format("%-20s %8.1f ms (%d)", name, nanos / 1000000.0, sum));
+	}
+}
@@ -17,8 +17,11 @@
 package at.molindo.notify.model;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 
 import java.io.Serializable;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -59,6 +62,43 @@ public class BeanParamsTest {
 		params.set(Param.pBoolean("doesNotExist"), true);
 	}
 
+	@Test
+	public void testNested() {
+		BeanParams<MyBean> params = new BeanParams<MyBean>(new MyBean());
+		Param<Long> pBaz = Param.pLong("bar.baz");
+
+		// bar is null
+		assertNull(params.get(pBaz));
+		assertFalse(params.isSet(pBaz));
+		params.set(pBaz, 4711L);
+		assertNull(params.getBean().getBar());
+
+		params.getBean().setBar(new Bar());
+		params.set(pBaz, 4711L);
+		assertEquals((Long) 4711L, params.getBean().getBar().getBaz());
+		assertEquals("4711", params.get(Param.pString("bar.baz")));
+		assertNull(params.get(Param.pLong("bar.doesNotExist")));
+	}
+
+	@Test
+	public void testValues() {
+		MyBean bean = new MyBean();
+		bean.setFoo("foo");
+		bean.setQux(42);
+		BeanParams<MyBean> params = new BeanParams<MyBean>(bean);
+
+		// only writable properties, class is read-only
+		Map<String, Object> map = params.newMap();
+		assertEquals(2, map.size());
+		assertEquals("foo", map.get("foo"));
+		assertEquals(42, map.get("qux"));
+
+		// read-only properties may be read but not written
+		assertEquals(MyBean.class, params.get(Param.pObject("class")));
+		params.set(Param.pObject("class"), String.class);
+		assertEquals("42", params.get(Param.pString("qux")));
+	}
+
 	public static class MyBean {
 
 		private String _foo;
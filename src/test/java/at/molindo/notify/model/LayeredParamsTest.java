@@ -0,0 +1,89 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class LayeredParamsTest {
+
+	private static final Param<String> A = Param.pString("a");
+	private static final Param<String> B = Param.pString("b");
+	private static final Param<String> C = Param.pString("c");
+	private static final Param<Integer> N = Param.pInteger("n");
+
+	@Test
+	public void layers() {
+		Params prefs = new Params();
+		prefs.set(A, "prefs").set(B, "prefs").set(C, "prefs");
+		Params notification = new Params();
+		notification.set(A, "notification");
+
+		LayeredParams params = new LayeredParams(notification, prefs);
+		assertEquals("notification", params.get(A));
+		assertEquals("prefs", params.get(B));
+		assertTrue(params.containsAll(A, B, C));
+		assertFalse(params.isSet(N));
+
+		// top layer
+		params.set(B, "top");
+		params.set(C, null);
+		params.set(N, 42);
+		assertEquals("top", params.get(B));
+		assertNull(params.get(C));
+		assertFalse(params.isSet(C));
+		assertEquals("prefs", prefs.get(B));
+		assertEquals("42", params.get(Param.pString("n")));
+
+		// parents are read live
+		notification.set(Param.pString("d"), "later");
+		assertEquals("later", params.get(Param.pString("d")));
+
+		assertEquals(ImmutableMap.of("a", "notification", "b", "top", "n", 42, "d", "later"), params.newMap());
+		assertEquals("notification", params.asMap().get("a"));
+		assertNull(params.asMap().get("c"));
+		assertEquals(42, params.asMap().get("n"));
+
+		Params flat = new Params();
+		flat.set(A, "notification").set(B, "top").set(N, 42).set(Param.pString("d"), "later");
+		assertEquals(flat, params);
+		assertEquals(params, flat);
+		assertEquals(flat.hashCode(), params.hashCode());
+
+		// iteration skips removed and overridden values
+		List<ParamValue> values = Lists.newArrayList(params);
+		assertEquals(4, values.size());
+		assertTrue(values.contains(B.value("top")));
+		assertFalse(values.contains(B.value("prefs")));
+		assertEquals(4, params.getValues().size());
+		assertEquals(B.value("top"), params.getValues().get("b"));
+		assertFalse(params.getValues().containsKey("c"));
+
+		// reset removed
+		params.set(C, "again");
+		assertEquals("again", params.asMap().get("c"));
+	}
+}
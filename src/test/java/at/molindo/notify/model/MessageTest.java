@@ -0,0 +1,87 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import at.molindo.notify.render.IRenderService.RenderException;
+import at.molindo.notify.render.IRenderService.Type;
+import at.molindo.notify.util.SimpleHtml2Text;
+
+public class MessageTest {
+
+	@Test
+	public void parse() throws Exception {
+		Message m = Message.parse(" Subject : Test \n \n\n  \nbody\n\nmore\n\n", Type.TEXT);
+		assertEquals("Test", m.getSubject());
+		assertEquals("body\n\nmore\n\n", m.getMessage());
+		assertEquals(Type.TEXT, m.getType());
+
+		// parsed from buffer in place
+		StringBuilder buf = new StringBuilder("Subject: Test\n\nthis is a test");
+		assertEquals(new Message("Test", "this is a test", Type.HTML), Message.parse(buf, Type.HTML));
+	}
+
+	@Test
+	public void convert() throws Exception {
+		Message m = new Message("Test", "<p>this is a <strong>test</strong></p>", Type.HTML);
+		assertEquals("this is a test", m.getText());
+		assertSame(m.getText(), m.getText());
+		assertSame(m.getText(), new Message(m).getText());
+		assertSame(m.getMessage(), m.getHtml());
+
+		m.setMessage("<p>changed</p>");
+		assertEquals("changed", m.getText());
+
+		m.setType(Type.TEXT);
+		assertEquals("<p>changed</p>", m.getText());
+		assertSame(m.getHtml(), m.getHtml());
+	}
+
+	@Test
+	public void html2text() throws Exception {
+		Message m = new Message("Test", "<p>a</p><hr><p>b</p>", Type.HTML);
+		assertEquals("a\r\n\r\n------------------------------------------------------------------------\r\n\r\nb",
+				m.getText());
+
+		m.setHtml2Text(new SimpleHtml2Text());
+		assertEquals("a\r\n\r\nb", m.getText());
+		assertEquals("a\r\n\r\nb", new Message(m).getText());
+	}
+
+	@Test
+	public void parseErrors() throws Exception {
+		assertParseError("Subject: Test", "empty body");
+		assertParseError("Subject: Test\n\n \n", "empty body");
+		assertParseError("\nbody", "missing fields: [Subject]");
+		assertParseError("Subject: Test\nFoo: bar\n\nbody", "unknown field: Foo");
+		assertParseError("Subject: Test\nfoo\n\nbody", "illegal line: foo");
+	}
+
+	private static void assertParseError(String str, String error) {
+		try {
+			Message.parse(str, Type.TEXT);
+			fail("expected error: " + error);
+		} catch (RenderException e) {
+			assertEquals(error, e.getMessage());
+		}
+	}
+}
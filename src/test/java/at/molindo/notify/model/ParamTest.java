@@ -17,10 +17,13 @@
 package at.molindo.notify.model;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import org.junit.Test;
@@ -48,6 +51,24 @@ public class ParamTest {
 		}
 	}
 
+	@Test
+	public void testInterned() throws MalformedURLException {
+		assertSame(Param.pString("test"), Param.pString("test"));
+		assertSame(Param.pString("test"), ParamType.STRING.p("test"));
+		assertNotSame(Param.pString("test"), Param.pString("other"));
+		assertEquals(Param.pInteger("test").getType(), Integer.class);
+
+		assertSame(Param.pInteger("test"), Param.p(int.class, "test"));
+		assertSame(Param.pInteger("test"), Param.p(Integer.class, "test"));
+		assertSame(Param.pURL("test"), Param.p(URL.class, "test"));
+		assertSame(Param.pSerializable("test"), Param.p(ArrayList.class, "test"));
+		assertSame(Param.pObject("test"), Param.p(Object.class, "test"));
+
+		for (ParamType t : ParamType.values()) {
+			assertSame(t, t.p("test").type());
+		}
+	}
+
 	@Test(expected = RuntimeException.class)
 	public void testPObject() {
 		assertConvert(Param.pObject("test"), Boolean.TRUE);
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.model;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+
+/**
+ * compares size and throughput of {@link ParamsCodec} with the string form
+ * of {@link ParamValue} (type, name and string value per value). Run
+ * manually, e.g. from the IDE.
+ */
+public class ParamsCodecBenchmark {
+
+	private static final int ITERATIONS = 200000;
+
+	public static void main(String[] args) throws Exception {
+		Params params = new Params();
+		params.set(Param.pString("user"), "john");
+		params.set(Param.pString("email"), "john@example.com");
+		params.set(Param.pInteger("count"), 42);
+		params.set(Param.pLong("id"), 1234567890123L);
+		params.set(Param.pBoolean("digest"), true);
+		params.set(Param.pURL("link"), new URL("http://example.com/messages/4711"));
+		run("primitives", params);
+
+		params.set(Param.pSerializable("created"), new Date(1300000000000L));
+		run("serializable", params);
+	}
+
+	private static void run(String name, Params params) {
+		System.out.println(String.format("%s: strings %d bytes, binary %d bytes", name, size(strings(params)),
+				ParamsCodec.encode(params).length));
+
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			int count = 0;
+			for (int i = 0; i < ITERATIONS; i++) {
+				count += fromStrings(strings(params)).getValues().size();
+			}
+			print("strings", start, count);
+
+			start = System.nanoTime();
+			count = 0;
+			for (int i = 0; i < ITERATIONS; i++) {
+				count += ParamsCodec.decode(ParamsCodec.encode(params)).getValues().size();
+			}
+			print("binary", start, count);
+		}
+	}
+
+	/**
+	 * @return UTF-8 encoded type, name and string value of all values, as
+	 *         stored by DAOs
+	 */
+	private static List<byte[]> strings(Params params) {
+		List<byte[]> columns = Lists.newArrayList();
+		for (ParamValue v : params) {
+			columns.add(v.getType().name().getBytes(StandardCharsets.UTF_8));
+			columns.add(v.getName().getBytes(StandardCharsets.UTF_8));
+			columns.add(v.getStringValue().getBytes(StandardCharsets.UTF_8));
+		}
+		return columns;
+	}
+
+	private static Params fromStrings(List<byte[]> columns) {
+		Params params = new Params();
+		Map<String, ParamValue> values = params.getValues();
+		for (Iterator<byte[]> iter = columns.iterator(); iter.hasNext();) {
+			ParamValue v = new ParamValue();
+			v.setType(ParamType.valueOf(new String(iter.next(), StandardCharsets.UTF_8)));
+			v.setName(new String(iter.next(), StandardCharsets.UTF_8));
+			v.setStringValue(new String(iter.next(), StandardCharsets.UTF_8));
+			// resolve lazily parsed value
+			v.getValue();
+			values.put(v.getName(), v);
+		}
+		return params;
+	}
+
+	private static int size(List<byte[]> columns) {
+		int size = 0;
+		for (byte[] column : columns) {
+			size += column.length;
+		}
+		return size;
+	}
+
+	private static void print(String name, long start, int count) {
+		long nanos = System.nanoTime() - start;
+		System.out.println(String.format("%-10s %8.2f us/round trip (%d)", name, nanos / 1000.0 / ITERATIONS, count));
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import com.google.common.collect.Iterators;
+
+public class ParamsCodecTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Params params = new Params();
+		params.set(Param.pString("string"), "h\u00e4llo world");
+		params.set(Param.pString("empty"), "");
+		params.set(Param.pInteger("int"), Integer.MIN_VALUE);
+		params.set(Param.pInteger("small"), -1);
+		params.set(Param.pLong("long"), Long.MAX_VALUE);
+		params.set(Param.pDouble("double"), -0.5);
+		params.set(Param.pFloat("float"), Float.NaN);
+		params.set(Param.pBoolean("boolean"), true);
+		params.set(Param.pCharacter("char"), '\u00e4');
+		params.set(Param.pURL("url"), new URL("http://example.com/foo?bar=baz"));
+		params.set(Param.pSerializable("date"), new Date(4711));
+		params.set(Param.pSerializable("wrapped"), 42L);
+
+		byte[] bytes = ParamsCodec.encode(params);
+		assertEquals(ParamsCodec.VERSION, bytes[0]);
+
+		Params decoded = ParamsCodec.decode(bytes);
+		assertEquals(params, decoded);
+		assertArrayEquals(bytes, ParamsCodec.encode(decoded));
+
+		// names of interned params are shared
+		assertSame(Param.pLong("long").getName(), decoded.getValues().get("long").getName());
+	}
+
+	@Test
+	public void testCompact() {
+		Params params = new Params();
+		params.set(Param.pInteger("id"), 1);
+		params.set(Param.pSerializable("count"), 2L);
+
+		// version and count, then type, name length, name, value type of
+		// serializable and value
+		assertEquals(2 + (1 + 1 + 2 + 1) + (1 + 1 + 5 + 1 + 1), ParamsCodec.encode(params).length);
+		assertEquals(2, ParamsCodec.encode(new Params()).length);
+	}
+
+	@Test
+	public void testBeanParams() {
+		BeanParamsTest.MyBean bean = new BeanParamsTest.MyBean();
+		bean.setFoo("foo");
+		bean.setQux(42);
+
+		Params decoded = ParamsCodec.decode(ParamsCodec.encode(BeanParams.params(bean)));
+		assertEquals("foo", decoded.get(Param.pString("foo")));
+		assertEquals((Integer) 42, decoded.get(Param.pInteger("qux")));
+	}
+
+	@Test
+	public void testMalformed() {
+		byte[] bytes = ParamsCodec.encode(new Params().set(Param.pString("foo"), "bar"));
+
+		for (int i = 0; i < bytes.length; i++) {
+			assertMalformed(Arrays.copyOf(bytes, i));
+		}
+		assertMalformed(Arrays.copyOf(bytes, bytes.length + 1));
+
+		byte[] version = bytes.clone();
+		version[0] = ParamsCodec.VERSION + 1;
+		assertMalformed(version);
+
+		byte[] type = bytes.clone();
+		type[2] = 42;
+		assertMalformed(type);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testObject() {
+		ParamsCodec.encode(new Params().set(Param.pObject("foo"), new Object()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullValue() {
+		final ParamValue value = new ParamValue(Param.pInteger("foo"), 42) {
+
+			@Override
+			public Object getValue() {
+				return null;
+			}
+		};
+		ParamsCodec.encode(new Params() {
+
+			@Override
+			public Iterator<ParamValue> iterator() {
+				return Iterators.singletonIterator(value);
+			}
+		});
+	}
+
+	private static void assertMalformed(byte[] bytes) {
+		try {
+			ParamsCodec.decode(bytes);
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		assertTrue("malformed input decoded: " + Arrays.toString(bytes), false);
+	}
+}
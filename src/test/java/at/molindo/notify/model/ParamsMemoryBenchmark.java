@@ -0,0 +1,81 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * compares retained heap per {@link Params} against the former
+ * HashMap&lt;String, ParamValue&gt; layout. Run manually, e.g. from the IDE,
+ * preferably with a fixed heap size (-Xms1g -Xmx1g).
+ */
+public class ParamsMemoryBenchmark {
+
+	private static final int INSTANCES = 100000;
+
+	private static final Param<String> USER = Param.pString("user");
+	private static final Param<String> EMAIL = Param.pString("email");
+	private static final Param<Integer> COUNT = Param.pInteger("count");
+	private static final Param<Boolean> DIGEST = Param.pBoolean("digest");
+	private static final Param<Long> ID = Param.pLong("id");
+
+	public static void main(String[] args) {
+		// values are shared to only measure the container
+		ParamValue[] values = { USER.value("john"), EMAIL.value("john@example.com"), COUNT.value(42),
+				DIGEST.value(true), ID.value(4711L) };
+
+		for (int size : new int[] { 0, 1, 3, 5 }) {
+			for (int round = 0; round < 3; round++) {
+				Object[] hashMaps = new Object[INSTANCES];
+				long before = usedMemory();
+				for (int i = 0; i < INSTANCES; i++) {
+					Map<String, ParamValue> map = new HashMap<String, ParamValue>();
+					for (int v = 0; v < size; v++) {
+						map.put(values[v].getName(), values[v]);
+					}
+					hashMaps[i] = map;
+				}
+				long hashMapBytes = usedMemory() - before;
+
+				Object[] params = new Object[INSTANCES];
+				before = usedMemory();
+				for (int i = 0; i < INSTANCES; i++) {
+					Params p = new Params();
+					Map<String, ParamValue> map = p.getValues();
+					for (int v = 0; v < size; v++) {
+						map.put(values[v].getName(), values[v]);
+					}
+					params[i] = p;
+				}
+				long paramsBytes = usedMemory() - before;
+
+				System.out.println(String.format("%d values: HashMap %5.1f bytes, Params %5.1f bytes (%d, %d)", size,
+						(double) hashMapBytes / INSTANCES, (double) paramsBytes / INSTANCES, hashMaps.length,
+						params.length));
+			}
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
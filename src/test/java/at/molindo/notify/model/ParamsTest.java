@@ -17,9 +17,21 @@
 package at.molindo.notify.model;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
 public class ParamsTest {
 
 	@Test
@@ -41,4 +53,66 @@ public class ParamsTest {
 		assertEquals((Integer) 42, params.get(pInt));
 		assertEquals(42, params.newMap().get("foo"));
 	}
+
+	@Test
+	public void testStorage() {
+		Param<String> pFoo = Param.pString("foo");
+		Param<Integer> pBar = Param.pInteger("bar");
+		Param<Boolean> pBaz = Param.pBoolean("baz");
+
+		Params params = new Params();
+		params.set(pFoo, "foo").set(pBar, 42).set(pBaz, true);
+
+		// iteration in name order, independent of insertion order
+		List<String> names = Lists.newArrayList();
+		for (ParamValue v : params) {
+			names.add(v.getName());
+		}
+		assertEquals(Arrays.asList("bar", "baz", "foo"), names);
+
+		Map<String, ParamValue> values = params.getValues();
+		assertEquals(3, values.size());
+		assertEquals((Integer) 42, values.get("bar").getValue());
+		assertNull(values.get(new Object()));
+
+		// views are live
+		params.set(pBar, null);
+		assertEquals(2, values.size());
+		assertFalse(values.containsKey("bar"));
+		assertEquals(2, params.asMap().size());
+
+		values.remove("foo");
+		assertFalse(params.isSet(pFoo));
+		assertTrue(params.isSet(pBaz));
+
+		Iterator<ParamValue> iter = params.iterator();
+		iter.next();
+		iter.remove();
+		assertFalse(iter.hasNext());
+		assertTrue(params.getValues().isEmpty());
+
+		assertEquals(new Params().set(pFoo, "foo"), new Params().set(pFoo, "bar").set(pFoo, "foo"));
+	}
+
+	@Test
+	public void testSetValuesCopies() {
+		Param<String> pFoo = Param.pString("foo");
+
+		Map<String, ParamValue> map = Maps.newHashMap();
+		map.put("foo", pFoo.value("foo"));
+
+		Params params = new Params();
+		params.setValues(map);
+		assertNotSame(map, params.getValues());
+		assertEquals(map, params.getValues());
+
+		// params isn't adopted
+		map.clear();
+		assertEquals("foo", params.get(pFoo));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMismatchingName() {
+		new Params().getValues().put("foo", Param.pString("bar").value("bar"));
+	}
 }
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.model;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import at.molindo.notify.render.IRenderService.Type;
+import at.molindo.notify.render.IRenderService.Version;
+
+public class TemplateIndexTest {
+
+	private static Template t(Version version, Type type, Locale locale) {
+		return new Template("test", type, version, locale, "content");
+	}
+
+	@Test
+	public void choose() throws Exception {
+		Template longText = t(Version.LONG, Type.TEXT, null);
+		Template longHtml = t(Version.LONG, Type.HTML, null);
+		Template longDeText = t(Version.LONG, Type.TEXT, Locale.GERMAN);
+		Template longDeAtHtml = t(Version.LONG, Type.HTML, new Locale("de", "AT"));
+		Template shortEnText = t(Version.SHORT, Type.TEXT, Locale.ENGLISH);
+
+		TemplateIndex index = TemplateIndex.of(Arrays.asList(longText, longHtml, longDeText, longDeAtHtml,
+				shortEnText));
+
+		// HTML preferred
+		assertSame(longHtml, index.choose(Version.LONG, (String) null));
+		assertSame(longHtml, index.choose(Version.LONG, "fr"));
+
+		// locale fallback
+		assertSame(longDeAtHtml, index.choose(Version.LONG, "de_AT"));
+		assertSame(longDeText, index.choose(Version.LONG, "de_DE"));
+		assertSame(longDeText, index.choose(Version.LONG, "de"));
+		assertSame(longDeAtHtml, index.choose(Version.LONG, new Locale("de", "AT")));
+
+		// any template of version if none without locale
+		assertSame(shortEnText, index.choose(Version.SHORT, "de"));
+
+		// memoized
+		assertSame(longDeText, index.choose(Version.LONG, "de_DE"));
+	}
+
+	@Test
+	public void empty() throws Exception {
+		assertNull(TemplateIndex.empty().choose(Version.LONG, "de"));
+		assertNull(TemplateIndex.of(Arrays.asList(t(Version.LONG, Type.TEXT, null))).choose(Version.SHORT, "de"));
+	}
+}
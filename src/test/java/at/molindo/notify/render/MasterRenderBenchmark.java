@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.render;
+
+import at.molindo.notify.model.Param;
+import at.molindo.notify.model.Params;
+import at.molindo.notify.render.IRenderService.RenderException;
+import at.molindo.notify.render.IRenderService.Version;
+
+/**
+ * compares rendering master templates for every message with layout mode.
+ * Run manually, e.g. from the IDE.
+ */
+public class MasterRenderBenchmark {
+
+	private static final String INNER = "Subject: New message from ${name}\n\n"
+			+ "<p>Hi ${name},</p><p>you have a new message.</p>";
+
+	private static final String MASTER = "Subject: [example.com] ${message.subject}\n\n"
+			+ "<html><head><title>example.com</title></head><body><div class=\"header\">example.com</div>"
+			+ "<div class=\"content\">$message.html</div><div class=\"footer\">Brought to you by example.com. "
+			+ "Don't want to receive these mails? Change your settings.</div></body></html>";
+
+	private static final int ITERATIONS = 50000;
+
+	public static void main(String[] args) throws Exception {
+		MasterRenderService twoPass = MasterRenderServiceTest.master(INNER, MASTER, false);
+		MasterRenderService layout = MasterRenderServiceTest.master(INNER, MASTER, true);
+
+		for (int round = 0; round < 5; round++) {
+			run("two pass", twoPass);
+			run("layout", layout);
+		}
+	}
+
+	private static void run(String name, MasterRenderService svc) throws RenderException {
+		Params params = new Params();
+		params.set(Param.pString("name"), "John");
+
+		long start = System.nanoTime();
+		int chars = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			chars += svc.render("test", Version.LONG, params).getMessage().length();
+		}
+		long nanos = System.nanoTime() - start;
+		System.out.println(String.format("%-10s %8.2f us/op (%d)", name, nanos / 1000.0 / ITERATIONS, chars));
+	}
+}
@@ -21,16 +21,22 @@ import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Locale;
 
 import org.junit.Test;
 
+import at.molindo.notify.INotifyService;
+import at.molindo.notify.dao.memory.MemoryTemplateDAO;
 import at.molindo.notify.model.IParams;
 import at.molindo.notify.model.Message;
+import at.molindo.notify.model.Param;
 import at.molindo.notify.model.Params;
 import at.molindo.notify.model.Template;
 import at.molindo.notify.render.IRenderService.Type;
 import at.molindo.notify.render.IRenderService.Version;
+import at.molindo.notify.render.velocity.VelocityTemplateRenderer;
 import at.molindo.notify.test.util.EasyMockContext;
 import at.molindo.notify.test.util.MockTest;
 
@@ -88,4 +94,110 @@ public class MasterRenderServiceTest {
 
 		}.run();
 	}
+
+	@Test
+	public void layout() throws Exception {
+		String inner = "Subject: Hello\n\n<p>hi ${name}</p>";
+
+		// plain output of message properties
+		assertLayout(inner, "Subject: [test] ${message.subject}\n\n<html>$message.html</html>", true);
+		// inner subject used as fallback
+		assertLayout(inner, "Subject:\n\n<html>$message.html\n$message.text</html>", true);
+		// master rendered for every message
+		assertLayout(inner, "Subject: x\n\n#if($message.subject)$message.html#end", false);
+		assertLayout(inner, "Subject: ${message.subject.toUpperCase()}\n\n$message.html", false);
+		assertLayout(inner, "Subject: x\n\n#if($message.type == 'HTML')$message.html#else$message.text#end",
+				false);
+	}
+
+	@Test
+	public void locale() throws Exception {
+		MemoryTemplateDAO dao = new MemoryTemplateDAO();
+		dao.setTemplates(Arrays.asList(new Template("test", Type.HTML, Version.LONG, null, "Subject: Hello\n\nhi"),
+				new Template(MasterRenderService.DEFAULT_TEMPLATE_KEY, Type.HTML, Version.LONG, null,
+						"Subject: $message.subject\n\nen: $message.html"), new Template(
+						MasterRenderService.DEFAULT_TEMPLATE_KEY, Type.HTML, Version.LONG, Locale.GERMAN,
+						"Subject: $message.subject\n\nde: $message.html")));
+
+		for (boolean layout : new boolean[] { false, true }) {
+			MasterRenderService svc = master(templates(dao), layout);
+
+			// master template chosen in locale of message
+			Params params = new Params();
+			params.set(INotifyService.LOCALE, "de_AT");
+			assertEquals("de: hi", svc.render("test", Version.LONG, params).getHtml());
+			assertEquals("en: hi", svc.render("test", Version.LONG, new Params()).getHtml());
+
+			// unless set in masterParams
+			svc = master(templates(dao), layout);
+			svc.setMasterParams(new Params().set(INotifyService.LOCALE, "en"));
+			assertEquals("en: hi", svc.render("test", Version.LONG, params).getHtml());
+		}
+	}
+
+	private static void assertLayout(String inner, String master, boolean layout) throws Exception {
+		MasterRenderService twoPass = master(inner, master, false);
+		MasterRenderService layouted = master(inner, master, true);
+
+		for (String name : Arrays.asList("John", "Jane")) {
+			Params params = new Params();
+			params.set(Param.pString("name"), name);
+			Message expected = twoPass.render("test", Version.LONG, params);
+			assertEquals(expected, layouted.render("test", Version.LONG, params));
+			assertEquals(expected.getSubject(), layouted.render("test", Version.LONG, params).getSubject());
+		}
+		assertEquals(layout, layouted.isLayout(Version.LONG, null));
+	}
+
+	@Test
+	public void layoutBlankLines() throws Exception {
+		String master = "Subject: [test] ${message.subject}\n\n$message.html\n<p>footer</p>";
+		final IRenderService templates = templates("Subject: unused\n\nunused", master);
+
+		// inner message with a body starting with blank lines
+		IRenderService inner = new IRenderService() {
+
+			@Override
+			public Message render(String key, Version version, IParams params) throws RenderException {
+				if ("test".equals(key)) {
+					return new Message("Hello", "\n \n\t\n<p>hi</p>", Type.HTML);
+				}
+				return templates.render(key, version, params);
+			}
+		};
+
+		Message expected = master(inner, false).render("test", Version.LONG, new Params());
+		assertEquals("<p>hi</p>\n<p>footer</p>", expected.getHtml());
+
+		MasterRenderService layouted = master(inner, true);
+		assertEquals(expected, layouted.render("test", Version.LONG, new Params()));
+		assertEquals(expected.getHtml(), layouted.render("test", Version.LONG, new Params()).getHtml());
+		assertEquals(true, layouted.isLayout(Version.LONG, null));
+	}
+
+	static MasterRenderService master(String inner, String master, boolean layout) throws Exception {
+		return master(templates(inner, master), layout);
+	}
+
+	static MasterRenderService master(IRenderService renderService, boolean layout) {
+		MasterRenderService svc = new MasterRenderService();
+		svc.setRenderService(renderService);
+		svc.setLayout(layout);
+		return svc;
+	}
+
+	static TemplateRenderService templates(String inner, String master) throws Exception {
+		MemoryTemplateDAO dao = new MemoryTemplateDAO();
+		dao.setTemplates(Arrays.asList(new Template("test", Type.HTML, Version.LONG, null, inner), new Template(
+				MasterRenderService.DEFAULT_TEMPLATE_KEY, Type.HTML, Version.LONG, null, master)));
+		return templates(dao);
+	}
+
+	static TemplateRenderService templates(MemoryTemplateDAO dao) throws Exception {
+		TemplateRenderService templates = new TemplateRenderService();
+		templates.setTemplateDAO(dao);
+		templates.setRenderer(new VelocityTemplateRenderer().init());
+		templates.afterPropertiesSet();
+		return templates;
+	}
 }
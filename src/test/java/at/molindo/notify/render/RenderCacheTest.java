@@ -0,0 +1,115 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.render;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.molindo.notify.dao.memory.MemoryTemplateDAO;
+import at.molindo.notify.model.IParams;
+import at.molindo.notify.model.Message;
+import at.molindo.notify.model.Param;
+import at.molindo.notify.model.Params;
+import at.molindo.notify.model.Template;
+import at.molindo.notify.render.IRenderService.Type;
+import at.molindo.notify.render.IRenderService.Version;
+import at.molindo.notify.render.velocity.VelocityTemplateRenderer;
+
+import com.google.common.cache.CacheStats;
+
+public class RenderCacheTest {
+
+	private static final Param<String> NAME = Param.pString("name");
+	private static final Param<String> RECIPIENT = Param.pString("recipient");
+	private static final Param<Boolean> FORMAL = Param.pBoolean("formal");
+
+	private TemplateRenderService _svc;
+
+	@Before
+	public void before() throws Exception {
+		MemoryTemplateDAO dao = new MemoryTemplateDAO();
+		dao.setTemplates(Arrays.asList(new Template("test", Type.TEXT, Version.LONG, null,
+				"Subject: Hi\n\n#if($formal)Dear#{else}Hi#end $name")));
+
+		_svc = new TemplateRenderService();
+		_svc.setTemplateDAO(dao);
+		_svc.setRenderer(new VelocityTemplateRenderer().init());
+		_svc.setRenderCacheSize(100);
+		_svc.afterPropertiesSet();
+	}
+
+	private Message render(String name, String recipient, boolean formal) throws Exception {
+		Params params = new Params();
+		params.set(NAME, name);
+		params.set(RECIPIENT, recipient);
+		params.set(FORMAL, formal);
+		return _svc.render("test", Version.LONG, params);
+	}
+
+	@Test
+	public void cache() throws Exception {
+		Message m1 = render("Joe", "joe@example.com", false);
+		assertEquals("Hi Joe", m1.getMessage());
+
+		// recipient isn't read by template
+		Message m2 = render("Joe", "joe@example.org", false);
+		assertEquals(m1, m2);
+		assertNotSame(m1, m2);
+
+		assertEquals("Dear Joe", render("Joe", "joe@example.com", true).getMessage());
+		assertEquals("Hi Jane", render("Jane", "joe@example.com", false).getMessage());
+		assertEquals("Dear Joe", render("Joe", "joe@example.net", true).getMessage());
+
+		CacheStats stats = _svc.getRenderCacheStats();
+		assertEquals(2, stats.hitCount());
+		assertEquals(3, stats.missCount());
+	}
+
+	@Test
+	public void copies() throws Exception {
+		render("Joe", "joe@example.com", false).setSubject("changed");
+		assertEquals("Hi", render("Joe", "joe@example.com", false).getSubject());
+	}
+
+	@Test
+	public void replaced() throws Exception {
+		RenderCache cache = new RenderCache(100);
+		Params params = new Params();
+		params.set(NAME, "Joe");
+
+		for (int i = 0; i < 3; i++) {
+			Template template = new Template("test", Type.TEXT, Version.LONG, null, "Hi $name")
+					.setLastModified(new Date(i));
+			IParams recorded = cache.record(params);
+			recorded.get(NAME);
+			cache.put(template, recorded, new Message("Hi", "Hi Joe " + i, Type.TEXT));
+			assertEquals("Hi Joe " + i, cache.get(template, params).getMessage());
+		}
+
+		// only latest version is tracked
+		assertEquals(1, cache.templates());
+		assertNull(cache.get(new Template("test", Type.TEXT, Version.LONG, null, "Hi $name").setLastModified(
+				new Date(0)), params));
+	}
+}
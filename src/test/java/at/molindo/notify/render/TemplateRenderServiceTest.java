@@ -16,22 +16,36 @@
 
 package at.molindo.notify.render;
 
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
 import static org.junit.Assert.assertEquals;
 
+import java.io.Writer;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.easymock.IAnswer;
 import org.junit.Test;
 
 import at.molindo.notify.dao.ITemplateDAO;
+import at.molindo.notify.dao.memory.MemoryTemplateDAO;
+import at.molindo.notify.model.LayeredParams;
 import at.molindo.notify.model.Message;
 import at.molindo.notify.model.Param;
+import at.molindo.notify.model.ParamValue;
 import at.molindo.notify.model.Params;
 import at.molindo.notify.model.Template;
+import at.molindo.notify.model.TemplateIndex;
 import at.molindo.notify.render.IRenderService.RenderException;
 import at.molindo.notify.render.IRenderService.Type;
 import at.molindo.notify.render.IRenderService.Version;
+import at.molindo.notify.render.velocity.VelocityTemplateRenderer;
 import at.molindo.notify.test.util.EasyMockContext;
 import at.molindo.notify.test.util.MockTest;
 
@@ -76,9 +90,18 @@ public class TemplateRenderServiceTest {
 				_params = new Params();
 				_params.set(Param.pString("word"), "test");
 
-				expect(context.get(ITemplateDAO.class).findTemplates(_t.getKey())).andReturn(Arrays.asList(t()));
-				expect(context.get(ITemplateRenderer.class).render(_t, _params)).andReturn(
-						"Subject: Test\n\nthis is a test");
+				expect(context.get(ITemplateDAO.class).findIndex(_t.getKey())).andReturn(
+						TemplateIndex.of(Arrays.asList(t())));
+				expect(context.get(ITemplateRenderer.class).getReferences(_t)).andReturn(null);
+				context.get(ITemplateRenderer.class).render(eq(_t), eq(_params), anyObject(Writer.class));
+				expectLastCall().andAnswer(new IAnswer<Object>() {
+
+					@Override
+					public Object answer() throws Throwable {
+						((Writer) getCurrentArguments()[2]).write("Subject: Test\n\nthis is a test");
+						return null;
+					}
+				});
 			}
 
 			@Override
@@ -90,4 +113,75 @@ public class TemplateRenderServiceTest {
 		}.run();
 	}
 
+	@Test
+	public void precompile() throws Exception {
+		final AtomicInteger compiled = new AtomicInteger();
+
+		MemoryTemplateDAO dao = new MemoryTemplateDAO();
+		dao.setTemplates(Arrays.asList(t(), new Template("other", Type.TEXT, Version.SHORT, null, "Subject: ${x}\n\nx")));
+
+		TemplateRenderService svc = new TemplateRenderService();
+		svc.setTemplateDAO(dao);
+		svc.setRenderer(new VelocityTemplateRenderer() {
+
+			@Override
+			public void compile(Template template) throws RenderException {
+				compiled.incrementAndGet();
+				super.compile(template);
+			}
+		}.init());
+		svc.afterPropertiesSet();
+
+		assertEquals(2, compiled.get());
+	}
+
+	@Test
+	public void noCopy() throws Exception {
+		MemoryTemplateDAO dao = new MemoryTemplateDAO();
+		dao.setTemplates(Arrays.asList(new Template("test", Type.TEXT, Version.LONG, null,
+				"Subject: Hi ${name}\n\n${name}")));
+
+		Params notification = new Params();
+		notification.set(Param.pString("name"), "John");
+		notification.set(Param.pString("unused"), "unused");
+
+		// params are read through views, never copied to a map
+		Params params = new LayeredParams(notification) {
+
+			@Override
+			public Map<String, Object> newMap() {
+				throw new AssertionError("params copied");
+			}
+
+			@Override
+			public Iterator<ParamValue> iterator() {
+				throw new AssertionError("params copied");
+			}
+		};
+
+		for (int renderCacheSize : new int[] { 0, 10 }) {
+			TemplateRenderService svc = new TemplateRenderService();
+			svc.setTemplateDAO(dao);
+			svc.setRenderer(new VelocityTemplateRenderer().init());
+			svc.setRenderCacheSize(renderCacheSize);
+			svc.afterPropertiesSet();
+
+			for (int i = 0; i < 2; i++) {
+				Message message = svc.render("test", Version.LONG, params);
+				assertEquals("Hi John", message.getSubject());
+				assertEquals("John", message.getText());
+			}
+		}
+	}
+
+	@Test(expected = RenderException.class)
+	public void precompileFailure() throws Exception {
+		MemoryTemplateDAO dao = new MemoryTemplateDAO();
+		dao.setTemplates(Arrays.asList(t(), new Template("broken", Type.TEXT, Version.LONG, null, "#if(")));
+
+		TemplateRenderService svc = new TemplateRenderService();
+		svc.setTemplateDAO(dao);
+		svc.setRenderer(new VelocityTemplateRenderer().init());
+		svc.afterPropertiesSet();
+	}
 }
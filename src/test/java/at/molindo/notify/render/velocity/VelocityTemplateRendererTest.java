@@ -17,8 +17,10 @@
 package at.molindo.notify.render.velocity;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.util.Date;
+import java.util.Locale;
 
 import org.junit.Test;
 
@@ -26,7 +28,11 @@ import at.molindo.notify.model.Param;
 import at.molindo.notify.model.Params;
 import at.molindo.notify.model.Template;
 import at.molindo.notify.render.IRenderService.RenderException;
+import at.molindo.notify.render.IRenderService.Type;
 import at.molindo.notify.render.IRenderService.Version;
+import at.molindo.notify.util.StringBuilderWriter;
+
+import com.google.common.collect.ImmutableSet;
 
 public class VelocityTemplateRendererTest {
 
@@ -66,4 +72,71 @@ public class VelocityTemplateRendererTest {
 
 		assertEquals("this is a test", result);
 	}
+
+	@Test
+	public void testReferences() throws Exception {
+		Template t = t();
+		t.setContent("#set($greeting = \"Hi\")$greeting ${user.name}, #if($!formal)Sir#end#foreach($i in $items)$i#end");
+
+		assertEquals(ImmutableSet.of("greeting", "user", "formal", "i", "items"), r().getReferences(t));
+
+		t.setKey("dynamic");
+		t.setContent("#evaluate($code)");
+		assertNull(r().getReferences(t));
+	}
+
+	@Test
+	public void testReload() throws Exception {
+		Template t = t();
+		VelocityTemplateRenderer r = r();
+
+		Params params = new Params();
+		params.set(Param.pString("word"), "test");
+		assertEquals("this is a test", r.render(t, params));
+
+		// same modification date, cached
+		t.setContent("this was a ${word}");
+		assertEquals("this is a test", r.render(t, params));
+
+		t.setLastModified(new Date(t.getLastModified().getTime() + 1000));
+		assertEquals("this was a test", r.render(t, params));
+	}
+
+	@Test
+	public void testVariants() throws Exception {
+		VelocityTemplateRenderer r = r();
+
+		Template en = t().setLocale(Locale.ENGLISH).setType(Type.TEXT);
+		Template de = t().setLocale(Locale.GERMAN).setContent("das ist ein ${word}");
+		Template html = t().setLocale(Locale.ENGLISH).setType(Type.HTML).setContent("<p>this is a ${word}</p>");
+
+		Params params = new Params();
+		params.set(Param.pString("word"), "test");
+		assertEquals("this is a test", r.render(en, params));
+		assertEquals("das ist ein test", r.render(de, params));
+		assertEquals("<p>this is a test</p>", r.render(html, params));
+		assertEquals("this is a test", r.render(en, params));
+	}
+
+	@Test
+	public void testReusedContext() throws Exception {
+		VelocityTemplateRenderer r = r();
+
+		Template set = t().setContent(
+				"#set($word = \"changed\")#set($local = \"x\")#foreach($i in [1..3])$i#end ${word}");
+		Template read = t().setKey("read").setContent("#if($local)leaked#end${word}");
+
+		Params params = new Params();
+		params.set(Param.pString("word"), "test");
+		assertEquals("123 changed", r.render(set, params));
+		assertEquals("test", params.get(Param.pString("word")));
+
+		// variables of previous render are gone
+		assertEquals("test", r.render(read, params));
+
+		StringBuilderWriter writer = new StringBuilderWriter(0);
+		writer.write("prefix ");
+		r.render(read, params, writer);
+		assertEquals("prefix test", writer.toString());
+	}
 }
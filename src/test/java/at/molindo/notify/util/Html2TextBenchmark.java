@@ -0,0 +1,59 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * compares throughput of {@link IHtml2Text} implementations on typical
+ * notification markup. Run manually, e.g. from the IDE.
+ */
+public class Html2TextBenchmark {
+
+	private static final String SHORT = "<p>Hi <strong>John</strong>,</p>"
+			+ "<p>you have a new message from <a href=\"http://example.com/user/42\">Jane</a>.</p>"
+			+ "<p>Cheers,<br />your example.com team</p>";
+
+	private static final int ITERATIONS = 100000;
+
+	public static void main(String[] args) {
+		StringBuilder digest = new StringBuilder("<html><head><title>Digest</title></head><body><h1>Your digest</h1><ul>");
+		for (int i = 0; i < 50; i++) {
+			digest.append("<li><a href=\"http://example.com/item/").append(i).append("?a=1&amp;b=2\">Item ")
+					.append(i).append("</a> &ndash; something happened<br />while you were away</li>");
+		}
+		digest.append("</ul><p>Unsubscribe <a href=\"http://example.com/settings\">here</a></p></body></html>");
+
+		List<IHtml2Text> converters = Arrays.asList(new JerichoHtml2Text(), new SimpleHtml2Text());
+		for (String html : Arrays.asList(SHORT, digest.toString())) {
+			for (int round = 0; round < 5; round++) {
+				for (IHtml2Text converter : converters) {
+					int iterations = ITERATIONS * SHORT.length() / html.length();
+					long start = System.nanoTime();
+					int chars = 0;
+					for (int i = 0; i < iterations; i++) {
+						chars += converter.html2text(html).length();
+					}
+					long nanos = System.nanoTime() - start;
+					System.out.println(String.format("%-20s %6d chars: %8.1f us/op (%d)", converter.getClass()
+							.getSimpleName(), html.length(), nanos / 1000.0 / iterations, chars));
+				}
+			}
+		}
+	}
+}
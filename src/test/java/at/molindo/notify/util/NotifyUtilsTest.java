@@ -18,12 +18,16 @@ package at.molindo.notify.util;
 
 import static at.molindo.notify.util.NotifyUtils.choose;
 import static at.molindo.notify.util.NotifyUtils.html2text;
+import static at.molindo.notify.util.NotifyUtils.ownedShards;
+import static at.molindo.notify.util.NotifyUtils.shard;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import org.junit.Test;
 
@@ -31,6 +35,8 @@ import at.molindo.notify.model.Template;
 import at.molindo.notify.render.IRenderService.Type;
 import at.molindo.notify.render.IRenderService.Version;
 
+import com.google.common.collect.Sets;
+
 public class NotifyUtilsTest {
 
 	@Test
@@ -71,4 +77,28 @@ public class NotifyUtilsTest {
 		assertSame(longText, choose(all, Type.TEXT, Version.LONG));
 		assertSame(shortText, choose(all, Type.TEXT, Version.SHORT));
 	}
+
+	@Test
+	public void shards() {
+		for (int i = 0; i < 1000; i++) {
+			int shard = shard("user" + i, 16);
+			assertTrue(shard >= 0 && shard < 16);
+			assertEquals(shard, shard("user" + i, 16));
+		}
+
+		List<String> members = Arrays.asList("a", "b", "c");
+
+		Set<Integer> a = ownedShards("a", members, 64);
+		Set<Integer> b = ownedShards("b", members, 64);
+		Set<Integer> c = ownedShards("c", members, 64);
+
+		assertEquals(64, a.size() + b.size() + c.size());
+		assertEquals(64, Sets.union(Sets.union(a, b), c).size());
+
+		// only shards of c move when c leaves
+		List<String> remaining = Arrays.asList("a", "b");
+		assertTrue(ownedShards("a", remaining, 64).containsAll(a));
+		assertTrue(ownedShards("b", remaining, 64).containsAll(b));
+		assertEquals(64, ownedShards("a", remaining, 64).size() + ownedShards("b", remaining, 64).size());
+	}
 }
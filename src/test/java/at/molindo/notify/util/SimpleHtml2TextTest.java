@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.molindo.notify.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SimpleHtml2TextTest {
+
+	private final IHtml2Text _simple = new SimpleHtml2Text();
+	private final IHtml2Text _jericho = new JerichoHtml2Text();
+
+	@Test
+	public void html2text() {
+		assertSame("<p>this is a <a href='http://example.com/'>link</a></p>");
+		assertSame("<html><body><ul><li>item 1</li><li>item 2</li></ul></html></body>");
+		assertSame("foobar <strong>baz</strong> qux");
+		assertSame("<h1>Title</h1><p>para one</p><p>para two<br>line &amp; more&nbsp;x</p><div>d</div>end");
+		assertSame("<script>x</script><style>y</style>text <b>bold</b>\n\n   spaced");
+		assertSame("<a href=\"#\">top</a> <a href=\"javascript:foo()\">js</a> <!-- comment -->");
+		assertSame("<ol><li>x</li><li>y</li></ol>");
+		assertSame("<ul><li><a href=\"/a?b=1&amp;c=2\">a</a> &ndash; b<br />c</li><li>d</li></ul>");
+
+		assertEquals("a < b & c", _simple.html2text("a < b & c"));
+		assertEquals("\u00e4 \u20ac \u00e4", _simple.html2text("&auml; &#8364; &#xe4;"));
+		assertEquals("go <http://example.com/?a=1&b=2>",
+				_simple.html2text("<a title=\"a > b\" href=\"http://example.com/?a=1&amp;b=2\">go</a>"));
+		assertEquals("line 1\r\n  line 2", _simple.html2text("<pre>line 1\n  line 2</pre>"));
+	}
+
+	private void assertSame(String html) {
+		assertEquals(_jericho.html2text(html), _simple.html2text(html));
+	}
+}